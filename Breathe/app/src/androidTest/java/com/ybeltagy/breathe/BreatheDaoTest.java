@@ -8,6 +8,8 @@ import androidx.test.core.app.ApplicationProvider;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
 import com.ybeltagy.breathe.data.DataFinals;
+import com.ybeltagy.breathe.data.EnrichmentState;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
 import com.ybeltagy.breathe.data.Level;
 import com.ybeltagy.breathe.data.BreatheDao;
 import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
@@ -208,6 +210,40 @@ public class BreatheDaoTest {
         assertEquals(allEvents.get(0).getWeatherData().getWeatherEPAIndex(), epaIndex);
     }
 
+    @Test
+    public void enrichmentStatusTest() {
+        Instant rightNow = Instant.now();
+        InhalerUsageEvent tInhalerUsageEvent = new InhalerUsageEvent(rightNow);
+        tInhalerUsageEvent.setWearableEnrichment(new EnrichmentState(EnrichmentStatus.PENDING));
+        tInhalerUsageEvent.setWeatherEnrichment(new EnrichmentState(EnrichmentStatus.PENDING));
+        tBreatheDao.insert(tInhalerUsageEvent);
+        tBreatheDao.insert(new InhalerUsageEvent(rightNow.minusSeconds(1))); // nothing to enrich
+
+        Instant after = rightNow.minus(1, ChronoUnit.HOURS);
+        Instant before = rightNow.plus(1, ChronoUnit.HOURS);
+        List<InhalerUsageEvent> incomplete = tBreatheDao.getIncompleteIUEsBetween(after, before, 10);
+        assertEquals(incomplete.size(), 1);
+        assertEquals(incomplete.get(0).getInhalerUsageEventTimeStamp(), rightNow);
+
+        // a failed attempt is retried later, only for its source
+        EnrichmentState wearable = incomplete.get(0).getWearableEnrichment();
+        wearable.recordFailure(rightNow, 5);
+        tBreatheDao.updateWearableEnrichment(rightNow, wearable.getStatus(), wearable.getAttempts(),
+                wearable.getRetryAt());
+        tBreatheDao.updateWeatherData(rightNow, 10, 20, 0, Level.LOW, Level.LOW, 50);
+
+        incomplete = tBreatheDao.getIncompleteIUEsBetween(after, before, 10);
+        assertEquals(incomplete.size(), 1);
+        assertEquals(incomplete.get(0).getWeatherEnrichment().getStatus(), EnrichmentStatus.DONE);
+        assertEquals(incomplete.get(0).getWearableEnrichment().getAttempts(), 1);
+        assertFalse(incomplete.get(0).getWearableEnrichment().isDue(rightNow));
+        assertTrue(incomplete.get(0).getWearableEnrichment().isDue(
+                rightNow.plusMillis(DataFinals.ENRICHMENT_RETRY_BASE_MILLIS)));
+
+        tBreatheDao.updateWearableEnrichment(rightNow, EnrichmentStatus.FAILED, 5, rightNow);
+        assertEquals(tBreatheDao.getIncompleteIUEsBetween(after, before, 10).size(), 0);
+    }
+
     @Test
     public void getAnySingleInhalerUsageEventTest() {
         tBreatheDao.deleteAllIues();
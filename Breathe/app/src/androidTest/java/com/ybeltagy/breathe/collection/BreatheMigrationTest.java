@@ -0,0 +1,191 @@
+package com.ybeltagy.breathe.collection;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import androidx.room.Room;
+import androidx.room.testing.MigrationTestHelper;
+import androidx.sqlite.db.SupportSQLiteDatabase;
+import androidx.sqlite.db.framework.FrameworkSQLiteOpenHelperFactory;
+import androidx.test.core.app.ApplicationProvider;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import com.ybeltagy.breathe.data.DataFinals;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
+import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.data.Tag;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Migrates a version 3 database with IUEs to the current version and opens it with Room, which
+ * validates the migrated tables against the entities.
+ * <p>
+ * The IUEs of version 3:
+ * - COMPLETE has wearable and weather data
+ * - NO_WEARABLE has neither (the DataFinals defaults)
+ * - QUEUED has weather data and is queued for its wearable data in pending_enrichment (version 6)
+ */
+@RunWith(AndroidJUnit4.class)
+public class BreatheMigrationTest {
+
+    private static final String TEST_DB = "migration-test";
+
+    private static final Instant COMPLETE = Instant.parse("2022-03-01T08:00:00Z");
+    private static final Instant NO_WEARABLE = Instant.parse("2022-03-01T09:00:00Z");
+    private static final Instant QUEUED = Instant.parse("2022-03-01T10:00:00Z");
+
+    @Rule
+    public MigrationTestHelper helper = new MigrationTestHelper(InstrumentationRegistry.getInstrumentation(),
+            BreatheRoomDatabase.class.getCanonicalName(), new FrameworkSQLiteOpenHelperFactory());
+
+    @Test
+    public void migratesFromVersion3() throws Exception {
+        SupportSQLiteDatabase db = helper.createDatabase(TEST_DB, 3);
+        insertVersion3IUEs(db);
+        db.close();
+
+        // Room runs MIGRATION_3_4 to MIGRATION_7_8 and validates the result.
+        Map<Instant, InhalerUsageEvent> iues = openWithRoom();
+
+        assertEquals(3, iues.size());
+        assertStatuses(iues.get(COMPLETE), EnrichmentStatus.DONE, EnrichmentStatus.DONE);
+        assertStatuses(iues.get(NO_WEARABLE), EnrichmentStatus.NOT_APPLICABLE, EnrichmentStatus.PENDING);
+        // Without its queue row, QUEUED only has what its data says.
+        assertStatuses(iues.get(QUEUED), EnrichmentStatus.NOT_APPLICABLE, EnrichmentStatus.DONE);
+    }
+
+    @Test
+    public void migratesThePendingEnrichmentQueue() throws Exception {
+        SupportSQLiteDatabase db = helper.createDatabase(TEST_DB, 3);
+        insertVersion3IUEs(db);
+        migrate(db, 3, 6);
+        ContentValues queued = new ContentValues();
+        queued.put("Inhaler_Usage_Event_UTC_ISO_8601_date_time", QUEUED.toString());
+        queued.put("needsWearableData", 1);
+        queued.put("needsWeatherData", 0);
+        db.insert("pending_enrichment", SQLiteDatabase.CONFLICT_FAIL, queued);
+        migrate(db, 6, 7);
+        db.close();
+
+        Map<Instant, InhalerUsageEvent> iues = openWithRoom();
+
+        assertStatuses(iues.get(COMPLETE), EnrichmentStatus.DONE, EnrichmentStatus.DONE);
+        assertStatuses(iues.get(NO_WEARABLE), EnrichmentStatus.NOT_APPLICABLE, EnrichmentStatus.PENDING);
+        assertStatuses(iues.get(QUEUED), EnrichmentStatus.PENDING, EnrichmentStatus.DONE);
+    }
+
+    /**
+     * A version 7 database already has the partial index, created when it was opened. Room's
+     * validation of the 7 -> 8 migration fails unless the migration drops it.
+     */
+    @Test
+    public void partialIndexSurvivesTheValidation() throws Exception {
+        SupportSQLiteDatabase db = helper.createDatabase(TEST_DB, 3);
+        insertVersion3IUEs(db);
+        migrate(db, 3, 7);
+        BreatheRoomDatabase.CREATE_INDICES.onOpen(db);
+        assertTrue(hasIncompleteIUEIndex(db));
+        db.setVersion(7);
+        db.close();
+
+        BreatheRoomDatabase room = Room.databaseBuilder(ApplicationProvider.getApplicationContext(),
+                BreatheRoomDatabase.class, TEST_DB)
+                .addMigrations(BreatheRoomDatabase.MIGRATIONS)
+                .addCallback(BreatheRoomDatabase.CREATE_INDICES)
+                .build();
+        helper.closeWhenFinished(room);
+
+        List<InhalerUsageEvent> incomplete = room.breatheDao()
+                .getIncompleteIUEsBetween(Instant.EPOCH, Instant.parse("2100-01-01T00:00:00Z"), 10);
+        assertEquals(1, incomplete.size());
+        assertEquals(NO_WEARABLE, incomplete.get(0).getInhalerUsageEventTimeStamp());
+        assertTrue(hasIncompleteIUEIndex(room.getOpenHelper().getReadableDatabase()));
+    }
+
+    private static void insertVersion3IUEs(SupportSQLiteDatabase db) {
+        insertIUE(db, COMPLETE, 21.5f, 12.5f);
+        insertIUE(db, NO_WEARABLE, DataFinals.DEFAULT_FLOAT, DataFinals.DEFAULT_FLOAT);
+        insertIUE(db, QUEUED, DataFinals.DEFAULT_FLOAT, 13.5f);
+    }
+
+    /**
+     * Inserts an IUE as version 3 of the app saved it. Missing data has the DataFinals defaults.
+     */
+    private static void insertIUE(SupportSQLiteDatabase db, Instant timestamp, float temperature,
+                                  float weatherTemperature) {
+        boolean wearable = temperature != DataFinals.DEFAULT_FLOAT;
+        boolean weather = weatherTemperature != DataFinals.DEFAULT_FLOAT;
+
+        ContentValues values = new ContentValues();
+        values.put("Inhaler_Usage_Event_UTC_ISO_8601_date_time", timestamp.toString());
+        values.put("tag", Tag.NULL.ordinal());
+        values.put("message", "");
+        values.put("Wearable_Data_UTC_ISO_8601_date_time",
+                (wearable ? timestamp : DataFinals.DEFAULT_INSTANT).toString());
+        values.put("temperature", temperature);
+        values.put("humidity", wearable ? 40f : DataFinals.DEFAULT_FLOAT);
+        values.put("pm_count_2_5", wearable ? 3 : DataFinals.DEFAULT_INTEGER);
+        values.put("pm_count_10", wearable ? 5 : DataFinals.DEFAULT_INTEGER);
+        values.put("voc_data", wearable ? 100 : DataFinals.DEFAULT_INTEGER);
+        values.put("co2_data", wearable ? 400 : DataFinals.DEFAULT_INTEGER);
+        values.put("weatherTemperature", weatherTemperature);
+        values.put("weatherHumidity", weather ? 60f : DataFinals.DEFAULT_FLOAT);
+        values.put("weatherPrecipitationIntensity", weather ? 0f : DataFinals.DEFAULT_FLOAT);
+        values.put("weatherTreeIndex", 0);
+        values.put("weatherGrassIndex", 0);
+        values.put("weatherEPAIndex", weather ? 30 : DataFinals.DEFAULT_INTEGER);
+        db.insert("InhalerUsageEvent_table", SQLiteDatabase.CONFLICT_FAIL, values);
+    }
+
+    /**
+     * Runs the migrations from one version to another on the database, without Room.
+     */
+    private static void migrate(SupportSQLiteDatabase db, int from, int to) {
+        for (int version = from; version < to; version++) {
+            BreatheRoomDatabase.MIGRATIONS[version - 3].migrate(db);
+        }
+    }
+
+    private Map<Instant, InhalerUsageEvent> openWithRoom() {
+        Context context = ApplicationProvider.getApplicationContext();
+        BreatheRoomDatabase room = Room.databaseBuilder(context, BreatheRoomDatabase.class, TEST_DB)
+                .addMigrations(BreatheRoomDatabase.MIGRATIONS)
+                .addCallback(BreatheRoomDatabase.CREATE_INDICES)
+                .build();
+        helper.closeWhenFinished(room);
+
+        Map<Instant, InhalerUsageEvent> iues = new HashMap<>();
+        for (InhalerUsageEvent iue : room.breatheDao().getAllIUEsTest()) {
+            iues.put(iue.getInhalerUsageEventTimeStamp(), iue);
+        }
+        assertTrue(hasIncompleteIUEIndex(room.getOpenHelper().getReadableDatabase()));
+        return iues;
+    }
+
+    private static void assertStatuses(InhalerUsageEvent iue, EnrichmentStatus wearable, EnrichmentStatus weather) {
+        assertNotNull(iue);
+        String name = "IUE at " + iue.getInhalerUsageEventTimeStamp();
+        assertEquals(name, wearable, iue.getWearableEnrichment().getStatus());
+        assertEquals(name, weather, iue.getWeatherEnrichment().getStatus());
+    }
+
+    private static boolean hasIncompleteIUEIndex(SupportSQLiteDatabase db) {
+        try (Cursor cursor = db.query("SELECT name FROM sqlite_master WHERE type = 'index' AND name = ?",
+                new Object[]{BreatheRoomDatabase.INCOMPLETE_IUE_INDEX})) {
+            return cursor.getCount() == 1;
+        }
+    }
+}
@@ -8,17 +8,20 @@ import androidx.annotation.NonNull;
 
 import no.nordicsemi.android.ble.observer.ConnectionObserver;
 
-//FIXME: Since we are not doing anything fancy depending on the connection callbacks,
-// This class is not useful. However, because in the future, a future team might want to use it,
-// we will leave it
-
 /**
  * Contain callback methods for BLE connection updates.
+ * Forwards the updates to the ConnectionStateMachine of the device, which decides when to reconnect.
  */
 public class BLEConnectionObserver implements ConnectionObserver {
 
     private static final String tag = "BLEConnectionObserver";
 
+    private final ConnectionStateMachine connectionStateMachine;
+
+    public BLEConnectionObserver(ConnectionStateMachine connectionStateMachine) {
+        this.connectionStateMachine = connectionStateMachine;
+    }
+
     /**
      * Called when the Android device started connecting to given device.
      * The {@link #onDeviceConnected(BluetoothDevice)} will be called when the device is connected,
@@ -29,6 +32,7 @@ public class BLEConnectionObserver implements ConnectionObserver {
     @Override
     public void onDeviceConnecting(@NonNull BluetoothDevice device) {
         Log.d(tag, "CO onDeviceConnecting");
+        connectionStateMachine.onConnecting();
     }
 
     /**
@@ -40,6 +44,7 @@ public class BLEConnectionObserver implements ConnectionObserver {
     @Override
     public void onDeviceConnected(@NonNull BluetoothDevice device) {
         Log.d(tag, "CO onDeviceConnected");
+        connectionStateMachine.onConnected();
     }
 
     /**
@@ -51,6 +56,7 @@ public class BLEConnectionObserver implements ConnectionObserver {
     @Override
     public void onDeviceFailedToConnect(@NonNull BluetoothDevice device, int reason) {
         Log.d(tag, "CO onDeviceFailedToConnect");
+        connectionStateMachine.onFailedToConnect(reason);
     }
 
     /**
@@ -62,6 +68,7 @@ public class BLEConnectionObserver implements ConnectionObserver {
     public void onDeviceReady(@NonNull BluetoothDevice device) {
 
         Log.d(tag, "CO onDeviceReady");
+        connectionStateMachine.onReady();
 
     }
 
@@ -86,5 +93,6 @@ public class BLEConnectionObserver implements ConnectionObserver {
     @Override
     public void onDeviceDisconnected(@NonNull BluetoothDevice device, int reason) {
         Log.d(tag, "CO onDeviceDisconnected");
+        connectionStateMachine.onDisconnected(reason);
     }
 }
\ No newline at end of file
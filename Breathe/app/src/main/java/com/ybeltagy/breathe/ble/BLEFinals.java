@@ -11,6 +11,11 @@ public class BLEFinals {
     protected final static String INHALER_SERVICE_UUID_STRING = "e814c25d-7107-459e-b25d-23fec96d49da";
     protected final static String INHALER_IUE_CHAR_UUID_STRING = "d7dc7c50-48ce-45a4-9c3e-243a5bb75608";
 
+    // TODO: These characteristics transfer the wearable's offline log.
+    //  They have not been implemented yet on the wearable side. The app skips the transfer until they exist.
+    protected final static String WEARABLE_LOG_CONTROL_CHAR_UUID_STRING = "6c3f8a52-0b1e-4c8e-9d0a-7f3b2e51c940";
+    protected final static String WEARABLE_LOG_DATA_CHAR_UUID_STRING = "6c3f8a53-0b1e-4c8e-9d0a-7f3b2e51c940";
+
     // TODO: This is a characteristic to synchronize the clock of the inhaler.
     //  This has not been implemented yet on the inhaler side.
     protected final static String INHALER_CLOCK_CHAR_UUID_STRING = "015529f7-554c-4138-a71e-40a2dfede10a";
@@ -30,6 +35,11 @@ public class BLEFinals {
      */
     protected static final String BLE_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.ble.bonded_devices";
 
+    /**
+     * The file name of the shared preferences which holds the cached attribute handles of every device.
+     */
+    protected static final String GATT_CACHE_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.ble.gatt_cache";
+
     /**
      * The key used to pass a wearable sensor Bluetooth device in intents and to save the mac address in the shared preferences.
      */
@@ -50,4 +60,105 @@ public class BLEFinals {
      * The timeout for scanning for the wearable or the inhaler.
      */
     protected static final int SCANNER_TIMEOUT_SECONDS = 15;
+
+    /**
+     * The timeout for a background scan. Longer than the foreground timeout because the low power
+     * mode only listens for a fraction of the time.
+     */
+    protected static final int BACKGROUND_SCANNER_TIMEOUT_SECONDS = 60;
+
+    /**
+     * How long the controller may batch foreground scan results before delivering them.
+     * Kept short so it barely delays discovering a device.
+     */
+    protected static final long SCANNER_REPORT_DELAY_MILLIS = 250;
+
+    /**
+     * How long the controller may batch background scan results before delivering them.
+     */
+    protected static final long BACKGROUND_SCANNER_REPORT_DELAY_MILLIS = 5000;
+
+    /**
+     * The delay before the first reconnection attempt. Doubled after every failed attempt.
+     */
+    protected static final long RECONNECT_BASE_DELAY_MILLIS = 1000;
+
+    /**
+     * The maximum delay between two reconnection attempts.
+     */
+    protected static final long RECONNECT_MAX_DELAY_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * The number of direct connection attempts before handing over to Android's auto connect.
+     */
+    protected static final int RECONNECT_DIRECT_ATTEMPTS = 6;
+
+    /**
+     * The number of recent samples each LatencyStats keeps.
+     */
+    protected static final int LATENCY_SAMPLE_CAPACITY = 128;
+
+    /**
+     * The time a queued GATT operation may take before it fails and lets the next operation run.
+     */
+    protected static final long GATT_OPERATION_TIMEOUT_MILLIS = 10 * 1000;
+
+    /**
+     * The names the devices are logged and reported under.
+     */
+    public static final String INHALER_DEVICE_NAME = "Inhaler";
+    public static final String WEARABLE_DEVICE_NAME = "Wearable";
+
+    /**
+     * The name of the private file the link metrics are dumped to.
+     */
+    protected static final String BLE_METRICS_FILE_NAME = "ble_metrics.json";
+
+    /**
+     * The key used to save the mac addresses of all the wearables in the shared preferences.
+     * Replaces the single address saved under WEARABLE_BLUETOOTH_DEVICE_KEY, which is still read.
+     */
+    protected static final String WEARABLE_ADDRESSES_KEY = "com.ybeltagy.breathe.ble.wearable_addresses_key";
+
+    /**
+     * The maximum number of wearables kept connected at the same time.
+     * Android phones typically support around seven concurrent BLE connections and the inhaler needs one.
+     */
+    protected static final int MAX_WEARABLES = 4;
+
+    /**
+     * The number of recent readings kept per wearable.
+     */
+    protected static final int WEARABLE_SAMPLE_CAPACITY = 64;
+
+    /**
+     * Readings further than this from an IUE are not fused into its wearable data.
+     */
+    protected static final long WEARABLE_FUSION_WINDOW_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * Readings of other wearables at most this much further from the IUE than the nearest reading
+     * are averaged with it.
+     */
+    protected static final long WEARABLE_FUSION_AVERAGE_MILLIS = 60 * 1000;
+
+    /**
+     * The file name of the shared preferences which holds the log offset of every wearable.
+     */
+    protected static final String WEARABLE_LOG_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.ble.wearable_log";
+
+    /**
+     * The MTU requested from the wearable so the log frames carry as many readings as possible.
+     */
+    protected static final int WEARABLE_LOG_MTU = 247;
+
+    /**
+     * The number of log readings requested at once. A chunk must arrive within GATT_OPERATION_TIMEOUT_MILLIS.
+     */
+    protected static final int WEARABLE_LOG_CHUNK_SIZE = 256;
+
+    /**
+     * How often the RSSI of a connected inhaler is sampled. A rising RSSI triggers the context prefetch.
+     */
+    protected static final long INHALER_RSSI_POLL_MILLIS = 30 * 1000;
 }
@@ -0,0 +1,91 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Holds the {@link LinkMetrics} of every device and dumps them as JSON, so field issues can be
+ * diagnosed from real numbers rather than logs.
+ *
+ * The metrics live in memory only and restart with the process.
+ */
+public class BLEMetrics {
+
+    private static final String tag = BLEMetrics.class.getName();
+
+    /**
+     * Keyed by device name. Sorted so the dumps are stable.
+     */
+    private static final Map<String, LinkMetrics> links = new TreeMap<>();
+
+    /**
+     * @param deviceName the name of the device, see {@link BLEFinals#INHALER_DEVICE_NAME}
+     * @return the metrics of the device. Created on first use.
+     */
+    public static synchronized LinkMetrics get(String deviceName) {
+        LinkMetrics metrics = links.get(deviceName);
+        if (metrics == null) {
+            metrics = new LinkMetrics(deviceName);
+            links.put(deviceName, metrics);
+        }
+        return metrics;
+    }
+
+    /**
+     * @return the metrics of all the devices as a JSON object.
+     */
+    @SuppressLint("NewApi")
+    public static synchronized JSONObject toJson() throws JSONException {
+        JSONArray devices = new JSONArray();
+        for (LinkMetrics metrics : links.values()) {
+            devices.put(metrics.toJson());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("generated", BreatheClock.now().toString());
+        json.put("devices", devices);
+        return json;
+    }
+
+    /**
+     * @return a human readable summary of all the devices. Used by the diagnostics screen.
+     */
+    public static synchronized String getSummary() {
+        if (links.isEmpty()) return "No BLE activity yet";
+
+        StringBuilder sb = new StringBuilder();
+        for (LinkMetrics metrics : links.values()) {
+            sb.append(metrics).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the metrics to a private file.
+     * @param context the calling context
+     * @return the file or null if writing it failed.
+     */
+    public static File dump(Context context) {
+        try (FileOutputStream out = context.openFileOutput(BLEFinals.BLE_METRICS_FILE_NAME, Context.MODE_PRIVATE)) {
+            out.write(toJson().toString(2).getBytes());
+        } catch (IOException | JSONException e) {
+            Log.d(tag, e.toString());
+            return null;
+        }
+
+        return new File(context.getFilesDir(), BLEFinals.BLE_METRICS_FILE_NAME);
+    }
+}
@@ -7,292 +7,412 @@ import android.util.Log;
 
 import androidx.annotation.NonNull;
 
+import com.ybeltagy.breathe.collection.BreatheExecutors;
+
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.Executors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import no.nordicsemi.android.support.v18.scanner.BluetoothLeScannerCompat;
 import no.nordicsemi.android.support.v18.scanner.ScanCallback;
 import no.nordicsemi.android.support.v18.scanner.ScanFilter;
+import no.nordicsemi.android.support.v18.scanner.ScanRecord;
 import no.nordicsemi.android.support.v18.scanner.ScanResult;
 import no.nordicsemi.android.support.v18.scanner.ScanSettings;
 
 import static androidx.core.content.ContextCompat.startForegroundService;
 
 /**
- * Manages scanning for the wearable sensor
+ * Manages scanning for the wearable sensor and the inhaler.
+ *
+ * There is only ever one scan session. The devices the callers asked for are kept in a bitmask, so a
+ * request for a second device joins the running session instead of starting a second radio scan. The
+ * session stops as soon as every wanted device was found or when its timer runs out, whichever comes first.
+ *
+ * A foreground scan (the user pairing a device) filters on both service UUIDs. A background scan only
+ * looks for the saved devices: it filters on their addresses, so it never connects to another device
+ * of the same model nearby.
+ *
+ * All the state is kept in atomics and moved with compare-and-set, so the scan callbacks, the timer
+ * and the UI never block each other.
  */
 public class BLEScanner {
 
     private static final String tag = BLEScanner.class.getName();
 
     /**
-     * Used to make a timer.
+     * Used to make a timer. Shared with the reconnection timers.
      */
-    private static final ScheduledExecutorService executorTimer = Executors.newSingleThreadScheduledExecutor();
+    private static final ScheduledExecutorService executorTimer = BreatheExecutors.bleTimer();
 
     /**
-     * Currently Not Scanning for a device.
+     * The session is looking for devices.
      */
-    private static final byte NOT_SCANNING = 0;
+    private static final int SCANNING = 0;
 
     /**
-     * Currently Scanning for a device.
+     * The session is over. A stopped session never restarts; a new one is made instead.
      */
-    private static final byte SCANNING = 1;
+    private static final int STOPPED = 1;
 
     /**
-     * Found a device but scanning has not been terminated yet.
+     * Bit representing the wearable sensor in the wanted/found masks.
      */
-    private static final byte FOUND_DEVICE = 2;
+    protected static final int WEARABLE = 1;
 
     /**
-     * Are we scanning for the wearable right now or not?
+     * Bit representing the inhaler in the wanted/found masks.
      */
-    private volatile static byte scanningForWearable = NOT_SCANNING;
+    protected static final int INHALER = 1 << 1;
 
     /**
-     * Are we scanning for the inhaler right now or not?
+     * The running session or null if the phone is not scanning.
+     * Only the holder of the current session can clear it, so a late timer can't stop a newer session.
      */
-    private volatile static byte scanningForInhaler = NOT_SCANNING;
+    private static final AtomicReference<ScanSession> activeSession = new AtomicReference<>(null);
 
     /**
-     * returns the value of scanningForWearable which represents whether the device is currently scanning or not.
-     * @return value of scanningForWearable.
+     * Starts a foreground scan for a wearable. If a session is already running, the wearable is
+     * added to the devices it looks for.
+     * @param context
      */
-    private static byte getScanningForWearable(){
-        synchronized (BLEScanner.class){ // It should be unnecessary to synchronize, but just to be safe.
-            return scanningForWearable;
-        }
+    public static void scanForWearableSensor(Context context) {
+        scan(context, WEARABLE, WEARABLE, false, Collections.emptySet());
     }
 
     /**
-     * Sets the value of scanningForWearable which represents whether the device is currently scanning or not.
-     * @param scanningForWearable
+     * Starts a foreground scan for an inhaler. If a session is already running, the inhaler is
+     * added to the devices it looks for.
+     * @param context
      */
-    private static void setScanningForWearable(byte scanningForWearable) {
-        synchronized (BLEScanner.class){
-            BLEScanner.scanningForWearable = scanningForWearable;
-        }
+    public static void scanForInhaler(Context context) {
+        scan(context, INHALER, INHALER, false, Collections.emptySet());
     }
 
     /**
-     * returns the value of scanningForInhaler which represents whether the device is currently scanning or not.
-     * @return value of scanningForInhaler.
+     * Starts a low power scan for the given saved devices. Used by the BLEService to find saved devices
+     * which are not bonded without keeping the radio busy.
+     * @param context
+     * @param devices a mask of WEARABLE and/or INHALER
+     * @param addresses the mac addresses of the saved devices. Only these are reported.
      */
-    private static byte getScanningForInhaler(){
-        synchronized (BLEScanner.class){ // It should be unnecessary to synchronize, but just to be safe.
-            return scanningForInhaler;
-        }
+    protected static void scanInBackground(Context context, int devices, Set<String> addresses) {
+        if (addresses.isEmpty()) return; // An unfiltered background scan would report any device.
+        scan(context, devices, 0, true, addresses);
     }
 
     /**
-     * Sets the value of scanningForInhaler which represents whether the device is currently scanning or not.
-     * @param scanningForInhaler
+     * Adds the devices to the running session or starts a new session if none is running.
+     * A foreground request promotes a running background session to a low latency one.
+     * @param context
+     * @param devices a mask of WEARABLE and/or INHALER
+     * @param foreground the devices of the mask any device of the model will do for
+     * @param background true to use the duty-cycled low power mode
+     * @param addresses the only addresses reported for the other devices of the mask
      */
-    private static void setScanningForInhaler(byte scanningForInhaler) {
-        synchronized (BLEScanner.class){
-            BLEScanner.scanningForInhaler = scanningForInhaler;
+    private static void scan(Context context, int devices, int foreground, boolean background, Set<String> addresses) {
+
+        Set<String> knownAddresses = new HashSet<>(addresses);
+
+        while (true) {
+            ScanSession current = activeSession.get();
+
+            if (current == null) {
+                ScanSession session = new ScanSession(context.getApplicationContext(), devices, foreground,
+                        knownAddresses, background);
+                if (activeSession.compareAndSet(null, session)) {
+                    startSession(session);
+                    return;
+                }
+                continue; // Another caller started a session first. Join it instead.
+            }
+
+            // The radio filters of a session can't change. A foreground request should not wait on a
+            // slow background session, and a background session does not see addresses it was not
+            // started with. Either way, the session is restarted with everything it was looking for.
+            boolean promote = !background && current.background;
+            boolean widen = background && current.background && !current.knownAddresses.containsAll(knownAddresses);
+            if (promote || widen) {
+                Log.d(tag, promote ? "Promoting background scan to a foreground scan" : "Restarting background scan");
+                devices |= current.wantedDevices.get();
+                foreground |= current.foregroundDevices.get();
+                knownAddresses.addAll(current.knownAddresses);
+                stopScan(current);
+                continue;
+            }
+
+            // A foreground session filters on both UUIDs, so it will report the newly wanted devices.
+            current.want(devices, foreground, knownAddresses);
+            if (activeSession.get() == current) {
+                Log.d(tag, "Already scanning. Wanted devices: " + current.wantedDevices.get());
+                return;
+            }
+            // The session ended while joining it. Start a new one.
         }
     }
 
     /**
-     * Starts a scan (using the provided callback) for a device with the provided uuid.
-     * @param serviceUuid
-     * @param callback
-     * @return the scanner object
+     * Starts the radio scan of a session and schedules a timer to stop it.
+     * @param session a session which was just made the active session.
      */
-    private static BluetoothLeScannerCompat startScanner(String serviceUuid, ScanCallback callback){
-
-        // Initialize a scanner
-        BluetoothLeScannerCompat scanner = BluetoothLeScannerCompat.getScanner();
-
-        ScanSettings settings = new ScanSettings.Builder()
-                // Accept both legacy and new Bluetooth advertisements. not 100% sure about its necessity right now.
-                .setLegacy(false)
-                // A powerful but power consuming scan.
-                .setScanMode(no.nordicsemi.android.support.v18.scanner.ScanSettings.SCAN_MODE_LOW_LATENCY)
-                // Report results immediately
-                .setReportDelay(0)
-                // If hardware batching is supported, use it (default is true).
-                .setUseHardwareBatchingIfSupported(true)
-                // Report a device on first advertisement packet you find that matches the filter.
-                .setCallbackType(no.nordicsemi.android.support.v18.scanner.ScanSettings.CALLBACK_TYPE_FIRST_MATCH)
-                // Determine a match even with a weak signal and few advertisement packets.
-                .setMatchMode(no.nordicsemi.android.support.v18.scanner.ScanSettings.MATCH_MODE_AGGRESSIVE)
-                // Match one advertisement per filter (only match one wearable sensor)
-                .setNumOfMatches(no.nordicsemi.android.support.v18.scanner.ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
-                .build();
-        // todo: It will be useful if the behavior of the app is tested when two wearables or two inhalers are advertising.
-        //  will probably connect to only one of them with no guarantee of which.
+    private static void startSession(ScanSession session) {
 
-        // Make a filter that looks for the service UUID of the wearable Sensor.
-        // I modified the wearable sensor so it advertises its service UUID.
-        List<ScanFilter> filters = new ArrayList<>();
-        filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(serviceUuid)).build());
+        BluetoothLeScannerCompat.getScanner().startScan(getFilters(session), getSettings(session.background), session); // start the scan asynchronously.
 
-        scanner.startScan(filters, settings, callback); // start the scan asynchronously.
+        int timeout = session.background ? BLEFinals.BACKGROUND_SCANNER_TIMEOUT_SECONDS : BLEFinals.SCANNER_TIMEOUT_SECONDS;
 
-        return scanner;
+        // schedule a thread to stop the scanner.
+        executorTimer.schedule(() -> {
+            if (stopScan(session)) Log.d(tag, "In Scanner Timer: terminating scan");
+        }, timeout, TimeUnit.SECONDS);
     }
 
     /**
-     * Starts a scan for a wearable and schedules a timer to stop the scan if the phone is not scanning.
-     * If the phone is scanning, this method does nothing.
-     *
-     * This method is synchronized to avoid starting two scans at the same time.
-     * @param context
+     * Stops the session if it is still scanning.
+     * @param session the session to stop
+     * @return true if this call stopped the session. False if the session was already stopped.
      */
-    public static void scanForWearableSensor(Context context) {
+    private static boolean stopScan(ScanSession session) {
 
-        synchronized (BLEScanner.class){
+        if (session == null || !session.state.compareAndSet(SCANNING, STOPPED)) return false;
 
-            // Confirm the state didn't change.
-            if (getScanningForWearable() != NOT_SCANNING){
-                Log.d(tag, "Already Scanning for wearable");
-                return; // Already scanning for the wearable.
-            }
+        activeSession.compareAndSet(session, null);
+        BluetoothLeScannerCompat.getScanner().stopScan(session);
+        return true;
+    }
 
-            setScanningForWearable(SCANNING); // remember that the app is currently scanning
+    /**
+     * @return for a background session, filters for the addresses of the saved devices. Otherwise,
+     * filters for the service UUIDs of both the wearable sensor and the inhaler. Both peripherals
+     * include their service UUID in their advertisements.
+     */
+    private static List<ScanFilter> getFilters(ScanSession session) {
+        List<ScanFilter> filters = new ArrayList<>();
+        if (session.background) {
+            for (String address : session.knownAddresses) {
+                filters.add(new ScanFilter.Builder().setDeviceAddress(address).build());
+            }
+            return filters;
         }
 
-        WearableScanCallback callback = new WearableScanCallback(context);
+        filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(BLEFinals.WEARABLE_SERVICE_UUID_STRING)).build());
+        filters.add(new ScanFilter.Builder().setServiceUuid(ParcelUuid.fromString(BLEFinals.INHALER_SERVICE_UUID_STRING)).build());
+        return filters;
+    }
 
-        BluetoothLeScannerCompat scanner = startScanner(BLEFinals.WEARABLE_SERVICE_UUID_STRING, callback);
+    /**
+     * @param background true for a background session
+     * @return the scan settings of a session
+     */
+    private static ScanSettings getSettings(boolean background) {
+        return new ScanSettings.Builder()
+                // Accept both legacy and new Bluetooth advertisements. not 100% sure about its necessity right now.
+                .setLegacy(false)
+                // The foreground scan is powerful but power consuming. The background scan lets the
+                // controller duty-cycle the radio (a short scan window every few seconds).
+                .setScanMode(background ? ScanSettings.SCAN_MODE_LOW_POWER : ScanSettings.SCAN_MODE_LOW_LATENCY)
+                // Let the controller batch results so the app processor is not woken up for every advertisement.
+                // The foreground delay is kept short so it barely affects the time to discover a device.
+                .setReportDelay(background ? BLEFinals.BACKGROUND_SCANNER_REPORT_DELAY_MILLIS : BLEFinals.SCANNER_REPORT_DELAY_MILLIS)
+                // If hardware batching is supported, use it (default is true). Otherwise the library emulates it.
+                .setUseHardwareBatchingIfSupported(true)
+                // FIRST_MATCH can't be combined with a report delay on phones without filter offloading.
+                // Duplicates are dropped using the found mask instead.
+                .setCallbackType(ScanSettings.CALLBACK_TYPE_ALL_MATCHES)
+                // Determine a match even with a weak signal and few advertisement packets.
+                .setMatchMode(ScanSettings.MATCH_MODE_AGGRESSIVE)
+                // Match one advertisement per filter (only match one wearable sensor and one inhaler)
+                .setNumOfMatches(ScanSettings.MATCH_NUM_ONE_ADVERTISEMENT)
+                .build();
+        // todo: It will be useful if the behavior of the app is tested when two wearables or two inhalers are advertising.
+        //  will probably connect to only one of them with no guarantee of which.
+    }
 
-        // schedule a thread to stop the scanner.
-        executorTimer.schedule(new Runnable() {
-                                   @Override
-                                   public void run() {
-                                       Log.d(tag, "In Scanner Timer: terminating wearable scan");
-                                       scanner.stopScan(callback);
-                                       setScanningForWearable(NOT_SCANNING);
-                                   }}
-                , BLEFinals.SCANNER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+    /**
+     * @param result a scan result
+     * @return WEARABLE or INHALER depending on the advertised service UUID or 0 if neither is advertised.
+     */
+    private static int identifyDevice(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        if (record == null || record.getServiceUuids() == null) return 0;
+
+        List<ParcelUuid> serviceUuids = record.getServiceUuids();
+        if (serviceUuids.contains(ParcelUuid.fromString(BLEFinals.WEARABLE_SERVICE_UUID_STRING))) return WEARABLE;
+        if (serviceUuids.contains(ParcelUuid.fromString(BLEFinals.INHALER_SERVICE_UUID_STRING))) return INHALER;
+        return 0;
+    }
 
+    /**
+     * Atomically sets the bits in the mask.
+     */
+    private static void setBits(AtomicInteger mask, int bits) {
+        int current;
+        do {
+            current = mask.get();
+        } while (!mask.compareAndSet(current, current | bits));
     }
 
     /**
-     * If the phone is not scanning for an inhaler, starts a scan for an inhaler and schedules a timer to stop the scan
-     * If the phone is scanning for an inhaler, this method does nothing.
-     *
-     * This method is synchronized to avoid starting two scans at the same time.
-     * @param context
+     * Atomically clears the bits in the mask.
      */
-    public static void scanForInhaler(Context context) {
+    private static void clearBits(AtomicInteger mask, int bits) {
+        int current;
+        do {
+            current = mask.get();
+        } while (!mask.compareAndSet(current, current & ~bits));
+    }
 
-        synchronized (BLEScanner.class){
+    /**
+     * Atomically sets the bit in the mask if it was clear.
+     * @return true if this call set the bit.
+     */
+    private static boolean setBitIfClear(AtomicInteger mask, int bit) {
+        int current;
+        do {
+            current = mask.get();
+            if ((current & bit) != 0) return false;
+        } while (!mask.compareAndSet(current, current | bit));
+        return true;
+    }
 
-            // Confirm the state didn't change.
-            if (getScanningForInhaler() != NOT_SCANNING){
-                Log.d(tag, "Already Scanning for inhaler");
-                return; // Already scanning.
-            }
+    /**
+     * A single scan session. It is the scan callback of its own radio scan and it keeps track of
+     * the devices it is looking for and the devices it already reported.
+     */
+    private static class ScanSession extends ScanCallback {
 
-            setScanningForInhaler(SCANNING); // remember that the app is currently scanning
-        }
+        private final Context scannerContext;
 
-        InhalerScanCallback callback = new InhalerScanCallback(context);
+        /**
+         * True if this is a background (low power) session.
+         */
+        private final boolean background;
 
-        // Initialize a scanner
-        BluetoothLeScannerCompat scanner = startScanner(BLEFinals.INHALER_SERVICE_UUID_STRING, callback);
+        /**
+         * SCANNING or STOPPED.
+         */
+        private final AtomicInteger state = new AtomicInteger(SCANNING);
 
-        // schedule a thread to stop the scanner.
-        executorTimer.schedule(new Runnable() {
-                                   @Override
-                                   public void run() {
-                                       Log.d(tag, "In Scanner Timer: terminating inhaler scan");
-                                       scanner.stopScan(callback);
-                                       setScanningForInhaler(NOT_SCANNING);
-                                   }}
-                , BLEFinals.SCANNER_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        /**
+         * The devices this session is looking for.
+         */
+        private final AtomicInteger wantedDevices;
 
-    }
+        /**
+         * The wanted devices any device of the model will do for. Only the known addresses are
+         * reported for the others.
+         */
+        private final AtomicInteger foregroundDevices;
 
-    private static class WearableScanCallback extends ScanCallback{
+        /**
+         * The addresses of the saved devices this session looks for.
+         */
+        private final Set<String> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
 
-        private Context scannerContext;
+        /**
+         * The devices this session already passed to the BLEService.
+         */
+        private final AtomicInteger foundDevices = new AtomicInteger(0);
 
-        public WearableScanCallback(Context scannerContext){
+        public ScanSession(Context scannerContext, int wantedDevices, int foregroundDevices,
+                           Set<String> knownAddresses, boolean background) {
             this.scannerContext = scannerContext;
+            this.wantedDevices = new AtomicInteger(wantedDevices);
+            this.foregroundDevices = new AtomicInteger(foregroundDevices);
+            this.knownAddresses.addAll(knownAddresses);
+            this.background = background;
+        }
+
+        /**
+         * Adds the devices to the wanted mask. Clears their found bits because the caller wants a fresh result.
+         */
+        private void want(int devices, int foreground, Set<String> addresses) {
+            knownAddresses.addAll(addresses);
+            setBits(foregroundDevices, foreground);
+            setBits(wantedDevices, devices);
+            clearBits(foundDevices, devices);
         }
 
         /**
-         * Callback when a BLE advertisement has been found. Since the scanner filters on the wearable sensor UUID,
-         * a wearable sensor was found.
+         * Callback when a BLE advertisement has been found. Only used if the phone can't batch results.
          *
          * @param callbackType Determines how this callback was triggered. Could be one of
-         *                     {@link no.nordicsemi.android.support.v18.scanner.ScanSettings#CALLBACK_TYPE_ALL_MATCHES},
-         *                     {@link no.nordicsemi.android.support.v18.scanner.ScanSettings#CALLBACK_TYPE_FIRST_MATCH} or
-         *                     {@link no.nordicsemi.android.support.v18.scanner.ScanSettings#CALLBACK_TYPE_MATCH_LOST}
+         *                     {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES},
+         *                     {@link ScanSettings#CALLBACK_TYPE_FIRST_MATCH} or
+         *                     {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST}
          * @param result       A Bluetooth LE scan result.
          */
         @Override
         public void onScanResult(int callbackType, @NonNull ScanResult result) {
             super.onScanResult(callbackType, result);
+            handleResult(result);
+        }
 
-            Log.d(tag, "Wearable found: " + result.getDevice().getName() + "| MAC: " + result.getDevice().toString());
-
-            synchronized (BLEScanner.class){
-                // Confirm that the scanner is still on and this is the first found device.
-                byte currentState = getScanningForWearable();
-                if(currentState == NOT_SCANNING || currentState == FOUND_DEVICE) return;
-
-                // If the previous state was SCANNING, you can continue execution. Otherwise (FOUND_DEVICE or NOT_SCANNING), you can't.
-                setScanningForWearable(FOUND_DEVICE);
+        /**
+         * Callback when the batched results are delivered.
+         * @param results the results found since the last batch.
+         */
+        @Override
+        public void onBatchScanResults(@NonNull List<ScanResult> results) {
+            super.onBatchScanResults(results);
+            for (ScanResult result : results) {
+                handleResult(result);
             }
-
-
-            // Pass the discovered device to the BLE service
-            Intent intent = new Intent(scannerContext, BLEService.class);
-            intent.setAction(BLEFinals.ACTION_CONNECT_TO_WEARABLE);
-            intent.putExtra(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY, result.getDevice());
-            startForegroundService(scannerContext, intent);
-
         }
-    }
-
-    private static class InhalerScanCallback extends ScanCallback{
 
-        private Context scannerContext;
-
-        public InhalerScanCallback(Context scannerContext){
-            this.scannerContext = scannerContext;
+        @Override
+        public void onScanFailed(int errorCode) {
+            super.onScanFailed(errorCode);
+            Log.d(tag, "Scan failed with error code: " + errorCode);
+            stopScan(this);
         }
 
         /**
-         * Callback when a BLE advertisement has been found. Since the scanner filters on the inhaler service uuid,
-         * an inhaler was found.
-         **
-         * @param callbackType Determines how this callback was triggered. Could be one of
-         *                     {@link ScanSettings#CALLBACK_TYPE_ALL_MATCHES},
-         *                     {@link ScanSettings#CALLBACK_TYPE_FIRST_MATCH} or
-         *                     {@link ScanSettings#CALLBACK_TYPE_MATCH_LOST}
-         * @param result       A Bluetooth LE scan result.
+         * Passes the first result for every wanted device to the BLEService. Stops the session once
+         * all the wanted devices were found.
+         * @param result A Bluetooth LE scan result.
          */
-        @Override
-        public void onScanResult(int callbackType, @NonNull ScanResult result) {
-            super.onScanResult(callbackType, result);
+        private void handleResult(ScanResult result) {
 
-            Log.d(tag, "Inhaler found: " + result.getDevice().getName() + "| MAC: " + result.getDevice().toString());
+            if (state.get() != SCANNING) return; // This session is over.
 
-            synchronized (BLEScanner.class){
-                // Confirm that the scanner is still on and this is the first found device.
-                byte currentState = getScanningForInhaler();
-                if(currentState == NOT_SCANNING || currentState == FOUND_DEVICE) return;
+            int device = identifyDevice(result);
 
-                // If the previous state was SCANNING, you can continue execution. Otherwise (FOUND_DEVICE or NOT_SCANNING), you can't.
-                setScanningForInhaler(FOUND_DEVICE);
-            }
+            // A device only looked for in the background must be one of the saved devices.
+            if ((foregroundDevices.get() & device) == 0
+                    && !knownAddresses.contains(result.getDevice().getAddress())) return;
+
+            // Ignore devices nobody asked for and devices that were already reported.
+            if ((wantedDevices.get() & device) == 0 || !setBitIfClear(foundDevices, device)) return;
+
+            Log.d(tag, (device == WEARABLE ? "Wearable" : "Inhaler") + " found: " + result.getDevice().getName() + "| MAC: " + result.getDevice().toString());
 
             // Pass the discovered device to the BLE service
             Intent intent = new Intent(scannerContext, BLEService.class);
-            intent.setAction(BLEFinals.ACTION_CONNECT_TO_INHALER);
-            intent.putExtra(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY, result.getDevice());
+            if (device == WEARABLE) {
+                intent.setAction(BLEFinals.ACTION_CONNECT_TO_WEARABLE);
+                intent.putExtra(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY, result.getDevice());
+            } else {
+                intent.setAction(BLEFinals.ACTION_CONNECT_TO_INHALER);
+                intent.putExtra(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY, result.getDevice());
+            }
             startForegroundService(scannerContext, intent);
 
+            // Every wanted device was found. No need to keep the radio on until the timer runs out.
+            if ((wantedDevices.get() & ~foundDevices.get()) == 0 && stopScan(this)) {
+                Log.d(tag, "Found all wanted devices: terminating scan early");
+
+                // A caller may have joined right before the session stopped. Don't drop its request.
+                int missing = wantedDevices.get() & ~foundDevices.get();
+                if (missing != 0) scan(scannerContext, missing, missing & foregroundDevices.get(), background, knownAddresses);
+            }
         }
     }
 
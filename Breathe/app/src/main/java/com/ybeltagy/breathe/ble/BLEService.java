@@ -1,5 +1,6 @@
 package com.ybeltagy.breathe.ble;
 
+import android.annotation.SuppressLint;
 import android.app.Notification;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
@@ -13,10 +14,19 @@ import android.util.Log;
 import android.widget.Toast;
 
 import androidx.annotation.Nullable;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ybeltagy.breathe.data.WearableData;
 
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import no.nordicsemi.android.ble.BleManager;
 
@@ -37,9 +47,10 @@ public class BLEService extends Service {
     private static final String tag = BLEService.class.getName();
 
     /**
-     * BLEManager for the wearable. Represents a wearable.
+     * The wearables, keyed by mac address. Each has its own manager, state machine and sample stream.
+     * Reads only touch the map and the per-device objects, so they never lock.
      */
-    private static volatile WearableBLEManager wearableBLEManager = null;
+    private static final Map<String, WearableLink> wearables = new ConcurrentHashMap<>();
     // FIXME: Avoid using static for wearable/inhaler ble managers and instead implement the onBind functionality.
 
     /**
@@ -47,6 +58,11 @@ public class BLEService extends Service {
      */
     private static volatile InhalerBLEManager inhalerBLEManager = null;
 
+    /**
+     * Decides when to reconnect to the inhaler. Lives as long as inhalerBLEManager.
+     */
+    private static volatile ConnectionStateMachine inhalerConnection = null;
+
     /**
      * This receiver reports when Bluetooth is enabled or disabled.
      */
@@ -112,11 +128,11 @@ public class BLEService extends Service {
 
 
         // disconnect from connected devices.
-        cleanupBLEManager(wearableBLEManager);
-        wearableBLEManager = null;
+        cleanupWearables();
 
-        cleanupBLEManager(inhalerBLEManager);
+        cleanupBLEManager(inhalerBLEManager, inhalerConnection);
         inhalerBLEManager = null;
+        inhalerConnection = null;
     }
 
     /**
@@ -128,7 +144,8 @@ public class BLEService extends Service {
      *  Bluetooth disabled
      *      Disconnects from the current device.
      *  A device is found
-     *      Disconnects from the current device.
+     *      If it is the current device (or a known wearable), reconnects to it right away.
+     *      Otherwise, disconnects from the current inhaler, or adds the wearable next to the other wearables.
      *      Save the newly found device in the shared preferences.
      *      Connects with the newly found device.
      *  The app is opened.
@@ -140,20 +157,23 @@ public class BLEService extends Service {
         Log.d(tag, "I'm in onStartCommand");
 
         /**
-         * Found a device
-         *      Disconnects from the current device.
+         * Found a wearable
+         *      Makes room for it if it is new and all the wearable slots are taken.
          *      Save the newly found device in the shared preferences.
          *      Connects with the newly found device.
          */
         if(intent.getAction() != null && intent.getAction().equals(BLEFinals.ACTION_CONNECT_TO_WEARABLE)){
 
-
-
             BluetoothDevice wearableSensor = intent.getParcelableExtra(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY);
-            cleanupBLEManager(wearableBLEManager); // disconnect from any connected device.
-            wearableBLEManager = null;
-            saveBLEDevice(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY, wearableSensor); // save the wearable mac address in the shared preferences
-            connectToWearable(wearableSensor); // connect to the newly found one.
+
+            // A known wearable keeps its manager so the reconnect benefits from the GATT cache.
+            // A new wearable is added next to the others if there is room for it.
+            if(wearables.containsKey(wearableSensor.getAddress()) || makeRoomForWearable()){
+                saveWearable(wearableSensor); // save the wearable mac address in the shared preferences
+                connectToWearable(wearableSensor);
+            }else{
+                Toast.makeText(this, "Can't connect to more than " + BLEFinals.MAX_WEARABLES + " wearables", Toast.LENGTH_SHORT).show();
+            }
 
         }else if (intent.getAction() != null && intent.getAction().equals(BLEFinals.ACTION_CONNECT_TO_INHALER)){
 
@@ -165,10 +185,17 @@ public class BLEService extends Service {
              */
 
             BluetoothDevice inhaler = intent.getParcelableExtra(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY);
-            cleanupBLEManager(inhalerBLEManager); // disconnect from any connected device.
-            inhalerBLEManager = null;
             saveBLEDevice(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY, inhaler); // save the wearable mac address in the shared preferences
-            connectToInhaler(inhaler); // connect to the newly found one.
+
+            if(isManagerOf(inhalerBLEManager, inhaler)){
+                // Keep the manager so the reconnect benefits from the GATT cache.
+                inhalerConnection.connectNow();
+            }else{
+                cleanupBLEManager(inhalerBLEManager, inhalerConnection); // disconnect from any connected device.
+                inhalerBLEManager = null;
+                inhalerConnection = null;
+                connectToInhaler(inhaler); // connect to the newly found one.
+            }
 
         } else if (intent.getAction() != null && intent.getAction().equals(BLEFinals.ACTION_BLUETOOTH_DISABLED)){
             /**
@@ -176,20 +203,43 @@ public class BLEService extends Service {
              *      Disconnects from the current devices.
              */
 
-            cleanupBLEManager(wearableBLEManager); // disconnect from any connected device.
-            wearableBLEManager = null;
+            cleanupWearables(); // disconnect from any connected device.
 
-            cleanupBLEManager(inhalerBLEManager);
+            cleanupBLEManager(inhalerBLEManager, inhalerConnection);
             inhalerBLEManager = null;
+            inhalerConnection = null;
         }else{
             /**
              * Boot or Bluetooth Enabled or the app is opened
-             *      Attempt to connect to the bonded wearable sensor if the wearableBLEManager is not already connected.
+             *      Attempt to connect to the bonded wearable sensors which are not already connected.
              */
 
-            connectToWearable(findBondedAndSavedBLEDevice(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY));
+            // A device was saved but it is not bonded anymore. Look for its address with a low power scan.
+            int missingDevices = 0;
+            Set<String> missingAddresses = new HashSet<>();
+
+            for(String address : getSavedWearables()){
+                // More wearables may be saved than there are slots. The others wait for a free slot.
+                if(!wearables.containsKey(address) && wearables.size() >= BLEFinals.MAX_WEARABLES) continue;
+
+                BluetoothDevice wearableSensor = findDeviceInBondedDevices(address);
+                if(wearableSensor != null) connectToWearable(wearableSensor);
+                else{
+                    missingDevices |= BLEScanner.WEARABLE;
+                    missingAddresses.add(address);
+                }
+            }
 
-            connectToInhaler(findBondedAndSavedBLEDevice(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY));
+            BluetoothDevice inhaler = findBondedAndSavedBLEDevice(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY);
+            connectToInhaler(inhaler);
+
+            String inhalerAddress = sharedPreferences.getString(BLEFinals.INHALER_BLUETOOTH_DEVICE_KEY, null);
+            if(inhaler == null && inhalerAddress != null){
+                missingDevices |= BLEScanner.INHALER;
+                missingAddresses.add(inhalerAddress);
+            }
+
+            if(missingDevices != 0) BLEScanner.scanInBackground(this, missingDevices, missingAddresses);
 
         }
 
@@ -209,16 +259,56 @@ public class BLEService extends Service {
     }
 
     /**
-     * Synchronously queries the wearable sensor for wearable data and returns the result.
-     * This call is blocking so don't do it in the main UI thread.
-     * @return the current wearable data or null
-     * @deprecated Needs static BLEmanagers which cause annoying warnings
+     * Reads every connected wearable and fuses their recent readings into the wearable data of the
+     * given time. Does not block the caller.
+     *
+     * The reads go through the GattOperationQueue, which runs them one at a time on the BLE thread, so
+     * the future may take up to {@link BLEFinals#GATT_OPERATION_TIMEOUT_MILLIS} per connected wearable.
+     * A caller which stops waiting earlier still finds the late readings in the streams
+     * ({@link #getRecentWearableData(Instant, long)}).
+     * @param timestamp the time the wearable data is wanted for (usually an IUE timestamp)
+     * @return a future holding the fused wearable data or null if no wearable has a reading near the
+     * timestamp. A failed read only leaves that wearable out.
      */
-    public static WearableData getWearableData(){
+    @SuppressLint("NewApi")
+    public static ListenableFuture<WearableData> readWearableData(Instant timestamp){
         Log.d(tag, "Attempting to get wearable data");
-        if(wearableBLEManager == null || !wearableBLEManager.isConnected()) return null;
+        List<WearableLink> links = new ArrayList<>(wearables.values());
+
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            List<ListenableFuture<WearableData>> reads = new ArrayList<>();
+            for(WearableLink link : links){
+                if(link.manager.isConnected()) reads.add(link.read());
+            }
+
+            // Fuse once every read completed, whether it succeeded or not.
+            AtomicInteger pending = new AtomicInteger(reads.size() + 1);
+            Runnable onReadComplete = () -> {
+                if(pending.decrementAndGet() != 0) return;
+
+                List<List<WearableData>> streams = new ArrayList<>();
+                for(WearableLink link : links) streams.add(link.samples.snapshot());
+                completer.set(WearableFusion.fuse(timestamp, streams,
+                        BLEFinals.WEARABLE_FUSION_WINDOW_MILLIS, BLEFinals.WEARABLE_FUSION_AVERAGE_MILLIS));
+            };
 
-        return wearableBLEManager.getWeatherData();
+            for(ListenableFuture<WearableData> read : reads) read.addListener(onReadComplete, Runnable::run);
+            onReadComplete.run();
+
+            return "Read " + reads.size() + " wearables";
+        });
+    }
+
+    /**
+     * Fuses the readings the wearables already delivered (e.g. prefetched ones) without reading them.
+     * @param timestamp the time the wearable data is wanted for
+     * @param windowMillis how far from the timestamp a reading may be
+     * @return the fused wearable data or null if no wearable has a reading that close to the timestamp.
+     */
+    public static WearableData getRecentWearableData(Instant timestamp, long windowMillis){
+        List<List<WearableData>> streams = new ArrayList<>();
+        for(WearableLink link : wearables.values()) streams.add(link.samples.snapshot());
+        return WearableFusion.fuse(timestamp, streams, windowMillis, BLEFinals.WEARABLE_FUSION_AVERAGE_MILLIS);
     }
 
     /**
@@ -240,6 +330,54 @@ public class BLEService extends Service {
         return null;
     }
 
+    /**
+     * @return the mac addresses of the saved wearables, including the one saved by older versions.
+     */
+    private Set<String> getSavedWearables(){
+        Set<String> addresses = new HashSet<>(sharedPreferences.getStringSet(BLEFinals.WEARABLE_ADDRESSES_KEY, new HashSet<>()));
+
+        String legacyAddress = sharedPreferences.getString(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY, null);
+        if(legacyAddress != null) addresses.add(legacyAddress);
+
+        return addresses;
+    }
+
+    /**
+     * Adds the wearable to the saved wearables.
+     */
+    private void saveWearable(BluetoothDevice wearableSensor){
+        Set<String> addresses = getSavedWearables();
+        addresses.add(wearableSensor.getAddress());
+
+        sharedPreferences.edit()
+                .putStringSet(BLEFinals.WEARABLE_ADDRESSES_KEY, addresses)
+                .remove(BLEFinals.WEARABLE_BLUETOOTH_DEVICE_KEY) // migrated into the set.
+                .apply();
+    }
+
+    /**
+     * Makes room for one more wearable. If all the slots are taken, disconnects the wearable which is
+     * not ready and was ready the longest time ago (a wearable which never was ready goes first).
+     * The wearable stays saved. It is not reconnected on its own: the next boot, Bluetooth enable or app
+     * start connects it again if a slot is free then.
+     * @return true if there is room for one more wearable.
+     */
+    private boolean makeRoomForWearable(){
+        if(wearables.size() < BLEFinals.MAX_WEARABLES) return true;
+
+        WearableLink evicted = null;
+        for(WearableLink link : wearables.values()){
+            if(link.connection.getState() == ConnectionStateMachine.State.READY) continue;
+            if(evicted == null || link.connection.getReadyAt() < evicted.connection.getReadyAt()) evicted = link;
+        }
+        if(evicted == null) return false;
+
+        Log.d(tag, "Disconnecting wearable " + evicted.address + " to make room");
+        wearables.remove(evicted.address);
+        cleanupBLEManager(evicted.manager, evicted.connection);
+        return true;
+    }
+
     /**
      * Saves the address of the wearable sensor into the shared preference for future attempts to connect.
      * Then connects to the wearable sensor.
@@ -268,40 +406,56 @@ public class BLEService extends Service {
     }
 
     /**
-     * If wearableBLEManager is null, Connects to the wearableSensor parameter assuming it really is the wearable sensor.
-     * If wearableBLEManager is not null, does nothing.
+     * @param manager a BleManager or null
+     * @param device a Bluetooth device
+     * @return true if the manager was made for the device.
+     */
+    private static boolean isManagerOf(BleManager manager, BluetoothDevice device){
+        return manager != null && manager.getBluetoothDevice() != null
+                && manager.getBluetoothDevice().getAddress().equals(device.getAddress());
+    }
+
+    /**
+     * If the wearableSensor has no link, Connects to the wearableSensor parameter assuming it really is a wearable sensor.
+     * If it has a link, asks its state machine to connect now (if it is not connected already).
      * @param wearableSensor the Bluetooth device to connect to
      */
     private void connectToWearable(BluetoothDevice wearableSensor){
 
         if(wearableSensor == null) return;
 
-        if(wearableBLEManager != null){
-            Log.d(tag, "wearable BLE manager is not null");
+        WearableLink existing = wearables.get(wearableSensor.getAddress());
+        if(existing != null){
+            Log.d(tag, "wearable " + existing.address + " already has a link");
+            existing.connection.connectNow();
             return;
         }
 
-        wearableBLEManager = new WearableBLEManager(this);
-        //todo: is it better to reuse the manager or to make a new one?
-        // Since every manager is usually used exclusively for one device, I'm not sure reusing the manager is a good idea.
-        // Even if it is somewhat inefficient, I feel safer creating a new manager.
+        // The manager is kept for as long as the wearable is saved.
+        // Reconnecting with the same manager avoids rebuilding the connection state from scratch.
+        String deviceName = BLEFinals.WEARABLE_DEVICE_NAME + " " + wearableSensor.getAddress();
+        WearableBLEManager manager = new WearableBLEManager(this, deviceName);
 
-        wearableBLEManager.setConnectionObserver(new BLEConnectionObserver()); // todo: consider deleting. Mostly used for debugging.
+        ConnectionStateMachine connection = new ConnectionStateMachine(deviceName, autoConnect ->
+                manager.connect(wearableSensor)
+                        .useAutoConnect(autoConnect)
+                        .done(device -> {
+                            Log.d(tag, "Wearable connected: " + device);
+                            Toast.makeText(this, "Wearable: " + wearableSensor.getName() + " Connected", Toast.LENGTH_SHORT).show();
+                        })
+                        .enqueue());
 
+        manager.setConnectionStateMachine(connection);
+        manager.setConnectionObserver(new BLEConnectionObserver(connection));
 
-        wearableBLEManager.connect(wearableSensor)
-                .useAutoConnect(true)
-                .done(device -> {
-                    Log.d(tag, "Wearable connected: " + device);
-                    Toast.makeText(this, "Wearable: " + wearableSensor.getName() + " Connected", Toast.LENGTH_SHORT).show();
-                })
-                .enqueue();
+        wearables.put(wearableSensor.getAddress(), new WearableLink(wearableSensor.getAddress(), manager, connection));
 
+        connection.connectNow();
     }
 
     /**
      * If inhalerBLEManager is null, Connects to the inhaler parameter assuming it really is the inhaler.
-     * If inhalerBLEManager is not null, does nothing.
+     * If inhalerBLEManager is not null, asks its state machine to connect now (if it is not connected already).
      * @param inhaler the bluetooth device to connect to.
      */
     private void connectToInhaler(BluetoothDevice inhaler){
@@ -310,33 +464,50 @@ public class BLEService extends Service {
 
         if(inhalerBLEManager != null){
             Log.d(tag, "Inhaler BLE manager is not null");
+            inhalerConnection.connectNow();
             return;
         }
 
-        inhalerBLEManager = new InhalerBLEManager(this);
-        //todo: is it better to reuse the manager or to make a new one?
-        // Since every manager is usually used exclusively for one device, I'm not sure reusing the manager is a good idea.
-        // Even if it is somewhat inefficient, I feel safer creating a new manager.
+        // The manager is kept for as long as the inhaler is the saved inhaler.
+        // Reconnecting with the same manager avoids rebuilding the connection state from scratch.
+        InhalerBLEManager manager = new InhalerBLEManager(this);
 
-        inhalerBLEManager.setConnectionObserver(new BLEConnectionObserver()); // todo: consider deleting. Mostly used for debugging.
+        ConnectionStateMachine connection = new ConnectionStateMachine(BLEFinals.INHALER_DEVICE_NAME, autoConnect ->
+                manager.connect(inhaler)
+                        .useAutoConnect(autoConnect)
+                        .done(device -> {
+                            Log.d(tag, "Inhaler Connected: " + device);
+                            Toast.makeText(this, "Inhaler: " + inhaler.getName() + " Connected", Toast.LENGTH_SHORT).show();
+                        })
+                        .enqueue());
 
+        manager.setConnectionStateMachine(connection);
+        manager.setConnectionObserver(new BLEConnectionObserver(connection));
 
-        inhalerBLEManager.connect(inhaler)
-                .useAutoConnect(true)
-                .done(device -> {
-                    Log.d(tag, "Inhaler Connected: " + device);
-                    Toast.makeText(this, "Inhaler: " + inhaler.getName() + " Connected", Toast.LENGTH_SHORT).show();
-                })
-                .enqueue();
+        inhalerBLEManager = manager;
+        inhalerConnection = connection;
 
+        connection.connectNow();
     }
 
     /**
-     * Disconnects from the current wearable device and closes peripheralBLEManager.
-     * Sets peripheralBLEManager to null.
+     * Disconnects from all the wearables and drops their links. They stay saved.
+     */
+    private void cleanupWearables(){
+        for(WearableLink link : wearables.values()){
+            cleanupBLEManager(link.manager, link.connection);
+        }
+        wearables.clear();
+    }
+
+    /**
+     * Stops reconnecting, disconnects from the current device and closes peripheralBLEManager.
      * @param peripheralBLEManager the BleManager which should be disconnected.
+     * @param connection the state machine of the device or null.
      */
-    private void cleanupBLEManager(BleManager peripheralBLEManager){
+    private void cleanupBLEManager(BleManager peripheralBLEManager, ConnectionStateMachine connection){
+        if(connection != null) connection.close(); // close first so the disconnection is not treated as a link loss.
+
         // From the BleMulticonnectProfileService implemented in: https://github.com/NordicSemiconductor/Android-nRF-Toolbox
         // It seems a BLEManager connects with only one device.
         // Before connecting to a new device, disconnect from the first one.
@@ -352,7 +523,8 @@ public class BLEService extends Service {
                     fail( (device, status) -> {
                         Log.d(tag, device.getName() + " BLEManager Failed to disconnected");
                         peripheralBLEManager.close(); // close the manager whether the disconnection was a success or failure
-                    });
+                    }).
+                    enqueue();
         }else{ // If the device was not connected, close the manager.
             peripheralBLEManager.close();
         }
@@ -0,0 +1,298 @@
+package com.ybeltagy.breathe.ble;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.ybeltagy.breathe.collection.BreatheExecutors;
+
+import no.nordicsemi.android.ble.observer.ConnectionObserver;
+
+/**
+ * Tracks the connection of a single peripheral and decides when to reconnect to it.
+ *
+ * The first reconnection attempts are direct connections (fast, but they keep the radio busy) spaced
+ * by an exponential backoff with jitter, so the inhaler and the wearable don't retry in lockstep.
+ * After {@link BLEFinals#RECONNECT_DIRECT_ATTEMPTS} failures the device is probably out of range, so
+ * the machine hands over to Android's auto connect which waits for the device passively.
+ *
+ * The machine is driven by the {@link BLEConnectionObserver} of the device's BleManager.
+ */
+public class ConnectionStateMachine {
+
+    private static final String tag = ConnectionStateMachine.class.getName();
+
+    /**
+     * Used to schedule the reconnection attempts of all the devices.
+     */
+    private static final ScheduledExecutorService reconnectTimer = BreatheExecutors.bleTimer();
+
+    public enum State {
+        /**
+         * Not connected and no attempt is scheduled.
+         */
+        DISCONNECTED,
+        /**
+         * A connection attempt is running.
+         */
+        CONNECTING,
+        /**
+         * Connected. Services are being discovered and the device is being initialized.
+         */
+        DISCOVERING,
+        /**
+         * Connected and initialized.
+         */
+        READY,
+        /**
+         * Waiting for the backoff delay to pass before the next attempt.
+         */
+        BACKOFF,
+        /**
+         * Waiting for Android's auto connect to find the device.
+         */
+        WAITING,
+        /**
+         * The machine was closed and will not reconnect anymore.
+         */
+        CLOSED
+    }
+
+    /**
+     * Starts a connection attempt to the device.
+     */
+    public interface Reconnector {
+        /**
+         * @param autoConnect true to wait for the device passively, false for a direct connection.
+         */
+        void connect(boolean autoConnect);
+    }
+
+    private final String deviceName;
+    private final Reconnector reconnector;
+
+    private volatile State state = State.DISCONNECTED;
+
+    /**
+     * The number of consecutive failed attempts. Reset when the device is ready.
+     */
+    private int attempt = 0;
+
+    /**
+     * When the link was lost (elapsed realtime) or -1 if it was not lost.
+     */
+    private long linkLostAt = -1;
+
+    /**
+     * When the link came up (elapsed realtime). Used to measure service discovery and initialization.
+     */
+    private long connectedAt = -1;
+
+    /**
+     * When the device was last ready (elapsed realtime) or -1 if it never was.
+     */
+    private volatile long readyAt = -1;
+
+    private ScheduledFuture<?> pendingAttempt = null;
+
+    /**
+     * When the running connection attempt started (elapsed realtime) or -1. Used to measure the connect time.
+     */
+    private long connectingAt = -1;
+
+    /**
+     * Records the connect, discovery and reconnect times, the retries and the disconnect reasons.
+     */
+    private final LinkMetrics metrics;
+
+    /**
+     * True if the current connection found the cached attribute handles.
+     */
+    private boolean warmConnection = false;
+
+    /**
+     * @param deviceName used for logging.
+     * @param reconnector starts connection attempts.
+     */
+    public ConnectionStateMachine(String deviceName, Reconnector reconnector) {
+        this.deviceName = deviceName;
+        this.reconnector = reconnector;
+        this.metrics = BLEMetrics.get(deviceName);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public LinkMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return when the device was last ready (elapsed realtime) or -1 if it never was.
+     */
+    public long getReadyAt() {
+        return readyAt;
+    }
+
+    /**
+     * Starts a direct connection attempt now, cancelling any scheduled attempt.
+     * Does nothing if the device is connected, an attempt is already running or auto connect is waiting for it.
+     */
+    public synchronized void connectNow() {
+        if (state != State.DISCONNECTED && state != State.BACKOFF) return;
+
+        cancelPendingAttempt();
+        attempt = 0;
+        transition(State.CONNECTING);
+        reconnector.connect(false);
+    }
+
+    synchronized void onConnecting() {
+        if (state == State.CLOSED) return;
+        // Auto connect waits for the device to show up. That is not a connect time.
+        connectingAt = state == State.WAITING ? -1 : SystemClock.elapsedRealtime();
+        transition(State.CONNECTING);
+    }
+
+    synchronized void onConnected() {
+        if (state == State.CLOSED) return;
+        connectedAt = SystemClock.elapsedRealtime();
+        if (connectingAt >= 0) metrics.getConnectLatency().record(connectedAt - connectingAt);
+        connectingAt = -1;
+        warmConnection = false;
+        transition(State.DISCOVERING);
+    }
+
+    /**
+     * Called by the BleManager once the required services were found.
+     * @param warm true if the attribute handles matched the cached ones.
+     */
+    synchronized void onServicesResolved(boolean warm) {
+        warmConnection = warm;
+    }
+
+    synchronized void onReady() {
+        if (state == State.CLOSED) return;
+
+        long now = SystemClock.elapsedRealtime();
+        if (connectedAt >= 0) {
+            (warmConnection ? metrics.getWarmDiscoveryLatency() : metrics.getColdDiscoveryLatency())
+                    .record(now - connectedAt);
+        }
+        if (linkLostAt >= 0) {
+            metrics.getReconnectLatency().record(now - linkLostAt);
+            Log.d(tag, deviceName + " reconnect latency: " + metrics.getReconnectLatency());
+        }
+        metrics.recordConnectionReady();
+
+        readyAt = now;
+        linkLostAt = -1;
+        attempt = 0;
+        transition(State.READY);
+    }
+
+    synchronized void onFailedToConnect(int reason) {
+        if (state == State.CLOSED) return;
+        Log.d(tag, deviceName + " failed to connect. Reason: " + reason);
+        metrics.recordConnectFailure(reason);
+        connectingAt = -1;
+        if (linkLostAt < 0) linkLostAt = SystemClock.elapsedRealtime();
+        scheduleReconnect();
+    }
+
+    synchronized void onDisconnected(int reason) {
+        if (state == State.CLOSED) return;
+        Log.d(tag, deviceName + " disconnected. Reason: " + reason);
+        metrics.recordDisconnect(reason);
+        connectingAt = -1;
+
+        // The app asked for the disconnection. Don't fight it.
+        if (reason == ConnectionObserver.REASON_SUCCESS || reason == ConnectionObserver.REASON_TERMINATE_LOCAL_HOST) {
+            transition(State.DISCONNECTED);
+            return;
+        }
+
+        // The device lacks the required service. Reconnecting can't fix that, it would loop forever.
+        if (reason == ConnectionObserver.REASON_NOT_SUPPORTED) {
+            Log.d(tag, deviceName + " is not supported. Not reconnecting");
+            cancelPendingAttempt();
+            transition(State.DISCONNECTED);
+            return;
+        }
+
+        if (linkLostAt < 0) linkLostAt = SystemClock.elapsedRealtime();
+        scheduleReconnect();
+    }
+
+    /**
+     * Stops reconnecting. A closed machine ignores all events.
+     */
+    public synchronized void close() {
+        cancelPendingAttempt();
+        transition(State.CLOSED);
+    }
+
+    /**
+     * Schedules the next direct attempt after a jittered backoff or hands over to auto connect.
+     */
+    private void scheduleReconnect() {
+        cancelPendingAttempt();
+
+        if (attempt >= BLEFinals.RECONNECT_DIRECT_ATTEMPTS) {
+            if (state == State.WAITING) return; // auto connect is already waiting for the device.
+            Log.d(tag, deviceName + ": handing over to auto connect");
+            transition(State.WAITING);
+            metrics.recordAutoConnectHandover();
+            reconnector.connect(true);
+            return;
+        }
+
+        long delay = getBackoffMillis(attempt, ThreadLocalRandom.current());
+        attempt++;
+        metrics.recordRetry();
+        transition(State.BACKOFF);
+        Log.d(tag, deviceName + ": attempt " + attempt + " in " + delay + "ms");
+
+        pendingAttempt = reconnectTimer.schedule(() -> {
+            synchronized (ConnectionStateMachine.this) {
+                if (state != State.BACKOFF) return;
+                pendingAttempt = null;
+                transition(State.CONNECTING);
+                reconnector.connect(false);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelPendingAttempt() {
+        if (pendingAttempt != null) {
+            pendingAttempt.cancel(false);
+            pendingAttempt = null;
+        }
+    }
+
+    private void transition(State next) {
+        if (state != next) Log.d(tag, deviceName + ": " + state + " -> " + next);
+        state = next;
+    }
+
+    /**
+     * Exponential backoff with "equal jitter": half of the delay is fixed and the other half is random.
+     * This keeps a minimum spacing between attempts while spreading devices that dropped together.
+     * @param attempt the number of attempts already made
+     * @param random a source of randomness
+     * @return the delay before the next attempt in milliseconds.
+     */
+    static long getBackoffMillis(int attempt, Random random) {
+        long ceiling = BLEFinals.RECONNECT_BASE_DELAY_MILLIS << Math.min(attempt, 20);
+        ceiling = Math.min(ceiling, BLEFinals.RECONNECT_MAX_DELAY_MILLIS);
+
+        long half = ceiling / 2;
+        return half + (long) (random.nextDouble() * (ceiling - half));
+    }
+}
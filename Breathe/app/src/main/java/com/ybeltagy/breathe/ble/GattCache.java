@@ -0,0 +1,64 @@
+package com.ybeltagy.breathe.ble;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Remembers the attribute handles (instance ids) of the characteristics the app uses, per device.
+ *
+ * Android keeps its own attribute cache for bonded devices and serves service discovery from it, so a
+ * reconnect only pays for a full discovery when that cache is cleared. The app never clears it and the
+ * BLEService keeps the BleManagers alive across reconnects. This class tells whether a connection found
+ * the same handles as the previous one (a warm reconnect) or a changed attribute table
+ * (e.g. a firmware update on the peripheral), and keeps the handles across app restarts.
+ */
+class GattCache {
+
+    /**
+     * In memory copy of the shared preferences. Keyed by mac address.
+     */
+    private static final Map<String, String> handles = new ConcurrentHashMap<>();
+
+    private final SharedPreferences sharedPreferences;
+
+    GattCache(Context context) {
+        sharedPreferences = context.getSharedPreferences(BLEFinals.GATT_CACHE_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Compares the discovered characteristics with the cached ones and saves them if they differ.
+     * @param address the mac address of the device
+     * @param characteristics the characteristics the app uses
+     * @return true if the handles match the cached handles.
+     */
+    boolean matches(String address, BluetoothGattCharacteristic... characteristics) {
+        String signature = getSignature(characteristics);
+
+        String cached = handles.get(address);
+        if (cached == null) {
+            cached = sharedPreferences.getString(address, null);
+            if (cached != null) handles.put(address, cached);
+        }
+
+        if (signature.equals(cached)) return true;
+
+        handles.put(address, signature);
+        sharedPreferences.edit().putString(address, signature).apply();
+        return false;
+    }
+
+    /**
+     * @return a string of uuid:instanceId pairs identifying the attribute handles.
+     */
+    private static String getSignature(BluetoothGattCharacteristic... characteristics) {
+        StringBuilder sb = new StringBuilder();
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            sb.append(characteristic.getUuid()).append(':').append(characteristic.getInstanceId()).append(';');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,206 @@
+package com.ybeltagy.breathe.ble;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serializes the GATT operations of all the peripherals on a single BLE I/O thread.
+ *
+ * Operations run one at a time in priority order (FIFO within the same priority). An operation is
+ * asynchronous: it starts a request and completes its future from a GATT callback, and only then does
+ * the next operation start. Callers get a ListenableFuture instead of blocking a thread on the result.
+ *
+ * The BleManagers deliver their callbacks on the same thread (see {@link #getHandler()}), so the queue
+ * and everything it touches is confined to the BLE thread and needs no locking.
+ */
+public class GattOperationQueue {
+
+    private static final String tag = GattOperationQueue.class.getName();
+
+    /**
+     * Inhaler indications and the processing of the IUE they carry. Never waits behind anything else.
+     */
+    public static final int PRIORITY_INHALER_INDICATION = 0;
+
+    /**
+     * Reads someone is waiting for, such as the wearable data of a new IUE.
+     */
+    public static final int PRIORITY_ON_DEMAND = 1;
+
+    /**
+     * Long transfers which can yield to everything else, such as downloading the wearable log.
+     */
+    public static final int PRIORITY_BULK = 2;
+
+    /**
+     * Starts a GATT operation.
+     * @param <T> the type of the result
+     */
+    public interface GattOperation<T> {
+        /**
+         * Starts the operation on the BLE thread. The operation must eventually complete the completer,
+         * otherwise it fails after {@link BLEFinals#GATT_OPERATION_TIMEOUT_MILLIS}.
+         * @param completer completes the future returned to the caller.
+         */
+        void start(CallbackToFutureAdapter.Completer<T> completer);
+    }
+
+    private static final HandlerThread bleThread = new HandlerThread("BLE I/O");
+
+    private static final Handler bleHandler;
+
+    static {
+        bleThread.start();
+        bleHandler = new Handler(bleThread.getLooper());
+    }
+
+    /**
+     * Breaks ties between operations of the same priority.
+     */
+    private static final AtomicLong sequence = new AtomicLong(0);
+
+    /**
+     * The waiting operations. Only touched on the BLE thread.
+     */
+    private static final PriorityQueue<QueuedOperation<?>> queue = new PriorityQueue<>();
+
+    /**
+     * The running operation or null. Only touched on the BLE thread.
+     */
+    private static QueuedOperation<?> current = null;
+
+    /**
+     * @return the handler of the BLE thread. The BleManagers use it for their callbacks.
+     */
+    static Handler getHandler() {
+        return bleHandler;
+    }
+
+    /**
+     * Queues an operation.
+     * @param priority one of the PRIORITY constants. Lower runs first.
+     * @param name describes the operation. Used for logging.
+     * @param operation the operation
+     * @param <T> the type of the result
+     * @return a future which completes when the operation completes.
+     * Cancelling it before the operation starts removes the operation from the queue.
+     */
+    public static <T> ListenableFuture<T> submit(int priority, String name, GattOperation<T> operation) {
+
+        QueuedOperation<T> queued = new QueuedOperation<>(priority, sequence.getAndIncrement(), name, operation);
+
+        ListenableFuture<T> future = CallbackToFutureAdapter.getFuture(completer -> {
+            queued.completer = completer;
+            return name;
+        });
+
+        // Whichever way the future completes, let the next operation run.
+        future.addListener(() -> bleHandler.post(() -> onFinished(queued)), Runnable::run);
+
+        bleHandler.post(() -> {
+            if (future.isDone()) return; // cancelled before it was queued.
+            queue.add(queued);
+            runNext();
+        });
+
+        return future;
+    }
+
+    /**
+     * Queues work which is not a GATT request but must be ordered with them, like processing an indication.
+     * @param priority one of the PRIORITY constants. Lower runs first.
+     * @param name describes the task. Used for logging.
+     * @param task runs on the BLE thread.
+     * @return a future which completes when the task ran.
+     */
+    public static ListenableFuture<Void> submitTask(int priority, String name, Runnable task) {
+        return submit(priority, name, (CallbackToFutureAdapter.Completer<Void> completer) -> {
+            task.run();
+            completer.set(null);
+        });
+    }
+
+    /**
+     * Starts the next operation if none is running. Runs on the BLE thread.
+     */
+    private static void runNext() {
+        if (current != null) return;
+
+        current = queue.poll();
+        if (current == null) return;
+
+        QueuedOperation<?> started = current;
+        bleHandler.postDelayed(started.timeout, BLEFinals.GATT_OPERATION_TIMEOUT_MILLIS);
+        started.start();
+    }
+
+    /**
+     * Called when the future of an operation completes. Runs on the BLE thread.
+     */
+    private static void onFinished(QueuedOperation<?> finished) {
+        bleHandler.removeCallbacks(finished.timeout);
+
+        if (current == finished) {
+            current = null;
+            runNext();
+        } else {
+            queue.remove(finished); // cancelled while waiting.
+        }
+    }
+
+    private static class QueuedOperation<T> implements Comparable<QueuedOperation<?>> {
+
+        private final int priority;
+        private final long sequence;
+        private final String name;
+        private final GattOperation<T> operation;
+
+        /**
+         * Set by CallbackToFutureAdapter before the operation is queued.
+         */
+        private CallbackToFutureAdapter.Completer<T> completer;
+
+        /**
+         * Fails the operation if it does not complete in time so it can't stall the queue.
+         */
+        private final Runnable timeout = new Runnable() {
+            @Override
+            public void run() {
+                Log.d(tag, "Timed out: " + QueuedOperation.this.name);
+                completer.setException(new TimeoutException(QueuedOperation.this.name + " timed out"));
+            }
+        };
+
+        QueuedOperation(int priority, long sequence, String name, GattOperation<T> operation) {
+            this.priority = priority;
+            this.sequence = sequence;
+            this.name = name;
+            this.operation = operation;
+        }
+
+        private void start() {
+            try {
+                operation.start(completer);
+            } catch (Exception e) {
+                Log.d(tag, name + " failed to start: " + e.toString());
+                completer.setException(e);
+            }
+        }
+
+        @Override
+        public int compareTo(@NonNull QueuedOperation<?> other) {
+            if (priority != other.priority) return Integer.compare(priority, other.priority);
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+}
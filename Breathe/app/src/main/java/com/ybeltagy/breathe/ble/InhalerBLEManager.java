@@ -6,14 +6,17 @@ import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattService;
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
 
 import com.ybeltagy.breathe.collection.BreatheRepository;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.time.Instant;
+import com.ybeltagy.breathe.collection.ContextPrefetcher;
+import com.ybeltagy.breathe.collection.IngestTracer;
+
+import java.io.IOException;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManager;
@@ -24,7 +27,7 @@ import no.nordicsemi.android.ble.BleManager;
 /**
  * Represents the inhaler.
  */
-public class InhalerBLEManager extends BleManager {
+public class InhalerBLEManager extends BleManager implements PeripheralTransport.Indicating {
 
     public final static UUID SERVICE_UUID = UUID.fromString(BLEFinals.INHALER_SERVICE_UUID_STRING);
     public final static UUID IUE_CHAR_UUID = UUID.fromString(BLEFinals.INHALER_IUE_CHAR_UUID_STRING);
@@ -34,8 +37,85 @@ public class InhalerBLEManager extends BleManager {
     // This characteristic sends indications for the iue Data.
     private BluetoothGattCharacteristic iueCharacteristic = null;
 
+    /**
+     * Remembers the attribute handles of the device between connections.
+     */
+    private final GattCache gattCache;
+
+    /**
+     * Tracks the connection of the device. Told whether the services came from the GATT cache.
+     */
+    private ConnectionStateMachine connectionStateMachine = null;
+
     InhalerBLEManager(@NonNull final Context context) {
-        super(context);
+        super(context, GattOperationQueue.getHandler()); // deliver the GATT callbacks on the BLE thread.
+        gattCache = new GattCache(context);
+    }
+
+    /**
+     * Sets the state machine which is told whether the attribute handles matched the cached ones.
+     * @param connectionStateMachine the state machine of the device this manager connects to.
+     */
+    void setConnectionStateMachine(ConnectionStateMachine connectionStateMachine) {
+        this.connectionStateMachine = connectionStateMachine;
+    }
+
+    /**
+     * Records the traffic, RSSI and indication to commit latency of the inhaler.
+     */
+    private final LinkMetrics metrics = BLEMetrics.get(BLEFinals.INHALER_DEVICE_NAME);
+
+    /**
+     * When the indication being processed was received (elapsed realtime). Only touched on the BLE thread.
+     */
+    private long indicationReceivedAt = -1;
+
+    /**
+     * Receives the IUE indications. By default, the IUEs start the data collection.
+     */
+    private volatile FrameListener frameListener = new InhalerIngest(iueTimestamp -> {
+        final long receivedAt = indicationReceivedAt;
+        IngestTracer.record(getContext(), BLEFinals.INHALER_DEVICE_NAME, IngestTracer.Stage.RECEIVED, iueTimestamp);
+        BreatheRepository.startDataCollection(iueTimestamp, getContext(), () -> { // TODO: find a better place to call this
+            metrics.getIndicationToCommitLatency().record(SystemClock.elapsedRealtime() - receivedAt);
+            IngestTracer.record(getContext(), BLEFinals.INHALER_DEVICE_NAME, IngestTracer.Stage.COMMITTED, iueTimestamp);
+        });
+    });
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Samples the RSSI while the inhaler is connected. Runs on the BLE thread.
+     */
+    private final Runnable rssiPoll = new Runnable() {
+        @Override
+        public void run() {
+            if (!isConnected()) return;
+            sampleRssi();
+            GattOperationQueue.getHandler().postDelayed(this, BLEFinals.INHALER_RSSI_POLL_MILLIS);
+        }
+    };
+
+    /**
+     * Queues an RSSI read behind everything else, records the result in the link metrics and
+     * tells the prefetcher, which watches for the inhaler being picked up.
+     */
+    private void sampleRssi() {
+        GattOperationQueue.submit(GattOperationQueue.PRIORITY_BULK, "Read inhaler RSSI",
+                (CallbackToFutureAdapter.Completer<Integer> completer) -> readRssi()
+                        .with((device, rssi) -> {
+                            metrics.recordRssi(rssi);
+                            ContextPrefetcher.onInhalerRssi(getContext(), rssi);
+                            completer.set(rssi);
+                        })
+                        .fail((device, status) -> completer.setException(
+                                new IOException("Reading the RSSI failed with status " + status)))
+                        .invalid(() -> completer.setException(
+                                new IllegalStateException("Inhaler is not connected")))
+                        .enqueue());
     }
 
     @NonNull
@@ -67,8 +147,15 @@ public class InhalerBLEManager extends BleManager {
                 return false;
 
             // Ensure iue characteristic has an indication property.
-            return (iueCharacteristic.getProperties() &
+            boolean supported = (iueCharacteristic.getProperties() &
                     BluetoothGattCharacteristic.PROPERTY_INDICATE) != 0; // fixme: change to indicate if the inhaler code is modified
+
+            if (supported && connectionStateMachine != null) {
+                connectionStateMachine.onServicesResolved(
+                        gattCache.matches(gatt.getDevice().getAddress(), iueCharacteristic));
+            }
+
+            return supported;
         }
 
         /**
@@ -96,40 +183,34 @@ public class InhalerBLEManager extends BleManager {
                     .done(callback -> Log.d(tag, "Target initialized - callback" + callback.toString()))
                     .enqueue();
 
-            setIndicationCallback(iueCharacteristic).with(
-                    (device, data) ->
-                    {
-                    Log.d(tag, "Received IUE");
-
-                    if (data.size() != 8){
-                        Log.d(tag, "wrong size"); // corrupt data
-                        return;
-                    }
-
-                    //fixme: be aware that this is a signed epoch.
-                    ByteBuffer buf = ByteBuffer.wrap(data.getValue()).order(ByteOrder.LITTLE_ENDIAN);
-
-                    long num = buf.getLong();
-
-                    Instant iueTimestamp = Instant.ofEpochMilli((long)num);
-
-                    Context curContext = getContext();
-                    BreatheRepository.startDataCollection(iueTimestamp, curContext); // TODO: find a better place to call this
-
-                    StringBuilder sb = new StringBuilder();
-
-                    for(byte b : data.getValue()){
-                        sb.append(String.format("%02X-", b));
-                    }
-                    Log.d(tag, sb.toString());
-                    Log.d(tag, Long.toString(num));
-                    Log.d(tag, iueTimestamp.toString());
-
+            // The stack acknowledges the indication. Its processing jumps ahead of any queued
+            // wearable read or log transfer.
+            setIndicationCallback(iueCharacteristic).with((device, data) -> {
+                metrics.recordFrame(data.size());
+                final long receivedAt = SystemClock.elapsedRealtime();
+
+                GattOperationQueue.submitTask(
+                        GattOperationQueue.PRIORITY_INHALER_INDICATION, "Process IUE indication",
+                        () -> {
+                            indicationReceivedAt = receivedAt;
+                            frameListener.onFrame(data.getValue());
+                            sampleRssi();
+                        });
             });
 
             enableIndications(iueCharacteristic).enqueue(); // This enables indicates and guarantees bonding.
         }
 
+        /**
+         * Starts sampling the RSSI and prefetches the context of the next IUE.
+         */
+        @Override
+        protected void onDeviceReady() {
+            GattOperationQueue.getHandler().removeCallbacks(rssiPoll);
+            rssiPoll.run();
+            ContextPrefetcher.onDeviceConnected(getContext(), BLEFinals.INHALER_DEVICE_NAME);
+        }
+
         /**
          * When the device disconnects clear the characteristic.
          */
@@ -137,6 +218,7 @@ public class InhalerBLEManager extends BleManager {
         protected void onDeviceDisconnected() {
             // Device disconnected. Release your references here.
             iueCharacteristic = null;
+            GattOperationQueue.getHandler().removeCallbacks(rssiPoll);
         }
     }
     
@@ -0,0 +1,82 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+
+/**
+ * Turns the frames the inhaler indicates into IUE timestamps and hands them to a sink.
+ */
+public class InhalerIngest implements PeripheralTransport.FrameListener {
+
+    private static final String tag = InhalerIngest.class.getName();
+
+    /**
+     * The size of an IUE frame: a little endian epoch in milliseconds.
+     */
+    public static final int IUE_FRAME_SIZE = 8;
+
+    /**
+     * Receives the IUEs.
+     */
+    public interface IUESink {
+        /**
+         * @param timestamp the timestamp of the IUE.
+         */
+        void onIUE(Instant timestamp);
+    }
+
+    private final IUESink sink;
+
+    public InhalerIngest(IUESink sink) {
+        this.sink = sink;
+    }
+
+    @Override
+    public void onFrame(byte[] frame) {
+        Log.d(tag, "Received IUE");
+
+        Instant iueTimestamp = parseIUE(frame);
+        if (iueTimestamp == null) {
+            Log.d(tag, "wrong size"); // corrupt data
+            return;
+        }
+
+        sink.onIUE(iueTimestamp);
+
+        StringBuilder sb = new StringBuilder();
+
+        for(byte b : frame){
+            sb.append(String.format("%02X-", b));
+        }
+        Log.d(tag, sb.toString());
+        Log.d(tag, iueTimestamp.toString());
+    }
+
+    /**
+     * @param frame the value of the IUE characteristic
+     * @return the timestamp of the IUE or null if the frame is corrupt.
+     */
+    @SuppressLint("NewApi")
+    public static Instant parseIUE(byte[] frame) {
+        if (frame == null || frame.length != IUE_FRAME_SIZE) return null;
+
+        //fixme: be aware that this is a signed epoch.
+        ByteBuffer buf = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        return Instant.ofEpochMilli(buf.getLong());
+    }
+
+    /**
+     * The inverse of {@link #parseIUE(byte[])}. Used by the simulated inhaler.
+     * @param timestamp the timestamp of the IUE
+     * @return the value of the IUE characteristic
+     */
+    @SuppressLint("NewApi")
+    public static byte[] encodeIUE(Instant timestamp) {
+        return ByteBuffer.allocate(IUE_FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putLong(timestamp.toEpochMilli()).array();
+    }
+}
@@ -0,0 +1,73 @@
+package com.ybeltagy.breathe.ble;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Keeps the most recent latency samples in a ring buffer and computes percentiles over them.
+ * Old samples are overwritten once the buffer is full, so the percentiles follow recent behavior.
+ *
+ * This class is thread safe.
+ */
+public class LatencyStats {
+
+    private final long[] samples;
+
+    /**
+     * The index the next sample is written to.
+     */
+    private int next = 0;
+
+    /**
+     * The number of valid samples (at most samples.length).
+     */
+    private int count = 0;
+
+    /**
+     * @param capacity the number of recent samples to keep.
+     */
+    public LatencyStats(int capacity) {
+        samples = new long[capacity];
+    }
+
+    /**
+     * Records a sample.
+     * @param millis the latency in milliseconds
+     */
+    public synchronized void record(long millis) {
+        samples[next] = millis;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) count++;
+    }
+
+    /**
+     * @return the number of samples the percentiles are computed over.
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    /**
+     * Uses the nearest-rank method.
+     * @param percentile a number in (0, 100]
+     * @return the requested percentile in milliseconds or -1 if there are no samples.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) return -1;
+
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+
+        int rank = (int) Math.ceil(percentile / 100.0 * count);
+        return sorted[Math.max(0, Math.min(count, rank) - 1)];
+    }
+
+    /**
+     * @return a short human readable summary. Used for logging.
+     */
+    @Override
+    public String toString() {
+        return String.format(Locale.ENGLISH, "p50=%dms p90=%dms p99=%dms n=%d",
+                getPercentile(50), getPercentile(90), getPercentile(99), getCount());
+    }
+}
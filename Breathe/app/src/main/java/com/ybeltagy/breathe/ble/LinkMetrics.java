@@ -0,0 +1,287 @@
+package com.ybeltagy.breathe.ble;
+
+import android.os.SystemClock;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+import no.nordicsemi.android.ble.observer.ConnectionObserver;
+
+/**
+ * The measurements of the link to a single peripheral: connection and discovery times, the latency
+ * from an IUE indication to its row being committed, traffic, RSSI, disconnect reasons and retries.
+ *
+ * Get the instance of a device from {@link BLEMetrics#get(String)}.
+ * This class is thread safe.
+ */
+public class LinkMetrics {
+
+    private final String deviceName;
+
+    /**
+     * The time from starting a connection attempt to the link coming up.
+     */
+    private final LatencyStats connectLatency = new LatencyStats(BLEFinals.LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * The time from the link coming up to the device being ready when the attribute handles matched
+     * the cached ones (discovery was served from Android's GATT cache).
+     */
+    private final LatencyStats warmDiscoveryLatency = new LatencyStats(BLEFinals.LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * The time from the link coming up to the device being ready after a full discovery.
+     */
+    private final LatencyStats coldDiscoveryLatency = new LatencyStats(BLEFinals.LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * The time from losing the link to the device being ready again.
+     */
+    private final LatencyStats reconnectLatency = new LatencyStats(BLEFinals.LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * The time from receiving an IUE indication to the IUE being committed to the database.
+     */
+    private final LatencyStats indicationToCommitLatency = new LatencyStats(BLEFinals.LATENCY_SAMPLE_CAPACITY);
+
+    private long totalFrames = 0;
+    private long totalBytes = 0;
+
+    /**
+     * The traffic of the current connection and when it became ready (elapsed realtime, -1 if not connected).
+     */
+    private long connectionFrames = 0;
+    private long connectionBytes = 0;
+    private long connectionStartedAt = -1;
+
+    private int rssiCount = 0;
+    private long rssiSum = 0;
+    private int rssiMin = Integer.MAX_VALUE;
+    private int rssiMax = Integer.MIN_VALUE;
+    private int lastRssi = 0;
+
+    private int logTransfers = 0;
+    private long logSamples = 0;
+    private double lastLogSamplesPerSecond = 0;
+
+    private int connections = 0;
+    private int retries = 0;
+    private int autoConnectHandovers = 0;
+
+    /**
+     * The number of disconnections and failed connection attempts by reason.
+     */
+    private final Map<String, Integer> disconnectReasons = new TreeMap<>();
+    private final Map<String, Integer> connectFailureReasons = new TreeMap<>();
+
+    LinkMetrics(String deviceName) {
+        this.deviceName = deviceName;
+    }
+
+    public String getDeviceName() {
+        return deviceName;
+    }
+
+    public LatencyStats getConnectLatency() {
+        return connectLatency;
+    }
+
+    public LatencyStats getWarmDiscoveryLatency() {
+        return warmDiscoveryLatency;
+    }
+
+    public LatencyStats getColdDiscoveryLatency() {
+        return coldDiscoveryLatency;
+    }
+
+    public LatencyStats getReconnectLatency() {
+        return reconnectLatency;
+    }
+
+    public LatencyStats getIndicationToCommitLatency() {
+        return indicationToCommitLatency;
+    }
+
+    synchronized void recordConnectionReady() {
+        connections++;
+        connectionFrames = 0;
+        connectionBytes = 0;
+        connectionStartedAt = SystemClock.elapsedRealtime();
+    }
+
+    synchronized void recordDisconnect(int reason) {
+        connectionStartedAt = -1;
+        increment(disconnectReasons, getReasonName(reason));
+    }
+
+    synchronized void recordConnectFailure(int reason) {
+        increment(connectFailureReasons, getReasonName(reason));
+    }
+
+    synchronized void recordRetry() {
+        retries++;
+    }
+
+    synchronized void recordAutoConnectHandover() {
+        autoConnectHandovers++;
+    }
+
+    /**
+     * Records a received indication/notification or a completed read.
+     * @param bytes the size of the value
+     */
+    synchronized void recordFrame(int bytes) {
+        totalFrames++;
+        totalBytes += bytes;
+        connectionFrames++;
+        connectionBytes += bytes;
+    }
+
+    /**
+     * Records a finished (or interrupted) log transfer.
+     * @param samples the number of readings committed
+     * @param millis the duration of the transfer
+     */
+    synchronized void recordLogTransfer(int samples, long millis) {
+        logTransfers++;
+        logSamples += samples;
+        if (millis > 0) lastLogSamplesPerSecond = samples * 1000.0 / millis;
+    }
+
+    synchronized void recordRssi(int rssi) {
+        rssiCount++;
+        rssiSum += rssi;
+        rssiMin = Math.min(rssiMin, rssi);
+        rssiMax = Math.max(rssiMax, rssi);
+        lastRssi = rssi;
+    }
+
+    /**
+     * @return the frames per second over the current connection or 0 if not connected.
+     */
+    public synchronized double getFramesPerSecond() {
+        return perSecond(connectionFrames);
+    }
+
+    /**
+     * @return the bytes per second over the current connection or 0 if not connected.
+     */
+    public synchronized double getBytesPerSecond() {
+        return perSecond(connectionBytes);
+    }
+
+    private double perSecond(long count) {
+        if (connectionStartedAt < 0) return 0;
+        long elapsed = SystemClock.elapsedRealtime() - connectionStartedAt;
+        return elapsed <= 0 ? 0 : count * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return the measurements as a JSON object. Latencies are in milliseconds and RSSI in dBm.
+     */
+    public synchronized JSONObject toJson() throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("device", deviceName);
+        json.put("connected", connectionStartedAt >= 0);
+        json.put("connections", connections);
+        json.put("retries", retries);
+        json.put("autoConnectHandovers", autoConnectHandovers);
+
+        json.put("connectMillis", toJson(connectLatency));
+        json.put("warmDiscoveryMillis", toJson(warmDiscoveryLatency));
+        json.put("coldDiscoveryMillis", toJson(coldDiscoveryLatency));
+        json.put("reconnectMillis", toJson(reconnectLatency));
+        json.put("indicationToCommitMillis", toJson(indicationToCommitLatency));
+
+        JSONObject traffic = new JSONObject();
+        traffic.put("totalFrames", totalFrames);
+        traffic.put("totalBytes", totalBytes);
+        traffic.put("framesPerSecond", getFramesPerSecond());
+        traffic.put("bytesPerSecond", getBytesPerSecond());
+        json.put("traffic", traffic);
+
+        JSONObject log = new JSONObject();
+        log.put("transfers", logTransfers);
+        log.put("samples", logSamples);
+        log.put("lastSamplesPerSecond", lastLogSamplesPerSecond);
+        json.put("logTransfer", log);
+
+        JSONObject rssi = new JSONObject();
+        rssi.put("samples", rssiCount);
+        if (rssiCount > 0) {
+            rssi.put("last", lastRssi);
+            rssi.put("min", rssiMin);
+            rssi.put("max", rssiMax);
+            rssi.put("mean", (double) rssiSum / rssiCount);
+        }
+        json.put("rssi", rssi);
+
+        json.put("disconnectReasons", new JSONObject(disconnectReasons));
+        json.put("connectFailureReasons", new JSONObject(connectFailureReasons));
+        return json;
+    }
+
+    /**
+     * @return a short human readable summary. Used by the diagnostics screen.
+     */
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(deviceName).append(connectionStartedAt >= 0 ? " (connected)" : " (not connected)").append('\n');
+        sb.append("connections: ").append(connections)
+                .append(", retries: ").append(retries)
+                .append(", auto connect: ").append(autoConnectHandovers).append('\n');
+        sb.append("connect: ").append(connectLatency).append('\n');
+        sb.append("warm discovery: ").append(warmDiscoveryLatency).append('\n');
+        sb.append("cold discovery: ").append(coldDiscoveryLatency).append('\n');
+        sb.append("reconnect: ").append(reconnectLatency).append('\n');
+        sb.append("indication to commit: ").append(indicationToCommitLatency).append('\n');
+        sb.append(String.format(Locale.ENGLISH, "traffic: %d frames, %d bytes (%.2f frames/s, %.1f B/s)%n",
+                totalFrames, totalBytes, getFramesPerSecond(), getBytesPerSecond()));
+        if (logTransfers > 0) {
+            sb.append(String.format(Locale.ENGLISH, "log: %d transfers, %d samples (last %.1f samples/s)%n",
+                    logTransfers, logSamples, lastLogSamplesPerSecond));
+        }
+        if (rssiCount > 0) {
+            sb.append(String.format(Locale.ENGLISH, "rssi: last=%d min=%d max=%d mean=%.1f n=%d%n",
+                    lastRssi, rssiMin, rssiMax, (double) rssiSum / rssiCount, rssiCount));
+        }
+        sb.append("disconnects: ").append(disconnectReasons).append('\n');
+        sb.append("failed connects: ").append(connectFailureReasons).append('\n');
+        return sb.toString();
+    }
+
+    private static JSONObject toJson(LatencyStats stats) throws JSONException {
+        JSONObject json = new JSONObject();
+        json.put("n", stats.getCount());
+        json.put("p50", stats.getPercentile(50));
+        json.put("p90", stats.getPercentile(90));
+        json.put("p99", stats.getPercentile(99));
+        return json;
+    }
+
+    private static void increment(Map<String, Integer> counts, String key) {
+        Integer count = counts.get(key);
+        counts.put(key, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @param reason one of the ConnectionObserver REASON constants
+     * @return a readable name for the reason.
+     */
+    static String getReasonName(int reason) {
+        switch (reason) {
+            case ConnectionObserver.REASON_SUCCESS: return "success";
+            case ConnectionObserver.REASON_TERMINATE_LOCAL_HOST: return "terminated_locally";
+            case ConnectionObserver.REASON_TERMINATE_PEER_USER: return "terminated_by_peer";
+            case ConnectionObserver.REASON_LINK_LOSS: return "link_loss";
+            case ConnectionObserver.REASON_NOT_SUPPORTED: return "not_supported";
+            case ConnectionObserver.REASON_TIMEOUT: return "timeout";
+            default: return "unknown(" + reason + ")";
+        }
+    }
+}
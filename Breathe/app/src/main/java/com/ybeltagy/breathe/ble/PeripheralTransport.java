@@ -0,0 +1,50 @@
+package com.ybeltagy.breathe.ble;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * The link to a peripheral as the ingest logic sees it.
+ *
+ * The BleManagers implement it on top of GATT and the tests implement it in-process, so the ingest
+ * logic ({@link InhalerIngest}, {@link WearableDataParser}) can be exercised without hardware.
+ * A peripheral either pushes its data ({@link Indicating}) or has it read ({@link Readable}).
+ */
+public interface PeripheralTransport {
+
+    /**
+     * Receives the frames the peripheral pushes (indications or notifications).
+     */
+    interface FrameListener {
+        /**
+         * @param frame the value of the characteristic. Never null.
+         */
+        void onFrame(byte[] frame);
+    }
+
+    /**
+     * A peripheral which pushes its data, like the inhaler.
+     */
+    interface Indicating extends PeripheralTransport {
+        /**
+         * @param frameListener receives the frames the peripheral pushes. Replaces the previous listener.
+         */
+        void setFrameListener(FrameListener frameListener);
+    }
+
+    /**
+     * A peripheral whose data is read, like the wearable.
+     */
+    interface Readable extends PeripheralTransport {
+        /**
+         * Reads the data characteristic of the peripheral.
+         * @return a future holding the value of the characteristic. Fails if the peripheral is not
+         * connected or the read failed.
+         */
+        ListenableFuture<byte[]> read();
+    }
+
+    /**
+     * @return true if the peripheral is connected.
+     */
+    boolean isConnected();
+}
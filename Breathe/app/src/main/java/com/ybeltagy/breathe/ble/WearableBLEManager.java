@@ -8,16 +8,19 @@ import android.content.Context;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
+import androidx.concurrent.futures.CallbackToFutureAdapter;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.collection.ContextPrefetcher;
 import com.ybeltagy.breathe.data.WearableData;
 
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.io.IOException;
 import java.util.UUID;
 
 import no.nordicsemi.android.ble.BleManager;
+import no.nordicsemi.android.ble.ConnectionPriorityRequest;
 
-public class WearableBLEManager extends BleManager {
+public class WearableBLEManager extends BleManager implements PeripheralTransport.Readable {
 
     /**
      * Represents the wearable sensor.
@@ -25,72 +28,164 @@ public class WearableBLEManager extends BleManager {
 
     public final static UUID SERVICE_UUID = UUID.fromString(BLEFinals.WEARABLE_SERVICE_UUID_STRING);
     public final static UUID WEARABLE_DATA_CHAR_UUID = UUID.fromString(BLEFinals.WEARABLE_DATA_CHAR_UUID_STRING);
+    public final static UUID LOG_CONTROL_CHAR_UUID = UUID.fromString(BLEFinals.WEARABLE_LOG_CONTROL_CHAR_UUID_STRING);
+    public final static UUID LOG_DATA_CHAR_UUID = UUID.fromString(BLEFinals.WEARABLE_LOG_DATA_CHAR_UUID_STRING);
 
     private static final String tag = "WearableBLEManager";
 
     // This characteristic contains all the wearable Data.
     private BluetoothGattCharacteristic wearableDataCharacteristic = null;
 
-    WearableBLEManager(@NonNull final Context context) {
-        super(context);
-    }
-
-    @NonNull
-    @Override
-    protected BleManagerGattCallback getGattCallback() {
-        return new WearableGattCallback();
-    }
+    // Optional. The app writes log requests to this characteristic.
+    private BluetoothGattCharacteristic logControlCharacteristic = null;
 
-    public WearableData getWeatherData() {
-        if (wearableDataCharacteristic == null)
-            return null;
+    // Optional. The wearable notifies its log on this characteristic.
+    private BluetoothGattCharacteristic logDataCharacteristic = null;
 
-        final WearableData wearableData = new WearableData();
-
-        try{
-            readCharacteristic(wearableDataCharacteristic)
-                    .with( (device, data) -> { // Data received Callback
-
-                        //TODO: Add support for the PM2.5 Sensor data.
+    /**
+     * Downloads the offline log of the wearable whenever it becomes ready.
+     */
+    private final WearableLogTransfer logTransfer;
 
-                        if(data == null || data.getValue() == null) return;
+    /**
+     * Remembers the attribute handles of the device between connections.
+     */
+    private final GattCache gattCache;
 
-                        //Parse the input in Little_endian because the esp32/stm32 are little endian
-                        ByteBuffer buf = ByteBuffer.wrap(data.getValue()).order(ByteOrder.LITTLE_ENDIAN);
+    /**
+     * Tracks the connection of the device. Told whether the services came from the GATT cache.
+     */
+    private ConnectionStateMachine connectionStateMachine = null;
 
-                        // get the temperature in little endian
-                        wearableData.setTemperature(buf.getFloat());
+    /**
+     * Records the traffic and RSSI of the wearable.
+     */
+    private final LinkMetrics metrics;
 
-                        // get the humidity in little endian
-                        wearableData.setHumidity(buf.getFloat());
+    /**
+     * @param context the calling context
+     * @param deviceName the name the metrics of the wearable are reported under.
+     */
+    WearableBLEManager(@NonNull final Context context, String deviceName) {
+        super(context, GattOperationQueue.getHandler()); // deliver the GATT callbacks on the BLE thread.
+        gattCache = new GattCache(context);
+        metrics = BLEMetrics.get(deviceName);
+        logTransfer = new WearableLogTransfer(context, new WearableLogTransfer.LogLink() {
+            @Override
+            public ListenableFuture<WearableLogChunk> readChunk(long offset, int maxCount) {
+                return readLogChunk(offset, maxCount);
+            }
+
+            @Override
+            public void setHighThroughput(boolean highThroughput) {
+                requestConnectionPriority(highThroughput ?
+                        ConnectionPriorityRequest.CONNECTION_PRIORITY_HIGH :
+                        ConnectionPriorityRequest.CONNECTION_PRIORITY_BALANCED).enqueue();
+            }
+        }, metrics);
+    }
 
-                        //wearableData.setPm_count(buf.getInt());
-                        //get pm 2.5
-                        wearableData.setPm_count_2_5(buf.getInt());
+    /**
+     * Sets the state machine which is told whether the attribute handles matched the cached ones.
+     * @param connectionStateMachine the state machine of the device this manager connects to.
+     */
+    void setConnectionStateMachine(ConnectionStateMachine connectionStateMachine) {
+        this.connectionStateMachine = connectionStateMachine;
+    }
 
-                        //get pm 10
-                        wearableData.setPm_count_10(buf.getInt());
+    @NonNull
+    @Override
+    protected BleManagerGattCallback getGattCallback() {
+        return new WearableGattCallback();
+    }
 
-                        // get the VOC data
-                        wearableData.setVoc_data(buf.getInt());
+    /**
+     * Queues a read of the wearable data characteristic on the BLE thread.
+     * @return a future holding the value of the characteristic. Fails if the wearable is not connected
+     * or the read failed.
+     */
+    @Override
+    public ListenableFuture<byte[]> read() {
+        return GattOperationQueue.submit(GattOperationQueue.PRIORITY_ON_DEMAND, "Read wearable data",
+                completer -> {
+                    if (wearableDataCharacteristic == null) {
+                        completer.setException(new IllegalStateException("Wearable is not connected"));
+                        return;
+                    }
+
+                    readCharacteristic(wearableDataCharacteristic)
+                            .with((device, data) -> { // Data received Callback
+                                metrics.recordFrame(data.size());
+                                completer.set(data.getValue());
+                                sampleRssi();
+                            })
+                            .fail((device, status) -> completer.setException(
+                                    new IOException("Reading wearable data failed with status " + status)))
+                            .invalid(() -> completer.setException(
+                                    new IllegalStateException("Wearable is not connected")))
+                            .enqueue();
+                });
+    }
 
-                        // get the CO2 data
-                        wearableData.setCo2_data(buf.getInt());
+    /**
+     * Queues an RSSI read behind everything else and records the result in the link metrics.
+     */
+    private void sampleRssi() {
+        GattOperationQueue.submit(GattOperationQueue.PRIORITY_BULK, "Read wearable RSSI",
+                (CallbackToFutureAdapter.Completer<Integer> completer) -> readRssi()
+                        .with((device, rssi) -> {
+                            metrics.recordRssi(rssi);
+                            completer.set(rssi);
+                        })
+                        .fail((device, status) -> completer.setException(
+                                new IOException("Reading the RSSI failed with status " + status)))
+                        .invalid(() -> completer.setException(
+                                new IllegalStateException("Wearable is not connected")))
+                        .enqueue());
+    }
 
-                        Log.d(tag, "Wearable Data!");
-                        Log.d(tag, "Temperature: " + wearableData.getTemperature());
-                        Log.d(tag, "Humidity: " + wearableData.getHumidity());
-                        Log.d(tag, "PM 2.5 Count: " + wearableData.getPm_count_2_5());
-                        Log.d(tag, "PM 10 Count: " + wearableData.getPm_count_10());
-                        Log.d(tag, "VOC: " + wearableData.getVoc_data());
-                        Log.d(tag, "CO2: " + wearableData.getCo2_data());
-                    }).await();
-        }catch (Exception e){
-            Log.d(tag, e.toString());
-            return null;
-        }
+    /**
+     * Requests a chunk of the log and collects the frames the wearable notifies in response.
+     * @param offset the offset of the first reading
+     * @param maxCount the number of readings
+     * @return a future holding the chunk. Fails if the wearable has no log, a frame was lost or the
+     * chunk did not arrive in time.
+     */
+    private ListenableFuture<WearableLogChunk> readLogChunk(long offset, int maxCount) {
+        return GattOperationQueue.submit(GattOperationQueue.PRIORITY_BULK, "Read wearable log from " + offset,
+                completer -> {
+                    if (logControlCharacteristic == null || logDataCharacteristic == null) {
+                        completer.setException(new IllegalStateException("Wearable has no log"));
+                        return;
+                    }
+
+                    final WearableLogChunk chunk = new WearableLogChunk(offset, maxCount);
+
+                    setNotificationCallback(logDataCharacteristic).with((device, data) -> {
+                        metrics.recordFrame(data.size());
+                        try {
+                            if (chunk.add(data.getValue())) completer.set(chunk);
+                        } catch (IOException e) {
+                            completer.setException(e);
+                        }
+                    });
+
+                    writeCharacteristic(logControlCharacteristic, chunk.getRequest())
+                            .fail((device, status) -> completer.setException(
+                                    new IOException("Requesting the log failed with status " + status)))
+                            .invalid(() -> completer.setException(
+                                    new IllegalStateException("Wearable is not connected")))
+                            .enqueue();
+                });
+    }
 
-        return wearableData;
+    /**
+     * Reads and parses the wearable data.
+     * @return a future holding the current wearable data. Fails if the wearable is not connected
+     * or the read failed.
+     */
+    public ListenableFuture<WearableData> readWearableData() {
+        return WearableDataParser.read(this);
     }
 
     /**
@@ -116,21 +211,42 @@ public class WearableBLEManager extends BleManager {
                 return false;
 
             // Ensure wearableData characteristic has a read property.
-            return (wearableDataCharacteristic.getProperties() &
+            boolean supported = (wearableDataCharacteristic.getProperties() &
                     BluetoothGattCharacteristic.PROPERTY_READ) != 0;
+
+            if (supported && connectionStateMachine != null) {
+                connectionStateMachine.onServicesResolved(
+                        gattCache.matches(gatt.getDevice().getAddress(), wearableDataCharacteristic));
+            }
+
+            return supported;
         }
 
         /**
          * If you have any optional services, allocate them here. Return true only if
          * they are found.
          * <p>
-         *  We don't have optional services, so we just call super.
+         *  The log characteristics are optional: older wearables don't keep a log.
          * @param gatt
-         * @return
+         * @return true if the wearable supports the log transfer.
          */
         @Override
         protected boolean isOptionalServiceSupported(@NonNull final BluetoothGatt gatt) {
-            return super.isOptionalServiceSupported(gatt);
+            final BluetoothGattService service = gatt.getService(SERVICE_UUID);
+
+            if (service == null) return false;
+
+            logControlCharacteristic = service.getCharacteristic(LOG_CONTROL_CHAR_UUID);
+            logDataCharacteristic = service.getCharacteristic(LOG_DATA_CHAR_UUID);
+
+            if (logControlCharacteristic == null || logDataCharacteristic == null
+                    || (logDataCharacteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_NOTIFY) == 0) {
+                logControlCharacteristic = null;
+                logDataCharacteristic = null;
+                return false;
+            }
+
+            return true;
         }
 
         /**
@@ -147,9 +263,24 @@ public class WearableBLEManager extends BleManager {
             readCharacteristic(wearableDataCharacteristic).enqueue();
             // Make a read request to guarantee bonding for the stm32 wearable
 
-            // TODO: to meet a stretch goal, you may need to enable Ble notificaionts/indications here.
-            //  You need to enable notifications and set required
-            //  MTU or write some initial data. Do it here.
+            // The log frames are packed to the MTU.
+            if (logDataCharacteristic != null) {
+                requestMtu(BLEFinals.WEARABLE_LOG_MTU).enqueue();
+                enableNotifications(logDataCharacteristic).enqueue();
+            }
+        }
+
+        /**
+         * Takes the first RSSI sample of the connection, prefetches the context of the next IUE and
+         * starts the log transfer.
+         */
+        @Override
+        protected void onDeviceReady() {
+            sampleRssi();
+            ContextPrefetcher.onDeviceConnected(getContext(), BLEFinals.WEARABLE_DEVICE_NAME);
+
+            // Fetch what the wearable logged while it was out of range.
+            if (logDataCharacteristic != null) logTransfer.start(getBluetoothDevice().getAddress());
         }
 
         /**
@@ -159,6 +290,9 @@ public class WearableBLEManager extends BleManager {
         protected void onDeviceDisconnected() {
             // Device disconnected. Release your references here.
             wearableDataCharacteristic = null;
+            logControlCharacteristic = null;
+            logDataCharacteristic = null;
+            logTransfer.stop(); // resumed from the saved offset on the next connection.
         }
     }
     
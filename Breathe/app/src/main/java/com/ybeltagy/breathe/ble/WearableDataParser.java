@@ -0,0 +1,125 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+import android.util.Log;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.collection.BreatheClock;
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Parses the value of the wearable data characteristic.
+ * The esp32/stm32 are little endian, so the value is parsed in little endian.
+ */
+public class WearableDataParser {
+
+    private static final String tag = WearableDataParser.class.getName();
+
+    /**
+     * temperature (float), humidity (float), pm 2.5 (int), pm 10 (int), voc (int), co2 (int).
+     */
+    public static final int WEARABLE_DATA_SIZE = 24;
+
+    /**
+     * @param value the value of the wearable data characteristic
+     * @return the parsed wearable data or null if the value is too short.
+     */
+    @SuppressLint("NewApi")
+    public static WearableData parse(byte[] value) {
+
+        //TODO: Add support for the PM2.5 Sensor data.
+
+        if (value == null || value.length < WEARABLE_DATA_SIZE) return null;
+
+        //Parse the input in Little_endian because the esp32/stm32 are little endian
+        ByteBuffer buf = ByteBuffer.wrap(value).order(ByteOrder.LITTLE_ENDIAN);
+
+        WearableData wearableData = parse(buf, BreatheClock.now());
+
+        Log.d(tag, "Wearable Data!");
+        Log.d(tag, "Temperature: " + wearableData.getTemperature());
+        Log.d(tag, "Humidity: " + wearableData.getHumidity());
+        Log.d(tag, "PM 2.5 Count: " + wearableData.getPm_count_2_5());
+        Log.d(tag, "PM 10 Count: " + wearableData.getPm_count_10());
+        Log.d(tag, "VOC: " + wearableData.getVoc_data());
+        Log.d(tag, "CO2: " + wearableData.getCo2_data());
+
+        return wearableData;
+    }
+
+    /**
+     * Parses a single reading without logging it. Used for the readings of the wearable log too.
+     * @param buf a little endian buffer positioned at the reading. Advanced past it.
+     * @param timestamp when the reading was taken
+     * @return the parsed wearable data.
+     */
+    static WearableData parse(ByteBuffer buf, Instant timestamp) {
+        WearableData wearableData = new WearableData(timestamp);
+
+        // get the temperature in little endian
+        wearableData.setTemperature(buf.getFloat());
+
+        // get the humidity in little endian
+        wearableData.setHumidity(buf.getFloat());
+
+        //get pm 2.5
+        wearableData.setPm_count_2_5(buf.getInt());
+
+        //get pm 10
+        wearableData.setPm_count_10(buf.getInt());
+
+        // get the VOC data
+        wearableData.setVoc_data(buf.getInt());
+
+        // get the CO2 data
+        wearableData.setCo2_data(buf.getInt());
+
+        return wearableData;
+    }
+
+    /**
+     * The inverse of {@link #parse(byte[])}. Used by the simulated wearable.
+     * @return the value of the wearable data characteristic
+     */
+    public static byte[] encode(float temperature, float humidity, int pm_count_2_5, int pm_count_10,
+                                int voc_data, int co2_data) {
+        return ByteBuffer.allocate(WEARABLE_DATA_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .putFloat(temperature)
+                .putFloat(humidity)
+                .putInt(pm_count_2_5)
+                .putInt(pm_count_10)
+                .putInt(voc_data)
+                .putInt(co2_data)
+                .array();
+    }
+
+    /**
+     * Reads the wearable data characteristic through the transport and parses it.
+     * @param transport the link to the wearable
+     * @return a future holding the wearable data or null if the value was too short.
+     * Fails if the read failed.
+     */
+    public static ListenableFuture<WearableData> read(PeripheralTransport.Readable transport) {
+        ListenableFuture<byte[]> value = transport.read();
+
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            value.addListener(() -> {
+                try {
+                    completer.set(parse(value.get()));
+                } catch (ExecutionException e) {
+                    completer.setException(e.getCause());
+                } catch (Exception e) {
+                    completer.setException(e);
+                }
+            }, Runnable::run);
+            return "Parse wearable data";
+        });
+    }
+}
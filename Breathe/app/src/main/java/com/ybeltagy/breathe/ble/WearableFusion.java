@@ -0,0 +1,148 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Fuses the readings of several wearables into the wearable data of an IUE.
+ *
+ * Every metric is fused on its own, because a unit may have a broken sensor. For each wearable, the
+ * valid reading nearest to the IUE (within the fusion window) is picked. The reading nearest to the IUE
+ * over all wearables wins, and the readings of the other wearables which are almost as near are
+ * averaged with it.
+ */
+public class WearableFusion {
+
+    /**
+     * Reads a metric of a reading.
+     */
+    private interface Metric {
+        boolean isValid(WearableData sample);
+
+        double get(WearableData sample);
+    }
+
+    private static final Metric TEMPERATURE = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isTemperatureValid(); }
+        public double get(WearableData sample) { return sample.getTemperature(); }
+    };
+
+    private static final Metric HUMIDITY = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isHumidityValid(); }
+        public double get(WearableData sample) { return sample.getHumidity(); }
+    };
+
+    private static final Metric PM_2_5 = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isPm_count_2_5Valid(); }
+        public double get(WearableData sample) { return sample.getPm_count_2_5(); }
+    };
+
+    private static final Metric PM_10 = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isPm_count_10Valid(); }
+        public double get(WearableData sample) { return sample.getPm_count_10(); }
+    };
+
+    private static final Metric VOC = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isVoc_dataValid(); }
+        public double get(WearableData sample) { return sample.getVoc_data(); }
+    };
+
+    private static final Metric CO2 = new Metric() {
+        public boolean isValid(WearableData sample) { return sample.isCo2_dataValid(); }
+        public double get(WearableData sample) { return sample.getCo2_data(); }
+    };
+
+    /**
+     * @param timestamp the timestamp of the IUE
+     * @param devices the readings of every wearable
+     * @param windowMillis readings further than this from the IUE are ignored.
+     * @param averageMillis readings at most this much further than the nearest reading are averaged with it.
+     * @return the fused wearable data stamped with the IUE timestamp, or null if no metric had a reading.
+     */
+    @SuppressLint("NewApi")
+    public static WearableData fuse(Instant timestamp, Collection<List<WearableData>> devices,
+                                    long windowMillis, long averageMillis) {
+
+        WearableData fused = new WearableData(timestamp);
+        boolean any = false;
+
+        Double value;
+        if ((value = fuse(TEMPERATURE, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setTemperature(value.floatValue());
+            any = true;
+        }
+        if ((value = fuse(HUMIDITY, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setHumidity(value.floatValue());
+            any = true;
+        }
+        if ((value = fuse(PM_2_5, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setPm_count_2_5((int) Math.round(value));
+            any = true;
+        }
+        if ((value = fuse(PM_10, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setPm_count_10((int) Math.round(value));
+            any = true;
+        }
+        if ((value = fuse(VOC, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setVoc_data((int) Math.round(value));
+            any = true;
+        }
+        if ((value = fuse(CO2, timestamp, devices, windowMillis, averageMillis)) != null) {
+            fused.setCo2_data((int) Math.round(value));
+            any = true;
+        }
+
+        return any ? fused : null;
+    }
+
+    /**
+     * @return the fused value of the metric or null if no wearable had a valid reading in the window.
+     */
+    @SuppressLint("NewApi")
+    private static Double fuse(Metric metric, Instant timestamp, Collection<List<WearableData>> devices,
+                               long windowMillis, long averageMillis) {
+
+        // The nearest valid reading of every wearable as (distance, value) pairs.
+        List<Long> distances = new ArrayList<>();
+        List<Double> values = new ArrayList<>();
+        long nearest = Long.MAX_VALUE;
+
+        for (List<WearableData> samples : devices) {
+            WearableData best = null;
+            long bestDistance = Long.MAX_VALUE;
+
+            for (WearableData sample : samples) {
+                if (!metric.isValid(sample)) continue;
+                long distance = Math.abs(Duration.between(sample.getWearableDataTimeStamp(), timestamp).toMillis());
+                if (distance <= windowMillis && distance < bestDistance) {
+                    best = sample;
+                    bestDistance = distance;
+                }
+            }
+
+            if (best == null) continue;
+            distances.add(bestDistance);
+            values.add(metric.get(best));
+            nearest = Math.min(nearest, bestDistance);
+        }
+
+        if (values.isEmpty()) return null;
+
+        double sum = 0;
+        int count = 0;
+        for (int i = 0; i < values.size(); i++) {
+            if (distances.get(i) <= nearest + averageMillis) {
+                sum += values.get(i);
+                count++;
+            }
+        }
+        return sum / count;
+    }
+}
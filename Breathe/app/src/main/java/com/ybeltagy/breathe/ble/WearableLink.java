@@ -0,0 +1,47 @@
+package com.ybeltagy.breathe.ble;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.data.WearableData;
+
+/**
+ * One of the wearables the BLEService keeps connected: its manager, its connection state machine
+ * and the stream of its recent readings.
+ */
+class WearableLink {
+
+    final String address;
+    final WearableBLEManager manager;
+    final ConnectionStateMachine connection;
+    final WearableSampleStream samples = new WearableSampleStream(BLEFinals.WEARABLE_SAMPLE_CAPACITY);
+
+    WearableLink(String address, WearableBLEManager manager, ConnectionStateMachine connection) {
+        this.address = address;
+        this.manager = manager;
+        this.connection = connection;
+    }
+
+    /**
+     * Reads the wearable and records the reading in its stream.
+     * @return a future which completes once the reading is recorded. Holds the reading or null
+     * if the value was too short. Fails if the read failed.
+     */
+    ListenableFuture<WearableData> read() {
+        ListenableFuture<WearableData> read = manager.readWearableData();
+
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            // Recorded on the BLE thread, which keeps the stream single writer.
+            read.addListener(() -> {
+                try {
+                    WearableData sample = read.get();
+                    if (sample != null) samples.record(sample);
+                    completer.set(sample);
+                } catch (Exception e) {
+                    completer.setException(e);
+                }
+            }, GattOperationQueue.getHandler()::post);
+            return "Read wearable " + address;
+        });
+    }
+}
@@ -0,0 +1,134 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The wearable log protocol and the readings of one requested chunk of the log.
+ *
+ * The app writes a request to the log control characteristic:
+ * <pre>
+ *     [opcode = 0x01 (1 byte)][offset (uint32)][max count (uint16)]
+ * </pre>
+ * and the wearable notifies frames on the log data characteristic, packed to the MTU:
+ * <pre>
+ *     [offset of the first reading (uint32)][count (uint8)][count x (epoch millis (int64) + reading (24 bytes))]
+ * </pre>
+ * A frame with a count of 0 marks the end of the log. Everything is little endian.
+ */
+public class WearableLogChunk {
+
+    public static final byte OPCODE_REQUEST = 0x01;
+
+    public static final int REQUEST_SIZE = 7;
+    public static final int FRAME_HEADER_SIZE = 5;
+    public static final int RECORD_SIZE = 8 + WearableDataParser.WEARABLE_DATA_SIZE;
+
+    private final long startOffset;
+    private final int maxCount;
+
+    private final List<WearableData> readings = new ArrayList<>();
+    private boolean endOfLog = false;
+
+    /**
+     * @param startOffset the offset of the first requested reading
+     * @param maxCount the number of requested readings
+     */
+    public WearableLogChunk(long startOffset, int maxCount) {
+        this.startOffset = startOffset;
+        this.maxCount = maxCount;
+    }
+
+    /**
+     * @return the request for this chunk.
+     */
+    public byte[] getRequest() {
+        return ByteBuffer.allocate(REQUEST_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+                .put(OPCODE_REQUEST)
+                .putInt((int) startOffset)
+                .putShort((short) maxCount)
+                .array();
+    }
+
+    /**
+     * Adds the readings of a frame.
+     * @param frame the value of the log data characteristic
+     * @return true if the chunk is complete.
+     * @throws IOException if the frame is malformed or does not continue the chunk (a frame was lost).
+     */
+    @SuppressLint("NewApi")
+    public boolean add(byte[] frame) throws IOException {
+        if (frame == null || frame.length < FRAME_HEADER_SIZE) throw new IOException("Log frame too short");
+
+        ByteBuffer buf = ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN);
+        long offset = buf.getInt() & 0xFFFFFFFFL;
+        int count = buf.get() & 0xFF;
+
+        if (offset != getNextOffset()) {
+            throw new IOException("Expected log offset " + getNextOffset() + " but got " + offset);
+        }
+        if (buf.remaining() < count * RECORD_SIZE) throw new IOException("Log frame truncated");
+
+        if (count == 0) {
+            endOfLog = true;
+            return true;
+        }
+
+        for (int i = 0; i < count; i++) {
+            Instant timestamp = Instant.ofEpochMilli(buf.getLong());
+            readings.add(WearableDataParser.parse(buf, timestamp));
+        }
+
+        return readings.size() >= maxCount;
+    }
+
+    /**
+     * @return the readings received so far, oldest first.
+     */
+    public List<WearableData> getReadings() {
+        return readings;
+    }
+
+    /**
+     * @return true if the wearable has no readings after this chunk.
+     */
+    public boolean isEndOfLog() {
+        return endOfLog;
+    }
+
+    /**
+     * @return the offset to request the next chunk from.
+     */
+    public long getNextOffset() {
+        return startOffset + readings.size();
+    }
+
+    /**
+     * Packs readings into a frame, like the wearable does. Used by the tests.
+     * @param offset the offset of the first reading
+     * @param readings the readings. An empty list makes the end of log frame.
+     * @return the value of the log data characteristic.
+     */
+    @SuppressLint("NewApi")
+    public static byte[] encodeFrame(long offset, List<WearableData> readings) {
+        ByteBuffer buf = ByteBuffer.allocate(FRAME_HEADER_SIZE + readings.size() * RECORD_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buf.putInt((int) offset).put((byte) readings.size());
+
+        for (WearableData reading : readings) {
+            buf.putLong(reading.getWearableDataTimeStamp().toEpochMilli());
+            buf.put(WearableDataParser.encode(reading.getTemperature(), reading.getHumidity(),
+                    reading.getPm_count_2_5(), reading.getPm_count_10(),
+                    reading.getVoc_data(), reading.getCo2_data()));
+        }
+        return buf.array();
+    }
+}
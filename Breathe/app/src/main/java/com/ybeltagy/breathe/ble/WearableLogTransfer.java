@@ -0,0 +1,138 @@
+package com.ybeltagy.breathe.ble;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.collection.BreatheRepository;
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Downloads the readings the wearable logged while it was out of range.
+ *
+ * The log is read in chunks of {@link BLEFinals#WEARABLE_LOG_CHUNK_SIZE} readings at bulk priority, so
+ * IUE indications and on-demand reads run between chunks. Every chunk is inserted into the wearable
+ * table and only then is the offset of the wearable saved, so an interrupted transfer resumes from
+ * the last committed chunk.
+ *
+ * Everything runs on the BLE thread.
+ */
+class WearableLogTransfer {
+
+    private static final String tag = WearableLogTransfer.class.getName();
+
+    /**
+     * The wearable side of the transfer.
+     */
+    interface LogLink {
+        /**
+         * @return a future holding the chunk. Fails if the chunk could not be read completely.
+         */
+        ListenableFuture<WearableLogChunk> readChunk(long offset, int maxCount);
+
+        /**
+         * Asks for a fast connection interval while the transfer runs.
+         */
+        void setHighThroughput(boolean highThroughput);
+    }
+
+    private final Context context;
+    private final LogLink link;
+    private final LinkMetrics metrics;
+    private final SharedPreferences offsets;
+
+    private boolean running = false;
+
+    /**
+     * Incremented when a transfer stops, so the callbacks of a stopped transfer are ignored.
+     */
+    private int generation = 0;
+
+    private String address = null;
+    private long startedAt = 0;
+    private int samples = 0;
+
+    WearableLogTransfer(Context context, LogLink link, LinkMetrics metrics) {
+        this.context = context.getApplicationContext();
+        this.link = link;
+        this.metrics = metrics;
+        offsets = context.getSharedPreferences(BLEFinals.WEARABLE_LOG_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Starts downloading the log of the wearable from its saved offset. Does nothing if a transfer is running.
+     * @param address the mac address of the wearable
+     */
+    void start(String address) {
+        if (running) return;
+
+        running = true;
+        this.address = address;
+        startedAt = SystemClock.elapsedRealtime();
+        samples = 0;
+
+        link.setHighThroughput(true);
+        requestChunk(offsets.getLong(address, 0), generation);
+    }
+
+    /**
+     * Stops the transfer, for example because the wearable disconnected. The next start resumes it.
+     */
+    void stop() {
+        if (!running) return;
+        finish("interrupted");
+    }
+
+    private void requestChunk(long offset, int transfer) {
+        ListenableFuture<WearableLogChunk> read = link.readChunk(offset, BLEFinals.WEARABLE_LOG_CHUNK_SIZE);
+
+        read.addListener(() -> {
+            if (transfer != generation) return;
+
+            WearableLogChunk chunk;
+            try {
+                chunk = read.get();
+            } catch (Exception e) {
+                Log.d(tag, "Reading the log at offset " + offset + " failed: " + e);
+                finish("interrupted");
+                return;
+            }
+
+            List<WearableData> readings = chunk.getReadings();
+            if (readings.isEmpty()) {
+                finish("complete");
+                return;
+            }
+
+            BreatheRepository.insertWearableLog(context, readings,
+                    () -> GattOperationQueue.getHandler().post(() -> onChunkSaved(chunk, transfer)));
+        }, GattOperationQueue.getHandler()::post);
+    }
+
+    private void onChunkSaved(WearableLogChunk chunk, int transfer) {
+        // The chunk is committed, so it is safe to move the offset even if the transfer stopped meanwhile.
+        offsets.edit().putLong(address, chunk.getNextOffset()).apply();
+        if (transfer != generation) return;
+
+        samples += chunk.getReadings().size();
+
+        if (chunk.isEndOfLog()) finish("complete");
+        else requestChunk(chunk.getNextOffset(), transfer);
+    }
+
+    private void finish(String outcome) {
+        running = false;
+        generation++;
+        link.setHighThroughput(false);
+
+        long elapsed = SystemClock.elapsedRealtime() - startedAt;
+        metrics.recordLogTransfer(samples, elapsed);
+        Log.d(tag, String.format(Locale.ENGLISH, "Log transfer %s: %d samples in %dms (%.1f samples/s)",
+                outcome, samples, elapsed, elapsed <= 0 ? 0 : samples * 1000.0 / elapsed));
+    }
+}
@@ -0,0 +1,57 @@
+package com.ybeltagy.breathe.ble;
+
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * The recent readings of a single wearable, kept in a ring buffer.
+ *
+ * There is a single writer (the BLE thread completes the reads) and any number of readers. Neither
+ * side locks: a reader copies the slots it needs, and a slot overwritten while it copies only hands it
+ * a newer reading.
+ */
+public class WearableSampleStream {
+
+    private final AtomicReferenceArray<WearableData> samples;
+
+    /**
+     * The number of readings ever recorded. The next reading goes to written % capacity.
+     */
+    private final AtomicLong written = new AtomicLong(0);
+
+    /**
+     * @param capacity the number of recent readings to keep.
+     */
+    public WearableSampleStream(int capacity) {
+        samples = new AtomicReferenceArray<>(capacity);
+    }
+
+    /**
+     * Records a reading. Must only be called by one thread at a time.
+     * @param sample the reading
+     */
+    public void record(WearableData sample) {
+        long index = written.get();
+        samples.set((int) (index % samples.length()), sample);
+        written.set(index + 1); // publishes the sample to the readers.
+    }
+
+    /**
+     * @return the readings in the buffer, oldest first.
+     */
+    public List<WearableData> snapshot() {
+        long end = written.get();
+        long start = Math.max(0, end - samples.length());
+
+        List<WearableData> snapshot = new ArrayList<>((int) (end - start));
+        for (long i = start; i < end; i++) {
+            WearableData sample = samples.get((int) (i % samples.length()));
+            if (sample != null) snapshot.add(sample);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,50 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+
+import java.time.Clock;
+import java.time.Instant;
+
+/**
+ * The clock the collection pipeline (ingest, enrichment, weather cache and quota, tracing) reads the
+ * time from, instead of reading it directly.
+ *
+ * Tests replace it with a virtual clock, so they can replay months of IUEs in seconds.
+ */
+public class BreatheClock {
+
+    @SuppressLint("NewApi")
+    private static volatile Clock clock = Clock.systemDefaultZone();
+
+    /**
+     * @return the current time.
+     */
+    @SuppressLint("NewApi")
+    public static Instant now() {
+        return clock.instant();
+    }
+
+    /**
+     * @return the current time in milliseconds since the epoch, like System.currentTimeMillis().
+     */
+    @SuppressLint("NewApi")
+    public static long currentTimeMillis() {
+        return clock.millis();
+    }
+
+    /**
+     * @return the clock, e.g. for a ZonedDateTime in the local time zone.
+     */
+    public static Clock getClock() {
+        return clock;
+    }
+
+    /**
+     * Used by tests.
+     * @param clock the clock to read the time from or null for the system clock
+     */
+    @SuppressLint("NewApi")
+    public static void setClock(Clock clock) {
+        BreatheClock.clock = clock != null ? clock : Clock.systemDefaultZone();
+    }
+}
@@ -0,0 +1,301 @@
+package com.ybeltagy.breathe.collection;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.ybeltagy.breathe.ble.LatencyStats;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Holds the executors the app runs its background work on: one bounded pool of named threads per
+ * kind of work, so a burst of one kind can't starve the others or start threads without limit.
+ *
+ * Each pool records how long its tasks waited in the queue and how long they ran, and how many were
+ * rejected. The diagnostics screen shows them with the active threads and the queue depth.
+ *
+ * The GATT operations keep their own thread (see GattOperationQueue) and WorkManager its own pool.
+ */
+public class BreatheExecutors {
+
+    private static final String tag = BreatheExecutors.class.getName();
+
+    public enum Pool {
+        /**
+         * The database writes. A single thread, so the writes are applied in the order they were
+         * submitted. A full queue makes the caller wait for room: a write is never dropped, and never
+         * runs on the caller's thread, which may be the main thread Room refuses to write on.
+         */
+        DB_WRITE,
+        /**
+         * The Room queries behind the LiveData. The queue is not bounded: a dropped query would leave
+         * its LiveData waiting for a result which never comes.
+         */
+        DB_READ,
+        /**
+         * The BLE scan and reconnection timers. The GATT operations themselves run on the BLE thread.
+         */
+        BLE,
+        /**
+         * The weather calls of OkHttp. A rejected call fails like any other failed call.
+         */
+        NETWORK,
+        /**
+         * CPU bound work, e.g. the export. A full queue rejects the task.
+         */
+        COMPUTE
+    }
+
+    /**
+     * Sorted, so the summary is stable.
+     */
+    private static final Map<Pool, Metered> pools = new EnumMap<>(Pool.class);
+
+    /**
+     * @return the single thread the database writes run on.
+     */
+    public static ExecutorService dbWrite() {
+        return (ExecutorService) get(Pool.DB_WRITE);
+    }
+
+    /**
+     * @return the pool the Room queries run on.
+     */
+    public static ExecutorService dbRead() {
+        return (ExecutorService) get(Pool.DB_READ);
+    }
+
+    /**
+     * @return the timer of the BLE scans and reconnections.
+     */
+    public static ScheduledExecutorService bleTimer() {
+        return (ScheduledExecutorService) get(Pool.BLE);
+    }
+
+    /**
+     * @return the pool the network calls run on.
+     */
+    public static ExecutorService network() {
+        return (ExecutorService) get(Pool.NETWORK);
+    }
+
+    /**
+     * @return the pool of the CPU bound work.
+     */
+    public static ExecutorService compute() {
+        return (ExecutorService) get(Pool.COMPUTE);
+    }
+
+    /**
+     * @return the pool. Created on first use.
+     */
+    private static synchronized Metered get(Pool pool) {
+        Metered executor = pools.get(pool);
+        if (executor == null) {
+            executor = create(pool);
+            pools.put(pool, executor);
+        }
+        return executor;
+    }
+
+    private static Metered create(Pool pool) {
+        switch (pool) {
+            case DB_WRITE:
+                return new MeteredThreadPoolExecutor("db-write", 1,
+                        CollectionFinals.EXECUTOR_DB_WRITE_QUEUE, new BlockingPolicy());
+            case DB_READ:
+                return new MeteredThreadPoolExecutor("db-read", CollectionFinals.EXECUTOR_DB_READ_THREADS,
+                        Integer.MAX_VALUE, new ThreadPoolExecutor.AbortPolicy());
+            case BLE:
+                return new MeteredScheduledExecutor("ble-timer");
+            case NETWORK:
+                return new MeteredThreadPoolExecutor("network", CollectionFinals.EXECUTOR_NETWORK_THREADS,
+                        CollectionFinals.EXECUTOR_NETWORK_QUEUE, new ThreadPoolExecutor.AbortPolicy());
+            default:
+                return new MeteredThreadPoolExecutor("compute",
+                        Math.max(1, Math.min(Runtime.getRuntime().availableProcessors() - 1,
+                                CollectionFinals.EXECUTOR_COMPUTE_MAX_THREADS)),
+                        CollectionFinals.EXECUTOR_COMPUTE_QUEUE, new ThreadPoolExecutor.AbortPolicy());
+        }
+    }
+
+    /**
+     * @return a human readable summary of the pools used so far. Used by the diagnostics screen.
+     */
+    public static synchronized String getSummary() {
+        if (pools.isEmpty()) return "No executor used yet";
+
+        StringBuilder sb = new StringBuilder();
+        for (Metered executor : pools.values()) {
+            sb.append(executor.getSummary()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * An executor which keeps {@link PoolMetrics}.
+     */
+    private interface Metered {
+        String getSummary();
+    }
+
+    /**
+     * The queue wait, run time and rejections of a pool.
+     */
+    private static class PoolMetrics {
+
+        private final String name;
+        private final LatencyStats wait = new LatencyStats(CollectionFinals.EXECUTOR_LATENCY_SAMPLES);
+        private final LatencyStats run = new LatencyStats(CollectionFinals.EXECUTOR_LATENCY_SAMPLES);
+        private final AtomicLong rejected = new AtomicLong(0);
+
+        PoolMetrics(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @param task the task
+         * @param dueNanos when the task should start (System.nanoTime())
+         * @return the task, timed.
+         */
+        Runnable wrap(Runnable task, long dueNanos) {
+            return () -> {
+                long startedAt = System.nanoTime();
+                wait.record(TimeUnit.NANOSECONDS.toMillis(Math.max(0, startedAt - dueNanos)));
+                try {
+                    task.run();
+                } finally {
+                    run.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt));
+                }
+            };
+        }
+
+        /**
+         * Counts the rejections before handing them to the policy of the pool.
+         */
+        RejectedExecutionHandler counting(RejectedExecutionHandler policy) {
+            return (task, executor) -> {
+                if (rejected.incrementAndGet() % CollectionFinals.EXECUTOR_REJECTION_LOG_INTERVAL == 1) {
+                    Log.w(tag, name + " is saturated: " + rejected.get() + " tasks rejected");
+                }
+                policy.rejectedExecution(task, executor);
+            };
+        }
+
+        String getSummary(int active, int threads, int queued) {
+            return String.format(Locale.ENGLISH, "%s: %d/%d active, %d queued, %d rejected\n  wait %s\n  run %s",
+                    name, active, threads, queued, rejected.get(), wait, run);
+        }
+    }
+
+    /**
+     * Makes the caller wait until the queue has room for the task.
+     */
+    private static class BlockingPolicy implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) throw new RejectedExecutionException("The pool is shut down");
+            try {
+                executor.getQueue().put(task);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RejectedExecutionException("Interrupted while waiting for the queue", e);
+            }
+        }
+    }
+
+    /**
+     * Names the threads of a pool, so they can be told apart in traces and ANR dumps.
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        NamedThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(@NonNull Runnable runnable) {
+            return new Thread(runnable, "breathe-" + name + "-" + count.incrementAndGet());
+        }
+    }
+
+    /**
+     * A fixed number of threads over a queue of the given capacity. Idle threads time out.
+     */
+    private static class MeteredThreadPoolExecutor extends ThreadPoolExecutor implements Metered {
+
+        private final PoolMetrics metrics;
+
+        MeteredThreadPoolExecutor(String name, int threads, int queueCapacity, RejectedExecutionHandler policy) {
+            this(new PoolMetrics(name), threads, queueCapacity, policy);
+        }
+
+        private MeteredThreadPoolExecutor(PoolMetrics metrics, int threads, int queueCapacity,
+                                          RejectedExecutionHandler policy) {
+            super(threads, threads, CollectionFinals.EXECUTOR_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(queueCapacity), new NamedThreadFactory(metrics.name),
+                    metrics.counting(policy));
+            this.metrics = metrics;
+            allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            super.execute(metrics.wrap(command, System.nanoTime()));
+        }
+
+        @Override
+        public String getSummary() {
+            return metrics.getSummary(getActiveCount(), getMaximumPoolSize(), getQueue().size());
+        }
+    }
+
+    /**
+     * A single timer thread. Timers are few, so its queue is not bounded. The wait of a task is how
+     * late it started.
+     */
+    private static class MeteredScheduledExecutor extends ScheduledThreadPoolExecutor implements Metered {
+
+        private final PoolMetrics metrics;
+
+        MeteredScheduledExecutor(String name) {
+            this(new PoolMetrics(name));
+        }
+
+        private MeteredScheduledExecutor(PoolMetrics metrics) {
+            super(1, new NamedThreadFactory(metrics.name), metrics.counting(new AbortPolicy()));
+            this.metrics = metrics;
+            setRemoveOnCancelPolicy(true); // cancelled reconnections don't pile up in the queue.
+        }
+
+        @NonNull
+        @Override
+        public ScheduledFuture<?> schedule(@NonNull Runnable command, long delay, @NonNull TimeUnit unit) {
+            return super.schedule(metrics.wrap(command, System.nanoTime() + unit.toNanos(delay)), delay, unit);
+        }
+
+        @Override
+        public String getSummary() {
+            return metrics.getSummary(getActiveCount(), getCorePoolSize(), getQueue().size());
+        }
+    }
+}
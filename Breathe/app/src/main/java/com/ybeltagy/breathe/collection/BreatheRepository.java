@@ -1,30 +1,29 @@
 package com.ybeltagy.breathe.collection;
 
 import android.annotation.SuppressLint;
-import android.app.Application;
 import android.content.Context;
 
 import androidx.lifecycle.LiveData;
-import androidx.work.BackoffPolicy;
-import androidx.work.Data;
-import androidx.work.OneTimeWorkRequest;
-import androidx.work.WorkManager;
-import androidx.work.WorkRequest;
 
+import com.ybeltagy.breathe.ble.BLEFinals;
 import com.ybeltagy.breathe.data.BreatheDao;
 import com.ybeltagy.breathe.data.DiaryEntry;
+import com.ybeltagy.breathe.data.IUEDiaryEntry;
 import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.data.EnrichmentState;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
 import com.ybeltagy.breathe.data.WearableData;
 import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.data.WeatherObservation;
 
-import com.ybeltagy.breathe.weather_data_collection.GPSWorker;
-import com.ybeltagy.breathe.weather_data_collection.TaskDataFinals;
-import com.ybeltagy.breathe.weather_data_collection.WeatherAPIWorker;
+import com.ybeltagy.breathe.weather_data_collection.LocationService;
+import com.ybeltagy.breathe.weather_data_collection.WeatherCache;
+import com.ybeltagy.breathe.weather_data_collection.WeatherFinals;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.TimeUnit;
 
 /**
  * The BreatheRepository class:
@@ -32,22 +31,87 @@ import java.util.concurrent.TimeUnit;
  * - Abstracts access to multiple data sources (such as getting data from a network or
  * cached data from local database)
  * - Manages query threads and allows the use of multiple backends (for future teams)
+ * - Is a singleton scoped to the application, so every screen observes the same LiveData: Room runs
+ * each query once per change of its tables and multicasts the result to all the observers
+ * - Gives the screens which don't show whole IUEs projections (count, diary entry)
  */
 public class BreatheRepository {
     private final BreatheDao breatheDao;
     private final LiveData<List<InhalerUsageEvent>> allInhalerUsageEvents;
+    private final LiveData<Integer> iueCount;
     private static final String tag = BreatheRepository.class.getName();
 
-    public BreatheRepository(Application app) {
-        BreatheRoomDatabase breatheDB = BreatheRoomDatabase.getDatabase(app); // get handle to database
+    private static volatile BreatheRepository INSTANCE; // this BreatheRepository is a singleton
+
+    /**
+     * Where the wearable data of the IUEs comes from.
+     */
+    private static volatile WearableSource wearableSource = WearableSource.BLE;
+
+    private BreatheRepository(Context context) {
+        BreatheRoomDatabase breatheDB = BreatheRoomDatabase.getDatabase(context); // get handle to database
         breatheDao = breatheDB.breatheDao();
         allInhalerUsageEvents = breatheDao.getAllIUEs();
+        iueCount = breatheDao.observeIUECount();
     }
 
+    // creates a singleton BreatheRepository
+    // (singleton so the screens share the queries of the timeline)
+    public static BreatheRepository getRepository(final Context context) {
+        if (INSTANCE == null) {
+            synchronized (BreatheRepository.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new BreatheRepository(context.getApplicationContext());
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    /**
+     * @return all the IUEs, newest first. The same LiveData for every caller.
+     */
     public LiveData<List<InhalerUsageEvent>> getAllInhalerUsageEvents() {
         return allInhalerUsageEvents;
     }
 
+    /**
+     * @return the number of IUEs. Counted by the database, without loading them.
+     */
+    public LiveData<Integer> getIUECount() {
+        return iueCount;
+    }
+
+    /**
+     * @param timeStamp the timestamp of the IUE
+     * @return the timestamp, tag and message of the IUE, without its wearable and weather data.
+     */
+    public LiveData<IUEDiaryEntry> getIUEDiaryEntry(Instant timeStamp) {
+        return breatheDao.observeIUEDiaryEntry(timeStamp);
+    }
+
+    /**
+     * Used by tests, e.g. to replay IUEs with fake wearable data.
+     * @param source the source of the wearable data or null for the BLE wearables
+     */
+    public static void setWearableSource(WearableSource source) {
+        wearableSource = source != null ? source : WearableSource.BLE;
+    }
+
+    static WearableSource getWearableSource() {
+        return wearableSource;
+    }
+
+    /**
+     * Wrapper for BreatheDao observeWeatherObservation method
+     * - the key comes from the output of a WeatherAPIWorker
+     *
+     * @return the cached weather observation wrapped as LiveData
+     */
+    public LiveData<WeatherObservation> getWeatherObservation(String geohash, int bucketMinutes, Instant bucketStart) {
+        return breatheDao.observeWeatherObservation(geohash, bucketMinutes, bucketStart);
+    }
+
     /**
      * Wrapper for BreatheDao insert method
      * - inserts a single InhalerUsageEvent
@@ -133,26 +197,28 @@ public class BreatheRepository {
      * @param timestamp the IUE timestamp
      * @param context   the calling context
      */
-    @SuppressLint("NewApi")
     public static void startDataCollection(Instant timestamp, Context context){ //fixme: made static temporarily
+        startDataCollection(timestamp, context, null);
+    }
 
-        InhalerUsageEvent iue = new InhalerUsageEvent(timestamp);
-
-        // fixme: replace back after changing from static
-        //insertIUE(iue);
-        BreatheRoomDatabase.getDatabase(context).dbWriteExecutor.execute(
-                () -> BreatheRoomDatabase.getDatabase(context).breatheDao().insert(iue)
-        );
+    /**
+     * Like {@link #startDataCollection(Instant, Context)}, but tells the caller once the IUE is committed.
+     *
+     * @param timestamp the IUE timestamp
+     * @param context   the calling context
+     * @param onSaved   runs on the database thread once the IUE is in the database. May be null.
+     */
+    @SuppressLint("NewApi")
+    public static void startDataCollection(Instant timestamp, Context context, Runnable onSaved){
 
+        InhalerUsageEvent iue = new InhalerUsageEvent(timestamp);
 
-        // Get WearableData
-        // - check if timestamp is <= 5 minutes old - if it is, get environmental data
-        //   from the smart wearable
-        Instant now = Instant.now();
-        Instant wearableLimit = now.minus(10, ChronoUnit.MINUTES); // TODO: remove hardcoded variable and move to resources file
-        if (timestamp.isAfter(wearableLimit)) {
-            wearableDataHelper(timestamp, context);
-        }
+        // Use the context the ContextPrefetcher warmed before the IUE, if it is close enough to it.
+        WearableData prefetchedWearableData =
+                wearableSource.getRecentWearableData(timestamp, CollectionFinals.PREFETCH_WEARABLE_MAX_AGE_MILLIS);
+        // The weather the prefetch workers cached near the current location is looked up with the insert.
+        LocationService.LocationSnapshot location = LocationService.getRecentLocation(context, BreatheClock.now());
+        Instant locatedAt = BreatheClock.now();
 
         // Get WeatherData for this IUE:
         // - check if timestamp is <= 6 hours old (+ a 5 min cushion in case it takes a bit
@@ -160,58 +226,86 @@ public class BreatheRepository {
         //   we can't get historical weather data for it
         // - may be unnecessary but also check if this timestamp is erroneously from the future
         //   because then we won't be able to get weather data for it
-        Instant weatherLimit = now.minus(6, ChronoUnit.HOURS)
+        Instant now = BreatheClock.now();
+        Instant weatherLimit = now.minus(WeatherFinals.WEATHER_HISTORY_HOURS, ChronoUnit.HOURS)
                 .plus(5, ChronoUnit.MINUTES);
-        if (timestamp.isAfter(weatherLimit)) {
-            getAndSaveWeatherDataHelper(timestamp, context);
-        }
-    }
+        boolean liveWeather = timestamp.isAfter(weatherLimit);
 
-    private static void wearableDataHelper(Instant timestamp, Context context) {
-        WorkRequest wearableWorkRequest =
-                new OneTimeWorkRequest
-                        .Builder(WearableWorker.class)
-                        .setBackoffCriteria(
-                                BackoffPolicy.EXPONENTIAL,
-                                OneTimeWorkRequest.MIN_BACKOFF_MILLIS,
-                                TimeUnit.MILLISECONDS)
-                        .setInputData(
-                                new Data.Builder().putString(
-                                        TaskDataFinals.KEY_TIMESTAMP, timestamp.toString()).build())
-                        // todo: Merge the weather data package and this package. It is not a good idea to refer to a final in another package.
-                        .build();
-        WorkManager
-                .getInstance(context)
-                .enqueue(wearableWorkRequest);
+        // Get WearableData
+        // - check if timestamp is recent - if it is, get environmental data from the smart wearable
+        Instant wearableLimit = now.minusMillis(CollectionFinals.ENRICHMENT_WEARABLE_MAX_AGE_MILLIS);
+        boolean fetchWearable = prefetchedWearableData == null && timestamp.isAfter(wearableLimit);
+
+        // What is still missing is PENDING. The weather of an IUE older than the live window is the backfill's.
+        iue.setWearableEnrichment(new EnrichmentState(fetchWearable || prefetchedWearableData != null ?
+                EnrichmentStatus.PENDING : EnrichmentStatus.NOT_APPLICABLE));
+        iue.setWeatherEnrichment(new EnrichmentState(EnrichmentStatus.PENDING));
+
+        // fixme: replace back after changing from static
+        //insertIUE(iue);
+        BreatheRoomDatabase.getDatabase(context).dbWriteExecutor.execute(() -> {
+            BreatheDao dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+            dao.insert(iue);
+            if (onSaved != null) onSaved.run();
+
+            WeatherData prefetchedWeatherData = location == null ? null :
+                    WeatherCache.get(context, timestamp, location.latitude, location.longitude);
+            boolean fetchWeather = prefetchedWeatherData == null && liveWeather;
+
+            // The updates must follow the insert, so they run in the same task. They mark the data DONE.
+            if (prefetchedWearableData != null) {
+                dao.updateWearableData(timestamp, timestamp,
+                        prefetchedWearableData.getTemperature(),
+                        prefetchedWearableData.getHumidity(),
+                        prefetchedWearableData.getPm_count_2_5(),
+                        prefetchedWearableData.getPm_count_10(),
+                        prefetchedWearableData.getVoc_data(),
+                        prefetchedWearableData.getCo2_data());
+            }
+            if (prefetchedWeatherData != null) {
+                dao.updateWeatherData(timestamp,
+                        prefetchedWeatherData.getWeatherTemperature(),
+                        prefetchedWeatherData.getWeatherHumidity(),
+                        prefetchedWeatherData.getWeatherPrecipitationIntensity(),
+                        prefetchedWeatherData.getWeatherTreeIndex(),
+                        prefetchedWeatherData.getWeatherGrassIndex(),
+                        prefetchedWeatherData.getWeatherEPAIndex());
+            }
+
+            // The stages reached with the prefetched context are traced like the ones of the EnrichmentWorker,
+            // so the histograms don't only see the IUEs which took the slow path.
+            String device = BLEFinals.INHALER_DEVICE_NAME;
+            if (prefetchedWearableData != null) {
+                IngestTracer.record(context, device, IngestTracer.Stage.WEARABLE_ATTACHED, timestamp);
+            }
+            if (prefetchedWeatherData != null) {
+                IngestTracer.record(context, device, IngestTracer.Stage.LOCATION_ACQUIRED,
+                        Collections.singletonList(timestamp), locatedAt);
+                IngestTracer.record(context, device, IngestTracer.Stage.WEATHER_ATTACHED, timestamp);
+            }
+
+            // One worker enriches all the incomplete IUEs.
+            if (fetchWearable || fetchWeather) EnrichmentWorker.enqueue(context);
+            else if (prefetchedWeatherData != null) {
+                IngestTracer.record(context, device, IngestTracer.Stage.ENRICHED, timestamp);
+            }
+        });
+
+        ContextPrefetcher.onIUE(context, timestamp);
     }
 
-    @SuppressLint("NewApi")
-    private static void getAndSaveWeatherDataHelper(Instant timestamp, Context context) {
-        // create work request for GPS
-        WorkManager dataFlowManager = WorkManager.getInstance(context);
-        OneTimeWorkRequest gpsRequest = new OneTimeWorkRequest
-                .Builder(GPSWorker.class)
-                .setBackoffCriteria(
-                        BackoffPolicy.EXPONENTIAL,
-                        OneTimeWorkRequest.MIN_BACKOFF_MILLIS,
-                        TimeUnit.MILLISECONDS).build();
-
-        //  create work request for online weather data for the GPS location
-        //  and save it to the database
-        Data requestWeather = new Data.Builder()
-                .putString(TaskDataFinals.KEY_TIMESTAMP, timestamp.toString())
-                .putBoolean( // true, save it to the database
-                        TaskDataFinals.KEY_SAVE_WEATHER, true).build();
-
-        OneTimeWorkRequest weatherAPIRequest =
-                new OneTimeWorkRequest.Builder(WeatherAPIWorker.class)
-                        .setInputData(requestWeather)
-                        .build();
-
-        dataFlowManager
-                .beginWith(gpsRequest)
-                .then(weatherAPIRequest)
-                .enqueue();
+    /**
+     * Bulk inserts readings downloaded from the wearable log.
+     *
+     * @param context  the calling context
+     * @param readings the readings. Readings already in the database are skipped.
+     * @param onSaved  runs on the database thread once the readings are committed.
+     */
+    public static void insertWearableLog(Context context, List<WearableData> readings, Runnable onSaved){
+        BreatheRoomDatabase.dbWriteExecutor.execute(() -> {
+            BreatheRoomDatabase.getDatabase(context).breatheDao().insertWearableData(readings);
+            onSaved.run();
+        });
     }
 
     public void clearIUEs(){
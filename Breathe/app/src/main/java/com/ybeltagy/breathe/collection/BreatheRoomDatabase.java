@@ -10,24 +10,30 @@ import androidx.room.Database;
 import androidx.room.Room;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
 import androidx.sqlite.db.SupportSQLiteDatabase;
 
 import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.IngestLatencyBucket;
 import com.ybeltagy.breathe.data.InhalerUsageEvent;
 import com.ybeltagy.breathe.data.WearableData;
+import com.ybeltagy.breathe.data.WeatherObservation;
 import com.ybeltagy.breathe.data.Converters;
+import com.ybeltagy.breathe.data.DataFinals;
 
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Executor;
 
 /**
  * The single database of our Breathe application
  * - contains the Inhaler_Usage_Event_table with InhalerUsageEvent entities
  * - contains the Wearable_Data_table with WearableData entities
+ * - contains the WeatherObservation_table which caches WeatherObservation entities
+ * - contains the ingest_latency table which keeps the IngestTracer histograms
  */
-@Database(entities = {InhalerUsageEvent.class, WearableData.class}, version = 3)
+@Database(entities = {InhalerUsageEvent.class, WearableData.class, WeatherObservation.class,
+        IngestLatencyBucket.class}, version = 8)
 @TypeConverters({Converters.class})
 public abstract class BreatheRoomDatabase extends RoomDatabase {
 
@@ -35,8 +41,163 @@ public abstract class BreatheRoomDatabase extends RoomDatabase {
 
     private static volatile BreatheRoomDatabase INSTANCE; // this BreatheRoomDatabase is a singleton
 
-    // Executor Service is used (replaced AsyncTask) so inserts may happen concurrently
-    protected static final ExecutorService dbWriteExecutor = Executors.newCachedThreadPool();
+    // The single writer thread of the BreatheExecutors (replaced AsyncTask), so writes are applied in order
+    protected static volatile Executor dbWriteExecutor = BreatheExecutors.dbWrite();
+
+    /**
+     * Used by tests, e.g. to run the writes synchronously on the calling thread.
+     * @param executor the executor the writes run on or null for the writer thread
+     */
+    public static void setWriteExecutor(Executor executor) {
+        dbWriteExecutor = executor != null ? executor : BreatheExecutors.dbWrite();
+    }
+
+    /**
+     * Indexes the IUEs whose wearable or weather enrichment is PENDING (ordinal 1), so the enrichment
+     * and backfill workers find them without scanning the table. The complete IUEs, which are almost
+     * all of them, stay out of the index.
+     * Room 2.3 can't declare a partial index on the entity, so it is created whenever the database is
+     * opened, and every {@link BreatheMigration} drops it before Room validates the migrated tables.
+     */
+    static final String INCOMPLETE_IUE_INDEX = "index_InhalerUsageEvent_table_incomplete";
+
+    private static final String CREATE_INCOMPLETE_IUE_INDEX =
+            "CREATE INDEX IF NOT EXISTS " + INCOMPLETE_IUE_INDEX + " " +
+                    "ON InhalerUsageEvent_table (Inhaler_Usage_Event_UTC_ISO_8601_date_time) " +
+                    "WHERE wearable_enrichment_status = 1 OR weather_enrichment_status = 1";
+
+    private static final String DROP_INCOMPLETE_IUE_INDEX = "DROP INDEX IF EXISTS " + INCOMPLETE_IUE_INDEX;
+
+    /**
+     * A migration which keeps the data. Drops the partial index first: Room validates the migrated
+     * tables against the entities, which don't declare it. The index is created again once the
+     * database is open.
+     */
+    private abstract static class BreatheMigration extends Migration {
+
+        BreatheMigration(int startVersion, int endVersion) {
+            super(startVersion, endVersion);
+        }
+
+        @Override
+        public final void migrate(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL(DROP_INCOMPLETE_IUE_INDEX);
+            migrateTables(db);
+        }
+
+        abstract void migrateTables(@NonNull SupportSQLiteDatabase db);
+    }
+
+    /**
+     * Adds the weather cache.
+     */
+    static final Migration MIGRATION_3_4 = new BreatheMigration(3, 4) {
+        @Override
+        void migrateTables(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `WeatherObservation_table` (" +
+                    "`geohash` TEXT NOT NULL, `bucketMinutes` INTEGER NOT NULL, `bucketStart` TEXT NOT NULL, " +
+                    "`fetchedAt` TEXT NOT NULL, `weatherTemperature` REAL NOT NULL, " +
+                    "`weatherHumidity` REAL NOT NULL, `weatherPrecipitationIntensity` REAL NOT NULL, " +
+                    "`weatherTreeIndex` INTEGER, `weatherGrassIndex` INTEGER, `weatherEPAIndex` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`geohash`, `bucketMinutes`, `bucketStart`))");
+            db.execSQL("CREATE INDEX IF NOT EXISTS `index_WeatherObservation_table_fetchedAt` " +
+                    "ON `WeatherObservation_table` (`fetchedAt`)");
+        }
+    };
+
+    /**
+     * Indexes the IUEs by weather temperature for the first weather backfill.
+     */
+    static final Migration MIGRATION_4_5 = new BreatheMigration(4, 5) {
+        @Override
+        void migrateTables(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE INDEX IF NOT EXISTS " +
+                    "`index_InhalerUsageEvent_table_weatherTemperature_Inhaler_Usage_Event_UTC_ISO_8601_date_time` " +
+                    "ON `InhalerUsageEvent_table` (`weatherTemperature`, `Inhaler_Usage_Event_UTC_ISO_8601_date_time`)");
+        }
+    };
+
+    /**
+     * Adds the queue of the IUEs waiting for their enrichment.
+     */
+    static final Migration MIGRATION_5_6 = new BreatheMigration(5, 6) {
+        @Override
+        void migrateTables(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `pending_enrichment` (" +
+                    "`Inhaler_Usage_Event_UTC_ISO_8601_date_time` TEXT NOT NULL, " +
+                    "`needsWearableData` INTEGER NOT NULL, `needsWeatherData` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`Inhaler_Usage_Event_UTC_ISO_8601_date_time`))");
+        }
+    };
+
+    /**
+     * Moves the enrichment state into the IUEs and drops the queue and the weather temperature index.
+     * The IUEs queued for some data are PENDING for it. The others are DONE for the data they have,
+     * their weather is PENDING for the backfill if they have none and their wearable data, which can't
+     * be had anymore, is NOT_APPLICABLE.
+     */
+    static final Migration MIGRATION_6_7 = new BreatheMigration(6, 7) {
+        @Override
+        void migrateTables(@NonNull SupportSQLiteDatabase db) {
+            for (String prefix : new String[]{"wearable_enrichment_", "weather_enrichment_"}) {
+                db.execSQL("ALTER TABLE `InhalerUsageEvent_table` ADD COLUMN `" + prefix + "status` " +
+                        "INTEGER NOT NULL DEFAULT 0"); // EnrichmentStatus.NOT_APPLICABLE
+                db.execSQL("ALTER TABLE `InhalerUsageEvent_table` ADD COLUMN `" + prefix + "attempts` " +
+                        "INTEGER NOT NULL DEFAULT 0");
+                db.execSQL("ALTER TABLE `InhalerUsageEvent_table` ADD COLUMN `" + prefix + "retry_at` " +
+                        "TEXT NOT NULL DEFAULT '" + DataFinals.DEFAULT_INSTANT + "'");
+            }
+
+            // A missing value is NULL or DataFinals.DEFAULT_FLOAT (the smallest positive float).
+            db.execSQL("UPDATE `InhalerUsageEvent_table` SET `wearable_enrichment_status` = 2 " + // DONE
+                    "WHERE `temperature` IS NOT NULL AND NOT (`temperature` > 0 AND `temperature` < 1e-30)");
+            db.execSQL("UPDATE `InhalerUsageEvent_table` SET `weather_enrichment_status` = " +
+                    "CASE WHEN `weatherTemperature` IS NOT NULL " +
+                    "AND NOT (`weatherTemperature` > 0 AND `weatherTemperature` < 1e-30) " +
+                    "THEN 2 ELSE 1 END"); // DONE or PENDING
+
+            db.execSQL("UPDATE `InhalerUsageEvent_table` SET `wearable_enrichment_status` = 1 " + // PENDING
+                    "WHERE `Inhaler_Usage_Event_UTC_ISO_8601_date_time` IN (" +
+                    "SELECT `Inhaler_Usage_Event_UTC_ISO_8601_date_time` FROM `pending_enrichment` " +
+                    "WHERE `needsWearableData` = 1)");
+            db.execSQL("UPDATE `InhalerUsageEvent_table` SET `weather_enrichment_status` = 1 " + // PENDING
+                    "WHERE `Inhaler_Usage_Event_UTC_ISO_8601_date_time` IN (" +
+                    "SELECT `Inhaler_Usage_Event_UTC_ISO_8601_date_time` FROM `pending_enrichment` " +
+                    "WHERE `needsWeatherData` = 1)");
+
+            db.execSQL("DROP TABLE IF EXISTS `pending_enrichment`");
+            db.execSQL("DROP INDEX IF EXISTS " +
+                    "`index_InhalerUsageEvent_table_weatherTemperature_Inhaler_Usage_Event_UTC_ISO_8601_date_time`");
+        }
+    };
+
+    /**
+     * Adds the ingest latency histograms.
+     */
+    static final Migration MIGRATION_7_8 = new BreatheMigration(7, 8) {
+        @Override
+        void migrateTables(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL("CREATE TABLE IF NOT EXISTS `ingest_latency` (" +
+                    "`device` TEXT NOT NULL, `stage` TEXT NOT NULL, `day` TEXT NOT NULL, " +
+                    "`bucket` INTEGER NOT NULL, `count` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`device`, `stage`, `day`, `bucket`))");
+        }
+    };
+
+    /**
+     * The migrations from version 3 on. The versions before 3 have no migration. A new version needs one.
+     */
+    static final Migration[] MIGRATIONS = {MIGRATION_3_4, MIGRATION_4_5, MIGRATION_5_6, MIGRATION_6_7, MIGRATION_7_8};
+
+    /**
+     * Creates the indices Room can't declare whenever the database is opened.
+     */
+    static final Callback CREATE_INDICES = new Callback() {
+        @Override
+        public void onOpen(@NonNull SupportSQLiteDatabase db) {
+            db.execSQL(CREATE_INCOMPLETE_IUE_INDEX);
+        }
+    };
 
     // creates a singleton BreatheRoomDatabase
     // (singleton to prevent multiple instances of the database being opened)
@@ -47,8 +208,10 @@ public abstract class BreatheRoomDatabase extends RoomDatabase {
                     // create database
                     INSTANCE = Room.databaseBuilder(context.getApplicationContext(),
                             BreatheRoomDatabase.class, "Breathe_database")
-                            .fallbackToDestructiveMigration() // allow for destructive Migration.
-                            // Note: leaving implementation of migration strategy to future teams
+                            .setQueryExecutor(BreatheExecutors.dbRead())
+                            .addMigrations(MIGRATIONS)
+                            .fallbackToDestructiveMigrationFrom(1, 2)
+                            .addCallback(CREATE_INDICES)
                             .build();
                 }
             }
@@ -0,0 +1,158 @@
+package com.ybeltagy.breathe.collection;
+
+/**
+ * A centralized location to store the constants of the data collection.
+ */
+public class CollectionFinals {
+
+    /**
+     * The name of the unique work which prefetches the context of an IUE.
+     */
+    protected static final String PREFETCH_WORK_NAME = "com.ybeltagy.breathe.collection.prefetch";
+
+    /**
+     * The name of the unique work which prefetches before the next likely usage hour.
+     */
+    protected static final String SCHEDULED_PREFETCH_WORK_NAME = "com.ybeltagy.breathe.collection.scheduled_prefetch";
+
+    /**
+     * The file name of the shared preferences which holds the number of IUEs per hour of the day.
+     */
+    protected static final String USAGE_PATTERN_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.collection.usage_pattern";
+
+    /**
+     * Prefetches closer together than this are skipped.
+     */
+    protected static final long PREFETCH_MIN_INTERVAL_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * How long the wearable read of the prefetch may take.
+     */
+    protected static final long PREFETCH_STEP_TIMEOUT_SECONDS = 10;
+
+    /**
+     * A prefetched wearable sample further than this from an IUE is not used for it.
+     */
+    protected static final long PREFETCH_WEARABLE_MAX_AGE_MILLIS = 2 * 60 * 1000;
+
+    /**
+     * The weight of a new inhaler RSSI sample in the running average.
+     */
+    protected static final double PREFETCH_RSSI_SMOOTHING = 0.25;
+
+    /**
+     * An inhaler RSSI this much above its running average means the inhaler was picked up or brought closer.
+     */
+    protected static final int PREFETCH_RSSI_RISE_DB = 8;
+
+    /**
+     * How long before a likely usage hour the scheduled prefetch runs.
+     */
+    protected static final long PREFETCH_LEAD_MINUTES = 10;
+
+    /**
+     * An hour of the day is a likely usage hour if it holds at least this share of the IUEs...
+     */
+    protected static final double USAGE_HOUR_MIN_SHARE = 0.1;
+
+    /**
+     * ...and at least this many IUEs.
+     */
+    protected static final int USAGE_HOUR_MIN_IUES = 3;
+
+    /**
+     * The name of the unique work which enriches the incomplete IUEs.
+     */
+    protected static final String ENRICHMENT_WORK_NAME = "com.ybeltagy.breathe.collection.enrichment";
+
+    /**
+     * The name of the unique work which comes back for the IUEs whose enrichment failed once the
+     * earliest of their retries is due. Public so tests can run it early.
+     */
+    public static final String ENRICHMENT_RETRY_WORK_NAME = "com.ybeltagy.breathe.collection.enrichment_retry";
+
+    /**
+     * The number of incomplete IUEs the EnrichmentWorker reads at once.
+     */
+    protected static final int ENRICHMENT_BATCH_SIZE = 200;
+
+    /**
+     * Drains enqueued closer together than this are coalesced, unless the earlier one already started.
+     */
+    protected static final long ENRICHMENT_COALESCE_MILLIS = 5 * 1000;
+
+    /**
+     * An IUE older than this can't get wearable data anymore.
+     */
+    protected static final long ENRICHMENT_WEARABLE_MAX_AGE_MILLIS = 10 * 60 * 1000;
+
+    /**
+     * The failed attempts after which the wearable data of an IUE is FAILED. With the backoff, they
+     * span about the max age above.
+     */
+    protected static final int ENRICHMENT_WEARABLE_MAX_ATTEMPTS = 5;
+
+    /**
+     * How long the EnrichmentWorker waits for the wearable read. The wearables are read one at a time,
+     * so with several of them the wait may end before the last read. The run then fuses the readings
+     * already recorded.
+     */
+    protected static final long ENRICHMENT_WEARABLE_TIMEOUT_SECONDS = 10;
+
+    /**
+     * The number of buckets of an ingest latency histogram. Two per doubling, so the last one starts
+     * at about 2^31.5 ms (a month).
+     */
+    protected static final int INGEST_LATENCY_BUCKETS = 64;
+
+    /**
+     * The days before today the ingest latency of today is compared with. Older histograms are deleted.
+     */
+    protected static final int INGEST_LATENCY_BASELINE_DAYS = 7;
+
+    /**
+     * A stage is flagged as a regression when its p95 today is more than this many times the p95 of
+     * the previous days, with at least this many IUEs today and before.
+     */
+    protected static final double INGEST_REGRESSION_FACTOR = 2.0;
+    protected static final int INGEST_REGRESSION_MIN_SAMPLES = 5;
+    protected static final int INGEST_REGRESSION_MIN_BASELINE_SAMPLES = 20;
+
+    /**
+     * The database writes queued before the callers have to wait for the writer.
+     */
+    protected static final int EXECUTOR_DB_WRITE_QUEUE = 4096;
+
+    /**
+     * The threads of the Room queries.
+     */
+    protected static final int EXECUTOR_DB_READ_THREADS = 2;
+
+    /**
+     * The threads and queue of the network calls. OkHttp keeps the calls beyond the threads in its
+     * own queue, so the queue only catches other callers.
+     */
+    protected static final int EXECUTOR_NETWORK_THREADS = 4;
+    protected static final int EXECUTOR_NETWORK_QUEUE = 64;
+
+    /**
+     * The CPU bound work gets at most this many threads and leaves a core to the UI.
+     */
+    protected static final int EXECUTOR_COMPUTE_MAX_THREADS = 4;
+    protected static final int EXECUTOR_COMPUTE_QUEUE = 64;
+
+    /**
+     * The idle threads of a pool stop after this.
+     */
+    protected static final long EXECUTOR_KEEP_ALIVE_SECONDS = 30;
+
+    /**
+     * The recent tasks the queue wait and run time percentiles of a pool are computed over.
+     */
+    protected static final int EXECUTOR_LATENCY_SAMPLES = 256;
+
+    /**
+     * A saturated pool logs every this many rejections.
+     */
+    protected static final int EXECUTOR_REJECTION_LOG_INTERVAL = 100;
+}
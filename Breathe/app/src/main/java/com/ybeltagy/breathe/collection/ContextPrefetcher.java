@@ -0,0 +1,117 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Warms the location, the current weather and a fresh wearable sample before an IUE happens, so
+ * the enrichment of the IUE is a lookup in the weather cache and the location snapshot instead of a GPS fix, an HTTP
+ * call and a BLE read in a row.
+ *
+ * Three signals trigger a prefetch:
+ * - the RSSI of the inhaler rises well above its running average (the inhaler was picked up or
+ *   brought closer to the phone),
+ * - a device (re)connects,
+ * - the clock approaches an hour of the day in which the inhaler is usually used.
+ *
+ * Triggered prefetches closer than {@link CollectionFinals#PREFETCH_MIN_INTERVAL_MILLIS} are skipped.
+ */
+public class ContextPrefetcher {
+
+    private static final String tag = ContextPrefetcher.class.getName();
+
+    /**
+     * The running average of the inhaler RSSI or NaN before the first sample.
+     */
+    private static double rssiAverage = Double.NaN;
+
+    /**
+     * When the last prefetch was enqueued (elapsed realtime).
+     */
+    private static long lastPrefetchAt = -CollectionFinals.PREFETCH_MIN_INTERVAL_MILLIS;
+
+    /**
+     * Called with every RSSI sample of the inhaler.
+     * @param context the calling context
+     * @param rssi the RSSI in dBm
+     */
+    public static void onInhalerRssi(Context context, int rssi) {
+        boolean rose;
+        synchronized (ContextPrefetcher.class) {
+            rose = !Double.isNaN(rssiAverage) && rssi - rssiAverage >= CollectionFinals.PREFETCH_RSSI_RISE_DB;
+            rssiAverage = Double.isNaN(rssiAverage) ? rssi :
+                    rssiAverage + CollectionFinals.PREFETCH_RSSI_SMOOTHING * (rssi - rssiAverage);
+        }
+
+        if (rose) prefetch(context, "inhaler RSSI rose to " + rssi);
+    }
+
+    /**
+     * Called when a device is ready.
+     * @param context the calling context
+     * @param deviceName the name of the device
+     */
+    public static void onDeviceConnected(Context context, String deviceName) {
+        prefetch(context, deviceName + " connected");
+        scheduleNextPrefetch(context);
+    }
+
+    /**
+     * Called for every new IUE. Learns the usage pattern and schedules the next prefetch from it.
+     * Old IUEs (e.g. ones the inhaler stored while it was disconnected) are only counted.
+     * @param context the calling context
+     * @param timestamp the timestamp of the IUE
+     */
+    @SuppressLint("NewApi")
+    public static void onIUE(Context context, Instant timestamp) {
+        new UsagePattern(context).record(timestamp.atZone(ZoneId.systemDefault()));
+        if (Duration.between(timestamp, BreatheClock.now()).toMinutes() < CollectionFinals.PREFETCH_LEAD_MINUTES) {
+            scheduleNextPrefetch(context);
+        }
+    }
+
+    /**
+     * Enqueues a prefetch unless one ran recently or is still running.
+     */
+    private static void prefetch(Context context, String reason) {
+        synchronized (ContextPrefetcher.class) {
+            long now = SystemClock.elapsedRealtime();
+            if (now - lastPrefetchAt < CollectionFinals.PREFETCH_MIN_INTERVAL_MILLIS) return;
+            lastPrefetchAt = now;
+        }
+
+        Log.d(tag, "Prefetching: " + reason);
+        WorkManager.getInstance(context).enqueueUniqueWork(CollectionFinals.PREFETCH_WORK_NAME,
+                ExistingWorkPolicy.KEEP, new OneTimeWorkRequest.Builder(PrefetchWorker.class).build());
+    }
+
+    /**
+     * Schedules a prefetch shortly before the next usage hour, replacing the previously scheduled one.
+     */
+    @SuppressLint("NewApi")
+    private static void scheduleNextPrefetch(Context context) {
+        ZonedDateTime now = ZonedDateTime.now(BreatheClock.getClock());
+        Instant nextUsageHour = new UsagePattern(context).getNextUsageHour(now, CollectionFinals.PREFETCH_LEAD_MINUTES);
+        if (nextUsageHour == null) return;
+
+        long delay = Duration.between(now.toInstant(), nextUsageHour).toMinutes() - CollectionFinals.PREFETCH_LEAD_MINUTES;
+        Log.d(tag, "Next scheduled prefetch in " + delay + " minutes");
+
+        WorkManager.getInstance(context).enqueueUniqueWork(CollectionFinals.SCHEDULED_PREFETCH_WORK_NAME,
+                ExistingWorkPolicy.REPLACE, new OneTimeWorkRequest.Builder(PrefetchWorker.class)
+                        .setInitialDelay(delay, TimeUnit.MINUTES)
+                        .build());
+    }
+}
@@ -0,0 +1,284 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.ExistingWorkPolicy;
+import androidx.work.OneTimeWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.ybeltagy.breathe.ble.BLEFinals;
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.EnrichmentState;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
+import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.data.WearableData;
+import com.ybeltagy.breathe.weather_data_collection.LocationService;
+import com.ybeltagy.breathe.weather_data_collection.WeatherBatch;
+import com.ybeltagy.breathe.weather_data_collection.WeatherFinals;
+import com.ybeltagy.breathe.weather_data_collection.WeatherQuota;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adds the wearable and weather data the IUEs were saved without.
+ *
+ * The IUEs to enrich are the ones whose {@link EnrichmentState} is PENDING and due, found through the
+ * partial index over the incomplete IUEs. A single unique worker serves every IUE, so a burst of IUEs
+ * costs a few WorkManager jobs instead of a wearable job and a GPS -> weather chain per IUE. Each run
+ * shares one wearable read, one location fix and batched weather requests across all of them.
+ *
+ * A failed attempt is recorded on the IUE for the source which failed, and only that source is retried,
+ * with exponential backoff. Once a run is over, a retry run is scheduled for the earliest retry.
+ * Data which can't be had anymore is given up: wearable data is FAILED after
+ * {@link CollectionFinals#ENRICHMENT_WEARABLE_MAX_ATTEMPTS} or once the IUE is older than
+ * {@link CollectionFinals#ENRICHMENT_WEARABLE_MAX_AGE_MILLIS}, and live weather is left to the backfill
+ * once the IUE is older than {@link WeatherFinals#WEATHER_HISTORY_HOURS}.
+ */
+public class EnrichmentWorker extends Worker {
+
+    private static final String tag = EnrichmentWorker.class.getName();
+
+    /**
+     * When a run was last enqueued (elapsed realtime). Enqueues closer together are coalesced into one.
+     */
+    private static final AtomicLong lastEnqueuedAt = new AtomicLong(Long.MIN_VALUE / 2);
+
+    /**
+     * Held by the run in progress. A retry run and a run for new IUEs may be started together, and
+     * they must not both try an IUE.
+     */
+    private static final ReentrantLock running = new ReentrantLock();
+
+    /**
+     * Set by a run which found another one in progress, so that one runs again once it is over.
+     */
+    private static final AtomicBoolean rerunRequested = new AtomicBoolean(false);
+
+    public EnrichmentWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Makes sure a run follows the IUEs saved so far. Call it after the IUEs are committed.
+     * @param context the calling context
+     */
+    static void enqueue(Context context) {
+        long now = SystemClock.elapsedRealtime();
+        long last = lastEnqueuedAt.get();
+        if (now - last < CollectionFinals.ENRICHMENT_COALESCE_MILLIS) return; // that run has not started yet.
+        if (!lastEnqueuedAt.compareAndSet(last, now)) return;
+
+        // Appended, so IUEs saved while a run is going get a run of their own.
+        WorkManager.getInstance(context).enqueueUniqueWork(CollectionFinals.ENRICHMENT_WORK_NAME,
+                ExistingWorkPolicy.APPEND_OR_REPLACE,
+                new OneTimeWorkRequest.Builder(EnrichmentWorker.class).build());
+    }
+
+    /**
+     * Schedules a run for when the earliest retry is due. Kept apart from the runs of
+     * {@link #enqueue(Context)}, so new IUEs don't wait for it. The latest schedule replaces the others.
+     * @param context the calling context
+     * @param delayMillis the time until the earliest retry
+     */
+    private static void scheduleRetry(Context context, long delayMillis) {
+        WorkManager.getInstance(context).enqueueUniqueWork(CollectionFinals.ENRICHMENT_RETRY_WORK_NAME,
+                ExistingWorkPolicy.REPLACE,
+                new OneTimeWorkRequest.Builder(EnrichmentWorker.class)
+                        .setInitialDelay(delayMillis, TimeUnit.MILLISECONDS)
+                        .build());
+    }
+
+    @NonNull
+    @Override
+    public Result doWork() {
+        // Requested before trying the lock, so the run in progress can't miss it while it finishes.
+        // The waits for the wearable and the location would block this WorkManager thread.
+        rerunRequested.set(true);
+        if (!running.tryLock()) {
+            Log.d(tag, "Another run is in progress, it will run again");
+            return Result.success();
+        }
+        try {
+            rerunRequested.set(false);
+            enrich();
+        } finally {
+            running.unlock();
+        }
+
+        if (rerunRequested.getAndSet(false)) enqueue(getApplicationContext());
+        return Result.success(); // the failures are retried per IUE.
+    }
+
+    @SuppressLint("NewApi")
+    private void enrich() {
+        // IUEs saved from now on are not guaranteed to be seen by this run.
+        lastEnqueuedAt.set(Long.MIN_VALUE / 2);
+
+        Context context = getApplicationContext();
+        BreatheRoomDatabase database = BreatheRoomDatabase.getDatabase(context);
+        BreatheDao dao = database.breatheDao();
+
+        Instant now = BreatheClock.now();
+        Instant wearableLimit = now.minusMillis(CollectionFinals.ENRICHMENT_WEARABLE_MAX_AGE_MILLIS);
+        Instant weatherLimit = now.minus(WeatherFinals.WEATHER_HISTORY_HOURS, ChronoUnit.HOURS);
+
+        boolean wearableRead = false;
+        LocationService.LocationSnapshot location = null;
+        Instant locatedAt = null; // when the location was known
+        boolean locationResolved = false;
+        Instant nextRetryAt = null;
+
+        // The IUEs before the live window are the backfill's. Allow some clock skew after now.
+        Instant after = weatherLimit;
+        Instant before = now.plus(1, ChronoUnit.DAYS);
+
+        while (!isStopped()) {
+            List<InhalerUsageEvent> batch =
+                    dao.getIncompleteIUEsBetween(after, before, CollectionFinals.ENRICHMENT_BATCH_SIZE);
+            if (batch.isEmpty()) break;
+            after = batch.get(batch.size() - 1).getInhalerUsageEventTimeStamp();
+
+            List<InhalerUsageEvent> wearableIUEs = new ArrayList<>();
+            List<InhalerUsageEvent> weatherIUEs = new ArrayList<>();
+            List<InhalerUsageEvent> expiredIUEs = new ArrayList<>();
+            for (InhalerUsageEvent iue : batch) {
+                EnrichmentState wearable = iue.getWearableEnrichment();
+                if (wearable.isPending() && !iue.getInhalerUsageEventTimeStamp().isAfter(wearableLimit)) {
+                    wearable.setStatus(EnrichmentStatus.FAILED);
+                    expiredIUEs.add(iue);
+                } else if (wearable.isDue(now)) {
+                    wearableIUEs.add(iue);
+                }
+                if (iue.getWeatherEnrichment().isDue(now)) weatherIUEs.add(iue);
+            }
+
+            // One wearable read per run. It refreshes the sample streams the IUEs are fused from.
+            if (!wearableIUEs.isEmpty() && !wearableRead) {
+                wearableRead = true;
+                try {
+                    BreatheRepository.getWearableSource().readWearableData(now)
+                            .get(CollectionFinals.ENRICHMENT_WEARABLE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    Log.d(tag, "Reading the wearable data failed: " + e.toString());
+                }
+            }
+
+            Map<Instant, WearableData> wearableData = new HashMap<>();
+            for (InhalerUsageEvent iue : wearableIUEs) {
+                Instant timestamp = iue.getInhalerUsageEventTimeStamp();
+                WearableData fused = BreatheRepository.getWearableSource().getRecentWearableData(timestamp,
+                        CollectionFinals.ENRICHMENT_WEARABLE_MAX_AGE_MILLIS);
+                if (fused != null) wearableData.put(timestamp, fused);
+                else iue.getWearableEnrichment().recordFailure(now, CollectionFinals.ENRICHMENT_WEARABLE_MAX_ATTEMPTS);
+            }
+
+            // One location fix per run. The weather of the batch is fetched in as few requests as possible.
+            Set<Instant> weatherDone = new HashSet<>();
+            if (!weatherIUEs.isEmpty()) {
+                if (!locationResolved) {
+                    locationResolved = true;
+                    location = LocationService.syncGetLocation(context, now);
+                    locatedAt = BreatheClock.now();
+                }
+                if (location != null) {
+                    List<Instant> timestamps = new ArrayList<>();
+                    for (InhalerUsageEvent iue : weatherIUEs) timestamps.add(iue.getInhalerUsageEventTimeStamp());
+                    weatherDone.addAll(WeatherBatch.saveWeatherData(context,
+                            location.latitude, location.longitude, timestamps));
+                }
+            }
+
+            // Running out of quota is not the IUE's fault: it waits for the bucket without using an attempt.
+            long deferMillis = location == null ? 0 : WeatherQuota.getDeferMillis(WeatherQuota.Priority.IUE);
+            for (InhalerUsageEvent iue : weatherIUEs) {
+                if (weatherDone.contains(iue.getInhalerUsageEventTimeStamp())) continue;
+                EnrichmentState weather = iue.getWeatherEnrichment();
+                if (deferMillis > 0) weather.setRetryAt(now.plusMillis(deferMillis));
+                else weather.recordFailure(now, WeatherFinals.WEATHER_ENRICHMENT_MAX_ATTEMPTS);
+            }
+
+            database.runInTransaction(() -> {
+                for (Map.Entry<Instant, WearableData> entry : wearableData.entrySet()) {
+                    WearableData data = entry.getValue();
+                    dao.updateWearableData(entry.getKey(), entry.getKey(),
+                            data.getTemperature(), data.getHumidity(), data.getPm_count_2_5(),
+                            data.getPm_count_10(), data.getVoc_data(), data.getCo2_data());
+                }
+                for (InhalerUsageEvent iue : expiredIUEs) updateWearableEnrichment(dao, iue);
+                for (InhalerUsageEvent iue : wearableIUEs) {
+                    if (!wearableData.containsKey(iue.getInhalerUsageEventTimeStamp())) updateWearableEnrichment(dao, iue);
+                }
+                for (InhalerUsageEvent iue : weatherIUEs) {
+                    if (!weatherDone.contains(iue.getInhalerUsageEventTimeStamp())) updateWeatherEnrichment(dao, iue);
+                }
+            });
+
+            // The IUEs still pending come back with the earliest of their retries.
+            List<Instant> enriched = new ArrayList<>();
+            for (InhalerUsageEvent iue : batch) {
+                Instant timestamp = iue.getInhalerUsageEventTimeStamp();
+                EnrichmentState wearable = iue.getWearableEnrichment();
+                EnrichmentState weather = iue.getWeatherEnrichment();
+                boolean wearablePending = wearable.isPending() && !wearableData.containsKey(timestamp);
+                boolean weatherPending = weather.isPending() && !weatherDone.contains(timestamp);
+                if (wearablePending) nextRetryAt = earliest(nextRetryAt, wearable.getRetryAt());
+                if (weatherPending) nextRetryAt = earliest(nextRetryAt, weather.getRetryAt());
+                if (!wearablePending && !weatherPending) enriched.add(timestamp);
+            }
+
+            // The IUEs don't record the inhaler which sent them. The app pairs a single one.
+            String device = BLEFinals.INHALER_DEVICE_NAME;
+            IngestTracer.record(context, device, IngestTracer.Stage.WEARABLE_ATTACHED,
+                    new ArrayList<>(wearableData.keySet()));
+            // When the location was known, for the IUEs whose weather it served. Only once per IUE: the
+            // location of a weather retried later would be recorded on every run.
+            if (locatedAt != null) {
+                IngestTracer.record(context, device, IngestTracer.Stage.LOCATION_ACQUIRED,
+                        new ArrayList<>(weatherDone), locatedAt);
+            }
+            IngestTracer.record(context, device, IngestTracer.Stage.WEATHER_ATTACHED, new ArrayList<>(weatherDone));
+            IngestTracer.record(context, device, IngestTracer.Stage.ENRICHED, enriched);
+
+            Log.d(tag, "Enriched " + wearableData.size() + " wearable and " + weatherDone.size()
+                    + " weather of " + batch.size() + " incomplete IUEs");
+        }
+
+        if (nextRetryAt != null) {
+            scheduleRetry(context, Math.max(0, nextRetryAt.toEpochMilli() - BreatheClock.now().toEpochMilli()));
+        }
+    }
+
+    private static void updateWearableEnrichment(BreatheDao dao, InhalerUsageEvent iue) {
+        EnrichmentState state = iue.getWearableEnrichment();
+        dao.updateWearableEnrichment(iue.getInhalerUsageEventTimeStamp(),
+                state.getStatus(), state.getAttempts(), state.getRetryAt());
+    }
+
+    private static void updateWeatherEnrichment(BreatheDao dao, InhalerUsageEvent iue) {
+        EnrichmentState state = iue.getWeatherEnrichment();
+        dao.updateWeatherEnrichment(iue.getInhalerUsageEventTimeStamp(),
+                state.getStatus(), state.getAttempts(), state.getRetryAt());
+    }
+
+    @SuppressLint("NewApi")
+    private static Instant earliest(Instant first, Instant second) {
+        return first == null || second.isBefore(first) ? second : first;
+    }
+}
@@ -0,0 +1,254 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.IngestLatencyBucket;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Traces how long an IUE takes from the inhaler press to a fully enriched row.
+ *
+ * Each stage is measured from the IUE timestamp (the press) to the moment the stage is reached, so no
+ * state has to be handed from the BLE thread to the workers. The latencies are counted in a histogram
+ * per device, stage and UTC day, persisted in the ingest_latency table so the baseline of the previous
+ * days survives the app's process being killed. The summary compares today with the days before, so a
+ * regression of a stage stands out the day it ships.
+ *
+ * Note: the IUE timestamp comes from the inhaler's clock. Skew makes every stage look slower or faster
+ * by the same amount, so compare the stages with each other and with their own past.
+ */
+public class IngestTracer {
+
+    private static final String tag = IngestTracer.class.getName();
+
+    public enum Stage {
+        RECEIVED, // the indication of the IUE was received over BLE
+        COMMITTED, // the IUE was inserted into the database
+        WEARABLE_ATTACHED,
+        LOCATION_ACQUIRED, // the location the weather of the IUE was fetched for was known (once per IUE)
+        WEATHER_ATTACHED,
+        ENRICHED // nothing was pending for the IUE anymore
+    }
+
+    /**
+     * device -> stage -> day -> bucket counts. Null until loaded. Guarded by IngestTracer.class.
+     */
+    private static Map<String, Map<Stage, TreeMap<Instant, long[]>>> histograms = null;
+
+    /**
+     * Loads the persisted histograms in the background, so {@link #getSummary()} has them.
+     * @param context the calling context
+     */
+    public static void init(Context context) {
+        Context appContext = context.getApplicationContext();
+        BreatheRoomDatabase.dbWriteExecutor.execute(() -> load(appContext));
+    }
+
+    /**
+     * Records that an IUE reached a stage now.
+     * @param context the calling context
+     * @param device the inhaler the IUE came from
+     * @param stage the stage
+     * @param iueTimestamp the timestamp of the IUE
+     */
+    public static void record(Context context, String device, Stage stage, Instant iueTimestamp) {
+        record(context, device, stage, Collections.singletonList(iueTimestamp));
+    }
+
+    /**
+     * Records that IUEs reached a stage now. Costs one transaction for all of them.
+     * @param context the calling context
+     * @param device the inhaler the IUEs came from
+     * @param stage the stage
+     * @param iueTimestamps the timestamps of the IUEs
+     */
+    public static void record(Context context, String device, Stage stage, List<Instant> iueTimestamps) {
+        record(context, device, stage, iueTimestamps, BreatheClock.now());
+    }
+
+    /**
+     * Records that IUEs reached a stage at a given time, e.g. when the location their weather was
+     * fetched for was known. Costs one transaction for all of them.
+     * @param context the calling context
+     * @param device the inhaler the IUEs came from
+     * @param stage the stage
+     * @param iueTimestamps the timestamps of the IUEs
+     * @param reachedAt when the IUEs reached the stage
+     */
+    @SuppressLint("NewApi")
+    public static void record(Context context, String device, Stage stage, List<Instant> iueTimestamps,
+                              Instant reachedAt) {
+        if (iueTimestamps.isEmpty()) return;
+
+        Instant day = reachedAt.truncatedTo(ChronoUnit.DAYS);
+        long[] counts = new long[CollectionFinals.INGEST_LATENCY_BUCKETS];
+        for (Instant timestamp : iueTimestamps) {
+            counts[getBucket(reachedAt.toEpochMilli() - timestamp.toEpochMilli())]++;
+        }
+
+        Context appContext = context.getApplicationContext();
+        // The writer thread loads and writes the histograms in order, off the caller's thread.
+        BreatheRoomDatabase.dbWriteExecutor.execute(() -> {
+            load(appContext);
+
+            BreatheRoomDatabase database = BreatheRoomDatabase.getDatabase(appContext);
+            BreatheDao dao = database.breatheDao();
+            database.runInTransaction(() -> {
+                List<IngestLatencyBucket> newBuckets = new ArrayList<>();
+                for (int bucket = 0; bucket < counts.length; bucket++) {
+                    if (counts[bucket] == 0) continue;
+                    if (dao.addToIngestLatencyBucket(device, stage.name(), day, bucket, counts[bucket]) == 0) {
+                        newBuckets.add(new IngestLatencyBucket(device, stage.name(), day, bucket, counts[bucket]));
+                    }
+                }
+                if (!newBuckets.isEmpty()) dao.insertIngestLatencyBuckets(newBuckets);
+            });
+
+            synchronized (IngestTracer.class) {
+                long[] histogram = getHistogram(device, stage, day);
+                for (int bucket = 0; bucket < counts.length; bucket++) histogram[bucket] += counts[bucket];
+            }
+        });
+    }
+
+    /**
+     * Reads the histograms of the last days once and drops the older ones. Runs on the writer thread.
+     */
+    @SuppressLint("NewApi")
+    private static void load(Context context) {
+        synchronized (IngestTracer.class) {
+            if (histograms != null) return;
+        }
+
+        Instant since = BreatheClock.now().truncatedTo(ChronoUnit.DAYS)
+                .minus(CollectionFinals.INGEST_LATENCY_BASELINE_DAYS, ChronoUnit.DAYS);
+        BreatheDao dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+        dao.deleteIngestLatencyBucketsBefore(since);
+        List<IngestLatencyBucket> buckets = dao.getIngestLatencyBucketsSince(since);
+
+        synchronized (IngestTracer.class) {
+            histograms = new TreeMap<>();
+            for (IngestLatencyBucket bucket : buckets) {
+                Stage stage;
+                try {
+                    stage = Stage.valueOf(bucket.getStage());
+                } catch (IllegalArgumentException e) {
+                    continue; // a stage which was removed.
+                }
+                if (bucket.getBucket() < 0 || bucket.getBucket() >= CollectionFinals.INGEST_LATENCY_BUCKETS) continue;
+                getHistogram(bucket.getDevice(), stage, bucket.getDay())[bucket.getBucket()] += bucket.getCount();
+            }
+        }
+        Log.d(tag, "Loaded " + buckets.size() + " ingest latency buckets");
+    }
+
+    /**
+     * Must hold the IngestTracer.class lock and the histograms must be loaded.
+     */
+    private static long[] getHistogram(String device, Stage stage, Instant day) {
+        Map<Stage, TreeMap<Instant, long[]>> stages = histograms.get(device);
+        if (stages == null) histograms.put(device, stages = new TreeMap<>());
+        TreeMap<Instant, long[]> days = stages.get(stage);
+        if (days == null) stages.put(stage, days = new TreeMap<>());
+        long[] histogram = days.get(day);
+        if (histogram == null) days.put(day, histogram = new long[CollectionFinals.INGEST_LATENCY_BUCKETS]);
+        return histogram;
+    }
+
+    /**
+     * Bucket b holds the latencies from 2^(b/2) up to 2^((b+1)/2) milliseconds: two buckets per doubling.
+     * Negative latencies (the inhaler's clock is ahead) go into the first bucket.
+     */
+    static int getBucket(long millis) {
+        if (millis <= 0) return 0;
+        int bucket = (int) (2 * Math.log(millis + 1) / Math.log(2));
+        return Math.min(bucket, CollectionFinals.INGEST_LATENCY_BUCKETS - 1);
+    }
+
+    /**
+     * Uses the nearest-rank method on the buckets.
+     * @return the upper bound of the bucket holding the percentile in milliseconds or -1 if there are
+     * no samples.
+     */
+    static long getPercentile(long[] histogram, double percentile) {
+        long count = getCount(histogram);
+        if (count == 0) return -1;
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank) return (long) Math.pow(2, (bucket + 1) / 2.0);
+        }
+        return -1;
+    }
+
+    private static long getCount(long[] histogram) {
+        long count = 0;
+        for (long bucketCount : histogram) count += bucketCount;
+        return count;
+    }
+
+    private static String formatMillis(long millis) {
+        if (millis < 0) return "-";
+        if (millis < 1000) return millis + "ms";
+        if (millis < 60 * 1000) return String.format(Locale.ENGLISH, "%.1fs", millis / 1000.0);
+        if (millis < 60 * 60 * 1000) return String.format(Locale.ENGLISH, "%.1fmin", millis / 60000.0);
+        return String.format(Locale.ENGLISH, "%.1fh", millis / 3600000.0);
+    }
+
+    /**
+     * @return a short human readable summary: per device and stage, the p50 and p95 since the press
+     * today and the p95 of the days before. Stages whose p95 grew by more than
+     * {@link CollectionFinals#INGEST_REGRESSION_FACTOR} are flagged.
+     */
+    @SuppressLint("NewApi")
+    public static synchronized String getSummary() {
+        if (histograms == null) return "Ingest latency not loaded yet\n";
+        if (histograms.isEmpty()) return "No IUE ingested yet\n";
+
+        Instant today = BreatheClock.now().truncatedTo(ChronoUnit.DAYS);
+        Instant baselineStart = today.minus(CollectionFinals.INGEST_LATENCY_BASELINE_DAYS, ChronoUnit.DAYS);
+
+        StringBuilder sb = new StringBuilder("Ingest latency since the press (today | previous "
+                + CollectionFinals.INGEST_LATENCY_BASELINE_DAYS + " days)\n");
+        for (Map.Entry<String, Map<Stage, TreeMap<Instant, long[]>>> device : histograms.entrySet()) {
+            for (Map.Entry<Stage, TreeMap<Instant, long[]>> stage : device.getValue().entrySet()) {
+                long[] todayHistogram = new long[CollectionFinals.INGEST_LATENCY_BUCKETS];
+                long[] baselineHistogram = new long[CollectionFinals.INGEST_LATENCY_BUCKETS];
+                for (Map.Entry<Instant, long[]> day : stage.getValue().entrySet()) {
+                    long[] target = day.getKey().equals(today) ? todayHistogram
+                            : day.getKey().isBefore(today) && !day.getKey().isBefore(baselineStart) ? baselineHistogram
+                            : null;
+                    if (target == null) continue;
+                    for (int bucket = 0; bucket < target.length; bucket++) target[bucket] += day.getValue()[bucket];
+                }
+
+                long todayCount = getCount(todayHistogram);
+                long baselineCount = getCount(baselineHistogram);
+                long todayP95 = getPercentile(todayHistogram, 95);
+                long baselineP95 = getPercentile(baselineHistogram, 95);
+                boolean regression = todayCount >= CollectionFinals.INGEST_REGRESSION_MIN_SAMPLES
+                        && baselineCount >= CollectionFinals.INGEST_REGRESSION_MIN_BASELINE_SAMPLES
+                        && todayP95 > CollectionFinals.INGEST_REGRESSION_FACTOR * baselineP95;
+
+                sb.append(String.format(Locale.ENGLISH, "%s %s: p50=%s p95=%s n=%d | p95=%s n=%d%s\n",
+                        device.getKey(), stage.getKey(),
+                        formatMillis(getPercentile(todayHistogram, 50)), formatMillis(todayP95), todayCount,
+                        formatMillis(baselineP95), baselineCount, regression ? " REGRESSION" : ""));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,66 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.data.WearableData;
+import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.weather_data_collection.CollectWeatherData;
+import com.ybeltagy.breathe.weather_data_collection.LocationService;
+import com.ybeltagy.breathe.weather_data_collection.WeatherCache;
+import com.ybeltagy.breathe.weather_data_collection.WeatherQuota;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fetches the location, the current weather and a wearable sample ahead of an IUE.
+ * The location goes to the {@link LocationService} and the weather to the {@link WeatherCache}, like
+ * the weather of the periodic {@link com.ybeltagy.breathe.weather_data_collection.WeatherPrefetchWorker},
+ * so a weather the periodic prefetch already cached is not fetched again. The wearable sample is kept
+ * by the wearable's sample stream, which the IUE's wearable data is fused from.
+ *
+ * Every step is best effort: a prefetch that fails only means the IUE is enriched later by the
+ * {@link EnrichmentWorker}, which gets its own location from the {@link LocationService}.
+ */
+public class PrefetchWorker extends Worker {
+
+    private static final String tag = PrefetchWorker.class.getName();
+
+    public PrefetchWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    @NonNull
+    @Override
+    @SuppressLint("NewApi")
+    public Result doWork() {
+        Instant now = BreatheClock.now();
+
+        // The wearable read runs on the BLE thread while this thread waits for the location and the weather.
+        ListenableFuture<WearableData> wearableDataFuture = BreatheRepository.getWearableSource().readWearableData(now);
+
+        // Refreshes the LocationService snapshot the IUE and the EnrichmentWorker will reuse.
+        LocationService.LocationSnapshot location = LocationService.syncGetLocation(getApplicationContext(), now);
+        if (location != null) {
+            // A cache hit costs no request.
+            WeatherData weatherData = CollectWeatherData.syncGetWeatherData(getApplicationContext(),
+                    WeatherQuota.Priority.BACKGROUND, now, location.latitude, location.longitude);
+            if (weatherData == null) Log.d(tag, "Prefetching the weather failed");
+        }
+
+        try {
+            wearableDataFuture.get(CollectionFinals.PREFETCH_STEP_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            Log.d(tag, "Prefetching the wearable data failed: " + e.toString());
+        }
+
+        return Result.success();
+    }
+}
@@ -0,0 +1,75 @@
+package com.ybeltagy.breathe.collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * Counts the IUEs per hour of the day to predict when the inhaler will be used next.
+ */
+class UsagePattern {
+
+    private static final int HOURS_PER_DAY = 24;
+
+    /**
+     * Guards the read-modify-write of the counts. Static, as every instance edits the same file.
+     */
+    private static final Object lock = new Object();
+
+    private final SharedPreferences sharedPreferences;
+
+    UsagePattern(Context context) {
+        sharedPreferences = context.getSharedPreferences(
+                CollectionFinals.USAGE_PATTERN_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+    }
+
+    /**
+     * Counts an IUE in its hour of the (local) day.
+     * @param iueTimestamp the timestamp of the IUE
+     */
+    @SuppressLint("NewApi")
+    void record(ZonedDateTime iueTimestamp) {
+        String key = getKey(iueTimestamp.getHour());
+        synchronized (lock) {
+            sharedPreferences.edit().putInt(key, sharedPreferences.getInt(key, 0) + 1).apply();
+        }
+    }
+
+    /**
+     * @param hour the hour of the day
+     * @return true if the hour holds enough of the IUEs to be worth a prefetch.
+     */
+    boolean isUsageHour(int hour) {
+        int total = 0;
+        for (int i = 0; i < HOURS_PER_DAY; i++) total += sharedPreferences.getInt(getKey(i), 0);
+
+        int count = sharedPreferences.getInt(getKey(hour), 0);
+        return count >= CollectionFinals.USAGE_HOUR_MIN_IUES && count >= CollectionFinals.USAGE_HOUR_MIN_SHARE * total;
+    }
+
+    /**
+     * @param now the current time
+     * @param leadMinutes how long before the usage hour the caller wants to act
+     * @return the start of the next usage hour which is at least leadMinutes away or null if there is
+     * no usage hour in the next day.
+     */
+    @SuppressLint("NewApi")
+    Instant getNextUsageHour(ZonedDateTime now, long leadMinutes) {
+        ZonedDateTime hour = now.truncatedTo(ChronoUnit.HOURS);
+        for (int i = 1; i <= HOURS_PER_DAY; i++) {
+            ZonedDateTime candidate = hour.plusHours(i);
+            if (candidate.minusMinutes(leadMinutes).isAfter(now) && isUsageHour(candidate.getHour())) {
+                return candidate.toInstant();
+            }
+        }
+        return null;
+    }
+
+    private static String getKey(int hour) {
+        return "hour_" + hour;
+    }
+}
@@ -0,0 +1,46 @@
+package com.ybeltagy.breathe.collection;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.ble.BLEService;
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.time.Instant;
+
+/**
+ * Where the collection pipeline gets the wearable data of the IUEs from. The app reads the wearables
+ * connected to the {@link BLEService}. Tests replace it with a fake one
+ * (see {@link BreatheRepository#setWearableSource(WearableSource)}).
+ */
+public interface WearableSource {
+
+    /**
+     * The wearables connected to the {@link BLEService}.
+     */
+    WearableSource BLE = new WearableSource() {
+        @Override
+        public ListenableFuture<WearableData> readWearableData(Instant timestamp) {
+            return BLEService.readWearableData(timestamp);
+        }
+
+        @Override
+        public WearableData getRecentWearableData(Instant timestamp, long windowMillis) {
+            return BLEService.getRecentWearableData(timestamp, windowMillis);
+        }
+    };
+
+    /**
+     * Reads the wearables and fuses their readings into the wearable data of the given time.
+     * Does not block the caller.
+     * @param timestamp the time the wearable data is wanted for
+     * @return a future holding the wearable data or null if no wearable has a reading near the timestamp.
+     */
+    ListenableFuture<WearableData> readWearableData(Instant timestamp);
+
+    /**
+     * Fuses the readings the wearables already delivered without reading them.
+     * @param timestamp the time the wearable data is wanted for
+     * @param windowMillis how far from the timestamp a reading may be
+     * @return the wearable data or null if no wearable has a reading that close to the timestamp.
+     */
+    WearableData getRecentWearableData(Instant timestamp, long windowMillis);
+}
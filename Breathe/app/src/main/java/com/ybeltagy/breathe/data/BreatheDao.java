@@ -3,6 +3,7 @@ package com.ybeltagy.breathe.data;
 import androidx.lifecycle.LiveData;
 import androidx.room.Dao;
 import androidx.room.Insert;
+import androidx.room.OnConflictStrategy;
 import androidx.room.Query;
 import androidx.room.Update;
 
@@ -24,6 +25,16 @@ public interface BreatheDao {
     @Insert
     void insert(InhalerUsageEvent inhalerUsageEvent);
 
+    /**
+     * Inserts readings into the WearableData_table in a single transaction.
+     * Readings which are already in the table (same timestamp) are skipped, so a resent chunk of the
+     * wearable log is harmless.
+     *
+     * @param wearableData the readings
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertWearableData(List<WearableData> wearableData);
+
     /**
      * IMPORTANT: All the timestamp string representations must be of the same size for this
      * method to work correctly.
@@ -51,6 +62,25 @@ public interface BreatheDao {
     @Update
     void updateInhalerUsageEvent(InhalerUsageEvent... inhalerUsageEvents);
 
+    /**
+     * A projection for the screens which only need the number of IUEs.
+     *
+     * @return the number of InhalerUsageEvents wrapped as LiveData
+     */
+    @Query("SELECT COUNT(*) FROM InhalerUsageEvent_table")
+    LiveData<Integer> observeIUECount();
+
+    /**
+     * A projection for the screens which only show or edit the diary of an IUE.
+     *
+     * @param timeStamp the timestamp of the InhalerUsageEvent
+     * @return its timestamp, tag and message wrapped as LiveData. Null if there is no such IUE.
+     */
+    @Query("SELECT Inhaler_Usage_Event_UTC_ISO_8601_date_time, tag, message " +
+            "FROM InhalerUsageEvent_table " +
+            "WHERE Inhaler_Usage_Event_UTC_ISO_8601_date_time = :timeStamp")
+    LiveData<IUEDiaryEntry> observeIUEDiaryEntry(Instant timeStamp);
+
     /**
      * Gets a single InhalerUsageEvent from the database.
      * - This is used to query the database and check if its empty or not
@@ -79,7 +109,8 @@ public interface BreatheDao {
 
     /**
      * Note: Use this one to update an existing inhalerUsageEvent with WearableData data so the
-     * existing other inner objects (DiaryEntry, WeatherData) don't get overwritten
+     * existing other inner objects (DiaryEntry, WeatherData) don't get overwritten.
+     * Marks the wearable enrichment DONE.
      *
      * @param inhalerUsageTimeStamp - when the inhalerUsageEvent occurred
      * @param wearableDataTimeStamp - when the wearableData was collected
@@ -97,14 +128,16 @@ public interface BreatheDao {
             "pm_count_2_5 = :pm_count_2_5," +
             "pm_count_10 = :pm_count_10," +
             "voc_data = :voc_data, " +
-            "co2_data = :co2_data " +
+            "co2_data = :co2_data, " +
+            "wearable_enrichment_status = 2 " + // EnrichmentStatus.DONE
             "WHERE Inhaler_Usage_Event_UTC_ISO_8601_date_time = :inhalerUsageTimeStamp")
     int updateWearableData(Instant inhalerUsageTimeStamp, Instant wearableDataTimeStamp,
                            float temp, float humid, int pm_count_2_5, int pm_count_10, int voc_data, int co2_data);
 
     /**
      * Note: Use this one to update an existing inhalerUsageEvent with Weatherdata so the
-     * existing other inner objects (DiaryEntry, WearableData) don't get overwritten
+     * existing other inner objects (DiaryEntry, WearableData) don't get overwritten.
+     * Marks the weather enrichment DONE.
      *
      * @param inhalerUsageTimeStamp - when the inhalerUsageEvent occurred
      * @param weatherTemp
@@ -121,7 +154,8 @@ public interface BreatheDao {
             "weatherPrecipitationIntensity = :weatherPrecipitation," +
             "weatherTreeIndex = :weatherTreePollen," +
             "weatherGrassIndex = :weatherGrassPollen," +
-            "weatherEPAIndex = :weatherEPA " +
+            "weatherEPAIndex = :weatherEPA, " +
+            "weather_enrichment_status = 2 " + // EnrichmentStatus.DONE
             "WHERE Inhaler_Usage_Event_UTC_ISO_8601_date_time = :inhalerUsageTimeStamp")
     int updateWeatherData(Instant inhalerUsageTimeStamp, float weatherTemp, float weatherHumid,
                           float weatherPrecipitation, Level weatherTreePollen,
@@ -159,6 +193,152 @@ public interface BreatheDao {
     LiveData<List<InhalerUsageEvent>> loadAllInhalerUsageEventsBetweenDates(Instant firstDate,
                                                                             Instant secondDate);
 
+    /**
+     * Pages through the IUEs whose wearable or weather enrichment is PENDING. Served by the partial
+     * index over the incomplete IUEs (see BreatheRoomDatabase), so the complete ones cost nothing.
+     * Note: 1 is the ordinal of EnrichmentStatus.PENDING. It is a literal so SQLite can match the
+     * query to the index.
+     * <p>
+     * IMPORTANT: All the timestamp string representations must be of the same size for this
+     * method to work correctly.
+     *
+     * @param after  IUEs at or before this are ignored
+     * @param before IUEs at or after this are ignored
+     * @param limit  the maximum number of IUEs
+     * @return the incomplete IUEs in the range, oldest first
+     */
+    @Query("SELECT * " +
+            "FROM InhalerUsageEvent_table " +
+            "WHERE (wearable_enrichment_status = 1 OR weather_enrichment_status = 1) " +
+            "AND Inhaler_Usage_Event_UTC_ISO_8601_date_time > :after " +
+            "AND Inhaler_Usage_Event_UTC_ISO_8601_date_time < :before " +
+            "ORDER BY Inhaler_Usage_Event_UTC_ISO_8601_date_time ASC " +
+            "LIMIT :limit")
+    List<InhalerUsageEvent> getIncompleteIUEsBetween(Instant after, Instant before, int limit);
+
+    /**
+     * Records how the wearable enrichment of an IUE went, without touching its data.
+     *
+     * @param inhalerUsageTimeStamp - when the inhalerUsageEvent occurred
+     * @param status
+     * @param attempts
+     * @param retryAt
+     * @return the number of records updated (should only be 1)
+     */
+    @Query("UPDATE InhalerUsageEvent_table " +
+            "SET " +
+            "wearable_enrichment_status = :status, " +
+            "wearable_enrichment_attempts = :attempts, " +
+            "wearable_enrichment_retry_at = :retryAt " +
+            "WHERE Inhaler_Usage_Event_UTC_ISO_8601_date_time = :inhalerUsageTimeStamp")
+    int updateWearableEnrichment(Instant inhalerUsageTimeStamp, EnrichmentStatus status, int attempts,
+                                 Instant retryAt);
+
+    /**
+     * Records how the weather enrichment of an IUE went, without touching its data.
+     *
+     * @param inhalerUsageTimeStamp - when the inhalerUsageEvent occurred
+     * @param status
+     * @param attempts
+     * @param retryAt
+     * @return the number of records updated (should only be 1)
+     */
+    @Query("UPDATE InhalerUsageEvent_table " +
+            "SET " +
+            "weather_enrichment_status = :status, " +
+            "weather_enrichment_attempts = :attempts, " +
+            "weather_enrichment_retry_at = :retryAt " +
+            "WHERE Inhaler_Usage_Event_UTC_ISO_8601_date_time = :inhalerUsageTimeStamp")
+    int updateWeatherEnrichment(Instant inhalerUsageTimeStamp, EnrichmentStatus status, int attempts,
+                                Instant retryAt);
+
+    /**
+     * Inserts weather observations into the WeatherObservation_table, replacing the observations
+     * of the same cell and bucket.
+     *
+     * @param weatherObservations the observations
+     */
+    @Insert(onConflict = OnConflictStrategy.REPLACE)
+    void insertWeatherObservations(List<WeatherObservation> weatherObservations);
+
+    /**
+     * IMPORTANT: All the timestamp string representations must be of the same size for this
+     * method to work correctly.
+     *
+     * @param geohash       the cell of the observation
+     * @param bucketMinutes the length of the time bucket
+     * @param bucketStart   the start of the time bucket
+     * @param notBefore     observations fetched before this are ignored
+     * @return the observation or null if there is none
+     */
+    @Query("SELECT * " +
+            "FROM WeatherObservation_table " +
+            "WHERE geohash = :geohash " +
+            "AND bucketMinutes = :bucketMinutes " +
+            "AND bucketStart = :bucketStart " +
+            "AND fetchedAt >= :notBefore")
+    WeatherObservation getWeatherObservation(String geohash, int bucketMinutes, Instant bucketStart,
+                                             Instant notBefore);
+
+    /**
+     * @param geohash       the cell of the observation
+     * @param bucketMinutes the length of the time bucket
+     * @param bucketStart   the start of the time bucket
+     * @return the observation wrapped as LiveData. Holds null if there is none.
+     */
+    @Query("SELECT * " +
+            "FROM WeatherObservation_table " +
+            "WHERE geohash = :geohash " +
+            "AND bucketMinutes = :bucketMinutes " +
+            "AND bucketStart = :bucketStart")
+    LiveData<WeatherObservation> observeWeatherObservation(String geohash, int bucketMinutes, Instant bucketStart);
+
+    /**
+     * IMPORTANT: All the timestamp string representations must be of the same size for this
+     * method to work correctly.
+     *
+     * @param cutoff observations fetched before this are deleted
+     * @return the number of deleted observations
+     */
+    @Query("DELETE FROM WeatherObservation_table WHERE fetchedAt < :cutoff")
+    int deleteWeatherObservationsFetchedBefore(Instant cutoff);
+
+    /**
+     * Adds ingest latency histogram buckets. The buckets which exist already are skipped.
+     */
+    @Insert(onConflict = OnConflictStrategy.IGNORE)
+    void insertIngestLatencyBuckets(List<IngestLatencyBucket> buckets);
+
+    /**
+     * Adds to the count of an existing histogram bucket.
+     *
+     * @return the number of records updated (0 if the bucket does not exist yet)
+     */
+    @Query("UPDATE ingest_latency " +
+            "SET count = count + :count " +
+            "WHERE device = :device AND stage = :stage AND day = :day AND bucket = :bucket")
+    int addToIngestLatencyBucket(String device, String stage, Instant day, int bucket, long count);
+
+    /**
+     * IMPORTANT: All the timestamp string representations must be of the same size for this
+     * method to work correctly.
+     *
+     * @param since buckets of days before this are ignored
+     * @return the histogram buckets of the days since the given one
+     */
+    @Query("SELECT * FROM ingest_latency WHERE day >= :since")
+    List<IngestLatencyBucket> getIngestLatencyBucketsSince(Instant since);
+
+    /**
+     * IMPORTANT: All the timestamp string representations must be of the same size for this
+     * method to work correctly.
+     *
+     * @param cutoff buckets of days before this are deleted
+     * @return the number of deleted buckets
+     */
+    @Query("DELETE FROM ingest_latency WHERE day < :cutoff")
+    int deleteIngestLatencyBucketsBefore(Instant cutoff);
+
     // Methods for testing ONLY --------------------------------------------------------------------
 
     // Some duplicated methods used for unit testing the DAO / RoomDatabase without using LiveData
@@ -75,4 +75,24 @@ public class Converters {
     public static int toLevelIntValue(Level level) {
         return Level.levelToInt(level);
     }
+
+    /**
+     * Converts EnrichmentStatus int stored in database to relevant EnrichmentStatus enum
+     * @param status
+     * @return enum EnrichmentStatus (NOT_APPLICABLE, PENDING, DONE or FAILED)
+     */
+    @TypeConverter
+    public static EnrichmentStatus fromEnrichmentStatusIntValue(int status) {
+        return EnrichmentStatus.intToStatus(status);
+    }
+
+    /**
+     * Converts EnrichmentStatus into int to be stored in database
+     * @param status
+     * @return ordinal value of status (NOT_APPLICABLE = 0, PENDING = 1, DONE = 2, FAILED = 3)
+     */
+    @TypeConverter
+    public static int toEnrichmentStatusIntValue(EnrichmentStatus status) {
+        return EnrichmentStatus.statusToInt(status);
+    }
 }
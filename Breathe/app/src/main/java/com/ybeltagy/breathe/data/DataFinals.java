@@ -14,4 +14,8 @@ public class DataFinals {
     // this is to satisfy the @NonNull compiler warning for the InhalerUsageEvent timestamp
     @SuppressLint("NewApi")
     public static final Instant DEFAULT_INSTANT = Instant.MIN;
+
+    // the first retry of a failed enrichment waits this long, each further one twice as long
+    public static final long ENRICHMENT_RETRY_BASE_MILLIS = 30 * 1000;
+    public static final long ENRICHMENT_RETRY_MAX_MILLIS = 30 * 60 * 1000;
 }
@@ -0,0 +1,99 @@
+package com.ybeltagy.breathe.data;
+
+import android.annotation.SuppressLint;
+
+import androidx.annotation.NonNull;
+import androidx.room.ColumnInfo;
+import androidx.room.Ignore;
+
+import java.time.Instant;
+
+/**
+ * Tracks the enrichment of an InhalerUsageEvent with one source of context
+ * - One InhalerUsageEvent object contains one EnrichmentState for its WearableData and one for its
+ * WeatherData
+ * - Replaces comparing the fields against the DataFinals defaults to find out what is missing
+ * <p>
+ */
+public class EnrichmentState {
+    @NonNull
+    private EnrichmentStatus status;
+    private int attempts; // the failed attempts so far
+    @NonNull
+    @ColumnInfo(name = "retry_at")
+    private Instant retryAt; // the status is not retried before this
+
+    @Ignore
+    public EnrichmentState(@NonNull EnrichmentStatus status) {
+        this(status, 0, DataFinals.DEFAULT_INSTANT);
+    }
+
+    public EnrichmentState(@NonNull EnrichmentStatus status, int attempts, @NonNull Instant retryAt) {
+        this.status = status;
+        this.attempts = attempts;
+        this.retryAt = retryAt;
+    }
+
+    @Ignore
+    public EnrichmentState() {
+        this(EnrichmentStatus.NOT_APPLICABLE);
+    }
+
+    public boolean isPending() {
+        return status == EnrichmentStatus.PENDING;
+    }
+
+    /**
+     * @param now the current time
+     * @return whether a worker should try to collect the data now
+     */
+    @SuppressLint("NewApi")
+    public boolean isDue(Instant now) {
+        return isPending() && !retryAt.isAfter(now);
+    }
+
+    /**
+     * Records a failed attempt: the next one is delayed exponentially, from
+     * {@link DataFinals#ENRICHMENT_RETRY_BASE_MILLIS} up to {@link DataFinals#ENRICHMENT_RETRY_MAX_MILLIS}.
+     * Gives up (FAILED) after maxAttempts.
+     *
+     * @param now         the current time
+     * @param maxAttempts the attempts after which the status is FAILED
+     */
+    @SuppressLint("NewApi")
+    public void recordFailure(Instant now, int maxAttempts) {
+        attempts++;
+        if (attempts >= maxAttempts) {
+            status = EnrichmentStatus.FAILED;
+            return;
+        }
+        long delay = DataFinals.ENRICHMENT_RETRY_BASE_MILLIS << Math.min(attempts - 1, 20);
+        retryAt = now.plusMillis(Math.min(delay, DataFinals.ENRICHMENT_RETRY_MAX_MILLIS));
+    }
+
+    @NonNull
+    public EnrichmentStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(@NonNull EnrichmentStatus status) {
+        this.status = status;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    @NonNull
+    public Instant getRetryAt() {
+        return retryAt;
+    }
+
+    public void setRetryAt(@NonNull Instant retryAt) {
+        this.retryAt = retryAt;
+    }
+}
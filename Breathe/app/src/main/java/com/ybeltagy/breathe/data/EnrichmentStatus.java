@@ -0,0 +1,20 @@
+package com.ybeltagy.breathe.data;
+
+/**
+ * Where the enrichment of an IUE with one source of context (wearable or weather) stands.
+ *
+ * Stored as its ordinal. The partial index over the incomplete IUEs and the queries it serves
+ * compare against the ordinal of PENDING (1), so the order must not change.
+ */
+public enum EnrichmentStatus {
+    NOT_APPLICABLE, // nothing will be collected, e.g. the IUE is too old for wearable data
+    PENDING, // a worker will (re)try to collect it
+    DONE,
+    FAILED; // the attempts ran out or the source has no data for the IUE
+
+    public static EnrichmentStatus intToStatus(int numToConvert) {
+        return EnrichmentStatus.values()[numToConvert];
+    }
+
+    public static int statusToInt(EnrichmentStatus status) { return status.ordinal(); }
+}
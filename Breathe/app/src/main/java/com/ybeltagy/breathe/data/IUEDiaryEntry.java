@@ -0,0 +1,41 @@
+package com.ybeltagy.breathe.data;
+
+import android.os.Build;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+import androidx.room.ColumnInfo;
+import androidx.room.Embedded;
+
+import java.time.Instant;
+
+/**
+ * The timestamp and DiaryEntry of an InhalerUsageEvent, without its WearableData and WeatherData.
+ * Read by the screens which only show or edit the diary, so they don't load the whole row.
+ */
+@RequiresApi(api = Build.VERSION_CODES.O)
+public class IUEDiaryEntry {
+
+    @NonNull
+    @ColumnInfo(name = "Inhaler_Usage_Event_UTC_ISO_8601_date_time")
+    private final Instant inhalerUsageEventTimeStamp;
+
+    @NonNull
+    @Embedded
+    private final DiaryEntry diaryEntry;
+
+    public IUEDiaryEntry(@NonNull Instant inhalerUsageEventTimeStamp, @NonNull DiaryEntry diaryEntry) {
+        this.inhalerUsageEventTimeStamp = inhalerUsageEventTimeStamp;
+        this.diaryEntry = diaryEntry;
+    }
+
+    @NonNull
+    public Instant getInhalerUsageEventTimeStamp() {
+        return inhalerUsageEventTimeStamp;
+    }
+
+    @NonNull
+    public DiaryEntry getDiaryEntry() {
+        return diaryEntry;
+    }
+}
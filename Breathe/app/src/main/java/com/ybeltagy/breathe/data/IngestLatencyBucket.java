@@ -0,0 +1,62 @@
+package com.ybeltagy.breathe.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+
+import java.time.Instant;
+
+/**
+ * One bucket of an ingest latency histogram: how many IUEs reached a stage (e.g. inserted, weather
+ * attached) this long after the inhaler was pressed.
+ * - Keyed by (device, stage, day, bucket), so each device and stage has one histogram per UTC day
+ * - Bucket b counts the latencies from 2^(b/2) up to 2^((b+1)/2) milliseconds
+ */
+@Entity(tableName = "ingest_latency",
+        primaryKeys = {"device", "stage", "day", "bucket"})
+public class IngestLatencyBucket {
+
+    @NonNull
+    private String device; // the inhaler the IUEs came from
+
+    @NonNull
+    private String stage;
+
+    @NonNull
+    private Instant day; // the start of the UTC day the latencies were recorded
+
+    private int bucket;
+
+    private long count;
+
+    public IngestLatencyBucket(@NonNull String device, @NonNull String stage, @NonNull Instant day,
+                               int bucket, long count) {
+        this.device = device;
+        this.stage = stage;
+        this.day = day;
+        this.bucket = bucket;
+        this.count = count;
+    }
+
+    @NonNull
+    public String getDevice() {
+        return device;
+    }
+
+    @NonNull
+    public String getStage() {
+        return stage;
+    }
+
+    @NonNull
+    public Instant getDay() {
+        return day;
+    }
+
+    public int getBucket() {
+        return bucket;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
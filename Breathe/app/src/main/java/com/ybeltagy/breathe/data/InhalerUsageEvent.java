@@ -27,6 +27,10 @@ import java.time.Instant;
  * - a WeatherData object: weather data from the Tomorrow.io API at the time of the InhalerUsageEvent,
  * if the information is available (https://docs.tomorrow.io/reference/welcome)
  * <p>
+ * - two EnrichmentState objects: whether the WearableData and the WeatherData are pending, done,
+ * failed or not applicable, and when to retry them. The incomplete IUEs are found through a partial
+ * index (see BreatheRoomDatabase), which Room can't declare here.
+ * <p>
  */
 @RequiresApi(api = Build.VERSION_CODES.O)
 @Entity(tableName = "InhalerUsageEvent_table")
@@ -46,6 +50,12 @@ public class InhalerUsageEvent {
     private WearableData wearableData;
     @Embedded
     private WeatherData weatherData;
+    @NonNull
+    @Embedded(prefix = "wearable_enrichment_")
+    private EnrichmentState wearableEnrichment = new EnrichmentState();
+    @NonNull
+    @Embedded(prefix = "weather_enrichment_")
+    private EnrichmentState weatherEnrichment = new EnrichmentState();
 
     /**
      * - the @Ignore annotation is used so the Room database explicitly knows to use the
@@ -114,4 +124,22 @@ public class InhalerUsageEvent {
     public void setWeatherData(WeatherData weatherData) {
         this.weatherData = weatherData;
     }
+
+    @NonNull
+    public EnrichmentState getWearableEnrichment() {
+        return wearableEnrichment;
+    }
+
+    public void setWearableEnrichment(@NonNull EnrichmentState wearableEnrichment) {
+        this.wearableEnrichment = wearableEnrichment;
+    }
+
+    @NonNull
+    public EnrichmentState getWeatherEnrichment() {
+        return weatherEnrichment;
+    }
+
+    public void setWeatherEnrichment(@NonNull EnrichmentState weatherEnrichment) {
+        this.weatherEnrichment = weatherEnrichment;
+    }
 }
@@ -0,0 +1,67 @@
+package com.ybeltagy.breathe.data;
+
+import androidx.annotation.NonNull;
+import androidx.room.Embedded;
+import androidx.room.Entity;
+import androidx.room.Index;
+
+import java.time.Instant;
+
+/**
+ * A cached weather observation for an area (a geohash cell) and a time bucket.
+ * - Keyed by (geohash, bucket length, bucket start) so nearby IUEs in the same bucket share one API call
+ * - fetchedAt is used to evict old observations
+ */
+@Entity(tableName = "WeatherObservation_table",
+        primaryKeys = {"geohash", "bucketMinutes", "bucketStart"},
+        indices = {@Index("fetchedAt")})
+public class WeatherObservation {
+
+    @NonNull
+    private String geohash;
+
+    private int bucketMinutes; // the length of the time bucket
+
+    @NonNull
+    private Instant bucketStart; // the start of the time bucket
+
+    @NonNull
+    private Instant fetchedAt; // when the observation was fetched from the API
+
+    @NonNull
+    @Embedded
+    private WeatherData weatherData;
+
+    public WeatherObservation(@NonNull String geohash, int bucketMinutes, @NonNull Instant bucketStart,
+                              @NonNull Instant fetchedAt, @NonNull WeatherData weatherData) {
+        this.geohash = geohash;
+        this.bucketMinutes = bucketMinutes;
+        this.bucketStart = bucketStart;
+        this.fetchedAt = fetchedAt;
+        this.weatherData = weatherData;
+    }
+
+    @NonNull
+    public String getGeohash() {
+        return geohash;
+    }
+
+    public int getBucketMinutes() {
+        return bucketMinutes;
+    }
+
+    @NonNull
+    public Instant getBucketStart() {
+        return bucketStart;
+    }
+
+    @NonNull
+    public Instant getFetchedAt() {
+        return fetchedAt;
+    }
+
+    @NonNull
+    public WeatherData getWeatherData() {
+        return weatherData;
+    }
+}
@@ -11,7 +11,9 @@ import androidx.lifecycle.LiveData;
 import com.ybeltagy.breathe.collection.Export;
 import com.ybeltagy.breathe.data.DiaryEntry;
 import com.ybeltagy.breathe.collection.BreatheRepository;
+import com.ybeltagy.breathe.data.IUEDiaryEntry;
 import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.data.WeatherObservation;
 
 import java.time.Instant;
 import java.util.List;
@@ -29,7 +31,7 @@ public class BreatheViewModel extends AndroidViewModel {
 
     public BreatheViewModel(@NonNull Application application) {
         super(application);
-        breatheRepository = new BreatheRepository(application);
+        breatheRepository = BreatheRepository.getRepository(application); // shared by every screen
         allInhalerUsageEvents = breatheRepository.getAllInhalerUsageEvents();
     }
 
@@ -37,6 +39,18 @@ public class BreatheViewModel extends AndroidViewModel {
         return allInhalerUsageEvents;
     }
 
+    public LiveData<Integer> getIUECount() {
+        return breatheRepository.getIUECount();
+    }
+
+    public LiveData<IUEDiaryEntry> getIUEDiaryEntry(Instant timeStamp) {
+        return breatheRepository.getIUEDiaryEntry(timeStamp);
+    }
+
+    public LiveData<WeatherObservation> getWeatherObservation(String geohash, int bucketMinutes, Instant bucketStart) {
+        return breatheRepository.getWeatherObservation(geohash, bucketMinutes, bucketStart);
+    }
+
     public void updateDiaryEntry(Instant timeStamp, DiaryEntry diaryEntry) {
         breatheRepository.updateDiaryEntry(timeStamp, diaryEntry);
     }
@@ -0,0 +1,85 @@
+package com.ybeltagy.breathe.ui;
+
+import android.content.Intent;
+import android.net.Uri;
+import android.os.Bundle;
+import android.view.View;
+import android.widget.TextView;
+import android.widget.Toast;
+
+import androidx.appcompat.app.AppCompatActivity;
+import androidx.appcompat.widget.Toolbar;
+import androidx.core.content.FileProvider;
+
+import com.ybeltagy.breathe.Finals;
+import com.ybeltagy.breathe.R;
+import com.ybeltagy.breathe.ble.BLEMetrics;
+import com.ybeltagy.breathe.collection.BreatheExecutors;
+import com.ybeltagy.breathe.collection.IngestTracer;
+import com.ybeltagy.breathe.weather_data_collection.HttpMetrics;
+import com.ybeltagy.breathe.weather_data_collection.WeatherCache;
+import com.ybeltagy.breathe.weather_data_collection.WeatherQuota;
+
+import java.io.File;
+import java.util.Objects;
+
+/**
+ * Shows the BLE link, ingest latency and weather metrics and exports the BLE metrics as a JSON file.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private TextView diagnosticsTextView;
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.diagnostics);
+
+        //Toolbar
+        Toolbar toolbar = findViewById(R.id.toolbar);
+        setSupportActionBar(toolbar);
+        Objects.requireNonNull(getSupportActionBar()).setDisplayHomeAsUpEnabled(true);
+
+        diagnosticsTextView = findViewById(R.id.diagnostics_textview);
+        IngestTracer.init(this);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    public void onRefreshButtonClick(View view) {
+        refresh();
+    }
+
+    /**
+     * Dumps the metrics to a private file and shares it.
+     * @param view
+     */
+    public void onExportButtonClick(View view) {
+        File file = BLEMetrics.dump(this);
+        if (file == null) {
+            Toast.makeText(this, "Failed to Export Metrics", Toast.LENGTH_SHORT).show();
+            return;
+        }
+
+        Uri path = FileProvider.getUriForFile(this, Finals.FILE_PROVIDER_AUTHORITY_STRING, file);
+
+        Intent fileIntent = new Intent(Intent.ACTION_SEND);
+        fileIntent.setType("application/json");
+        fileIntent.putExtra(Intent.EXTRA_SUBJECT, "BLE Metrics");
+        fileIntent.addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        fileIntent.putExtra(Intent.EXTRA_STREAM, path);
+
+        startActivity(Intent.createChooser(fileIntent, "Export BLE Metrics"));
+    }
+
+    private void refresh() {
+        diagnosticsTextView.setText(BLEMetrics.getSummary() + "\n" + IngestTracer.getSummary()
+                + "\n" + HttpMetrics.getSummary()
+                + "\n" + WeatherCache.getSummary() + "\n" + WeatherQuota.getSummary()
+                + "\n" + BreatheExecutors.getSummary());
+    }
+}
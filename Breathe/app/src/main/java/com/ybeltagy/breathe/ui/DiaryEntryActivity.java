@@ -2,18 +2,22 @@ package com.ybeltagy.breathe.ui;
 
 import androidx.annotation.RequiresApi;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.Observer;
 import androidx.lifecycle.ViewModelProvider;
 
 import android.os.Build;
 import android.os.Bundle;
 import android.util.Log;
 import android.view.View;
+import android.widget.Button;
 import android.widget.EditText;
 import android.widget.TextView;
 
 import com.ybeltagy.breathe.R;
 import com.ybeltagy.breathe.data.DataFinals;
 import com.ybeltagy.breathe.data.DiaryEntry;
+import com.ybeltagy.breathe.data.IUEDiaryEntry;
 import com.ybeltagy.breathe.data.Tag;
 
 import java.time.Instant;
@@ -34,9 +38,13 @@ public class DiaryEntryActivity extends AppCompatActivity {
      * IUE timestamp as a string
      */
     private String timestampString = null;
-    private String diaryEntryMessage = null;
     private Tag iueTag = DataFinals.DEFAULT_TAG;
 
+    /**
+     * Whether the user picked a tag. The tag loaded from the database must not overwrite it.
+     */
+    private boolean userPickedTag = false;
+
     /**
      * The edit box of the Diary Entry
      */
@@ -58,21 +66,36 @@ public class DiaryEntryActivity extends AppCompatActivity {
         // The edit box for the diary
         messageEditText = findViewById(R.id.edit_diary_edittext);
 
+        // Saving before the existing entry is loaded would overwrite it with an empty one.
+        Button saveButton = findViewById(R.id.diary_entry_save_button);
+        saveButton.setEnabled(false);
+
         // get extras passed from the main activity
         final Bundle extras = getIntent().getExtras();
 
         // The clicked InhalerUsageEvent's Instant timestamp
         timestampString = extras.getString(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TIMESTAMP_KEY);
 
-        // The existing message for this inhalerUsageEvent from the database
-        diaryEntryMessage = extras.getString(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_EXISTING_MESSAGE);
-
-        // The exiting tag for this inhalerUsageEvent from the database
-        // Ideally, we would like to display it too.
-        iueTag = (Tag) extras.get(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TAG);
-
         setHeaderDateForInhalerUsageEvent(timestampString);
-        setExistingDiaryMessage(diaryEntryMessage, messageEditText);
+
+        // The existing tag and message for this inhalerUsageEvent from the database. Read once, so a
+        // later change doesn't overwrite what the user is typing. After a rotation the edit box keeps
+        // the typed message itself.
+        // Ideally, we would like to display the tag too.
+        LiveData<IUEDiaryEntry> existingEntry = breatheViewModel.getIUEDiaryEntry(Instant.parse(timestampString));
+        existingEntry.observe(this, new Observer<IUEDiaryEntry>() {
+            @Override
+            public void onChanged(IUEDiaryEntry iueDiaryEntry) {
+                existingEntry.removeObserver(this);
+                saveButton.setEnabled(true);
+                if (iueDiaryEntry == null) return;
+
+                if (!userPickedTag) iueTag = iueDiaryEntry.getDiaryEntry().getTag();
+                if (savedInstanceState == null) {
+                    setExistingDiaryMessage(iueDiaryEntry.getDiaryEntry().getMessage(), messageEditText);
+                }
+            }
+        });
 
     }
 
@@ -101,10 +124,12 @@ public class DiaryEntryActivity extends AppCompatActivity {
 
     public void onRescueButtonClick(View view) {
         iueTag = Tag.RESCUE;
+        userPickedTag = true;
     }
 
     public void onPreventativeButtonClick(View view) {
         iueTag = Tag.PREVENTATIVE;
+        userPickedTag = true;
     }
 
     @RequiresApi(api = Build.VERSION_CODES.O)
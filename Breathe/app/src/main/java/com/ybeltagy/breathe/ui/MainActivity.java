@@ -27,10 +27,11 @@ import com.ybeltagy.breathe.ble.BLEService;
 import com.ybeltagy.breathe.data.InhalerUsageEvent;
 import com.ybeltagy.breathe.R;
 
-import com.ybeltagy.breathe.weather_data_collection.CollectWeatherData;
 import com.ybeltagy.breathe.weather_data_collection.GPSWorker;
 import com.ybeltagy.breathe.weather_data_collection.TaskDataFinals;
 import com.ybeltagy.breathe.weather_data_collection.WeatherAPIWorker;
+import com.ybeltagy.breathe.weather_data_collection.WeatherBackfillWorker;
+import com.ybeltagy.breathe.weather_data_collection.WeatherPrefetchWorker;
 
 import com.ybeltagy.breathe.data.Level;
 import com.ybeltagy.breathe.data.WeatherData;
@@ -40,7 +41,9 @@ import java.util.Locale;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 
-import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_DATA_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_BUCKET_MINUTES_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_BUCKET_START_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_GEOHASH_RESULT;
 
 /**
  * This activity contains the main logic of the Breathe app. It renders the UI and registers a
@@ -83,6 +86,12 @@ public class MainActivity extends AppCompatActivity {
 
         // WorkManager -> gets WeatherData
         weatherDataFlow();
+
+        // Keeps recent weather in the cache so the IUEs and the dashboard rarely wait for the network.
+        WeatherPrefetchWorker.schedule(getApplication());
+
+        // Fills in the weather of the IUEs the live enrichment could not reach.
+        WeatherBackfillWorker.schedule(getApplication());
     }
 
 
@@ -118,6 +127,7 @@ public class MainActivity extends AppCompatActivity {
      *
      * @param weatherAPIRequestID
      */
+    @SuppressLint("NewApi")
     private void observerWeatherAPIWorkerForDisplay(UUID weatherAPIRequestID) {
         WorkManager.getInstance(this).getWorkInfoByIdLiveData(weatherAPIRequestID)
                 .observe(this, info -> {
@@ -125,17 +135,18 @@ public class MainActivity extends AppCompatActivity {
                     if (info != null && info.getState().isFinished()) {
                         Log.d(tag, "Got data back from WeatherAPITask");
 
-                        String responseJSONWeatherString
-                                = info.getOutputData().getString(KEY_WEATHER_DATA_RESULT);
-                        Log.d(tag, "Serialized object string: " + responseJSONWeatherString);
-
-                        if (responseJSONWeatherString != null) {
-                            WeatherData weatherData = CollectWeatherData
-                                    .responseJSONToWeatherData(responseJSONWeatherString);
-
-                            if (weatherData != null) {
-                                displayWeatherData(weatherData);
-                            }
+                        // the worker only returns the key of the weather it cached
+                        String geohash = info.getOutputData().getString(KEY_WEATHER_GEOHASH_RESULT);
+                        String bucketStart = info.getOutputData().getString(KEY_WEATHER_BUCKET_START_RESULT);
+                        int bucketMinutes = info.getOutputData().getInt(KEY_WEATHER_BUCKET_MINUTES_RESULT, 0);
+
+                        if (geohash != null && bucketStart != null) {
+                            breatheViewModel.getWeatherObservation(geohash, bucketMinutes, Instant.parse(bucketStart))
+                                    .observe(this, observation -> {
+                                        if (observation != null) {
+                                            displayWeatherData(observation.getWeatherData());
+                                        }
+                                    });
                         }
                     }
                 });
@@ -213,9 +224,9 @@ public class MainActivity extends AppCompatActivity {
         //Get text view to set the text for.
         TextView dosesTakenText = findViewById(R.id.doses_textview);
 
-        breatheViewModel.getAllInhalerUsageEvents().observe(this, inhalerUsageEvents -> {
+        breatheViewModel.getIUECount().observe(this, iueCount -> {
             // medicine left is number of doses in a full container - doses used
-            medicineStatusBar.setProgress(medicineStatusBar.getMax() - inhalerUsageEvents.size());
+            medicineStatusBar.setProgress(medicineStatusBar.getMax() - iueCount);
             dosesTakenText.setText(String.format(Locale.ENGLISH,"%d / %d", medicineStatusBar.getProgress(), medicineStatusBar.getMax()));
         });
     }
@@ -251,9 +262,8 @@ public class MainActivity extends AppCompatActivity {
     }
 
     /**
-     * Opens the diary entry activity for the passed inhalerUsageEvent.
-     * todo: as the project develops, consider not not passing anymore than than IUE timestamp in the intent and retrieving
-     *  everything from the database in the DiaryEntryActivity
+     * Opens the diary entry activity for the passed inhalerUsageEvent. Only its timestamp is passed; the
+     * DiaryEntryActivity reads the diary entry from the database.
      * @param inhalerUsageEvent the iue to edit the diary for
      */
     @RequiresApi(api = Build.VERSION_CODES.O)
@@ -271,12 +281,6 @@ public class MainActivity extends AppCompatActivity {
         intent.putExtra(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TIMESTAMP_KEY,
                 inhalerUsageEvent.getInhalerUsageEventTimeStamp().toString());
 
-        intent.putExtra(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_EXISTING_MESSAGE,
-                inhalerUsageEvent.getDiaryEntry().getMessage());
-
-        intent.putExtra(UIFinals.EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TAG,
-                inhalerUsageEvent.getDiaryEntry().getTag());
-
         startActivityForResult(intent, UIFinals.UPDATE_INHALER_USAGE_EVENT_REQUEST_CODE);
 
     }
@@ -13,17 +13,22 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.appcompat.widget.Toolbar;
+import androidx.core.content.ContextCompat;
 import androidx.lifecycle.ViewModelProvider;
 
+import com.google.common.util.concurrent.ListenableFuture;
 import com.ybeltagy.breathe.R;
 import com.ybeltagy.breathe.ble.BLEScanner;
 import com.ybeltagy.breathe.ble.BLEService;
+import com.ybeltagy.breathe.collection.BreatheExecutors;
 import com.ybeltagy.breathe.collection.Export;
 import com.ybeltagy.breathe.data.InhalerUsageEvent;
 import com.ybeltagy.breathe.data.WearableData;
 
+import java.time.Instant;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.RejectedExecutionException;
 
 public class SettingsActivity extends AppCompatActivity {
 
@@ -55,29 +60,50 @@ public class SettingsActivity extends AppCompatActivity {
 
     }
 
+    /**
+     * Writes the CSV on the compute pool and shares it once it is written.
+     * @param view
+     */
     public void exportAllIUEs(View view){
 
         //fixme: is it bad that the UI is directly calling the Export?
-        Intent fileIntent = Export.extractAllIUE(this, IUEList);
-        if(fileIntent != null){
-            startActivity(Intent.createChooser(fileIntent, "Export IUE"));
-        }
-        else{
-            Toast.makeText(this, "Failed to Export Data", Toast.LENGTH_SHORT).show();
+        List<InhalerUsageEvent> iues = IUEList;
+        try {
+            BreatheExecutors.compute().execute(() -> {
+                Intent fileIntent = Export.extractAllIUE(this, iues);
+                ContextCompat.getMainExecutor(this).execute(() -> {
+                    if(fileIntent != null){
+                        startActivity(Intent.createChooser(fileIntent, "Export IUE"));
+                    }
+                    else{
+                        Toast.makeText(this, "Failed to Export Data", Toast.LENGTH_SHORT).show();
+                    }
+                });
+            });
+        } catch (RejectedExecutionException e) {
+            Toast.makeText(this, "Busy, try exporting again later", Toast.LENGTH_SHORT).show();
         }
 
     }
 
     /**
      * A testing method just for development.
+     * The read is queued on the BLE thread; the result is shown once it arrives.
      * @param view
      */
+    @SuppressLint("NewApi")
     public void testWearableData(View view) {
-        (new Thread() {
-            public void run() {
-                WearableData wearableData = BLEService.getWearableData();
+        ListenableFuture<WearableData> wearableDataFuture = BLEService.readWearableData(Instant.now());
+        wearableDataFuture.addListener(() -> {
+            WearableData wearableData = null;
+            try {
+                wearableData = wearableDataFuture.get();
+            } catch (Exception e) {
+                // reported below as a failed read.
             }
-        }).start();
+            Toast.makeText(this, wearableData != null ? "Read wearable data" : "Failed to read wearable data",
+                    Toast.LENGTH_SHORT).show();
+        }, ContextCompat.getMainExecutor(this));
     }
 
     public void onSimulateIUEButtonClick(View view) {
@@ -174,6 +200,10 @@ public class SettingsActivity extends AppCompatActivity {
         BLEScanner.scanForInhaler(this);
     }
 
+    public void onDiagnosticsButtonClick(View view) {
+        startActivity(new Intent(this, DiagnosticsActivity.class));
+    }
+
     public void clearIUEs(View view){
         breatheViewModel.clearIUEs();
         //TODO: If you use shared preferences to store the remaining IUES, consider updating it here.
@@ -6,10 +6,6 @@ public class UIFinals {
     // Intent extra for Diary Entry Activity
     protected static final String EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TIMESTAMP_KEY =
             "com.ybeltagy.breathe.ui.extra_inhaler_usage_event_to_be_updated_timestamp";
-    protected static final String EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_EXISTING_MESSAGE =
-            "com.ybeltagy.breathe.ui.extra_inhaler_usage_event_to_be_updated_existing_message";
-    protected static final String EXTRA_DATA_UPDATE_INHALER_USAGE_EVENT_TAG =
-            "com.ybeltagy.breathe.ui.extra_inhaler_usage_event_to_be_updated_existing_tag";
 
     // fake data - assumed number of doses in a canister
     // TODO: Replace with real number of doses in a canister
@@ -1,38 +1,61 @@
 package com.ybeltagy.breathe.weather_data_collection;
 
 import android.annotation.SuppressLint;
+import android.content.Context;
 import android.util.Log;
 
-import com.ybeltagy.breathe.data.DataFinals;
-import com.ybeltagy.breathe.data.Level;
+import com.ybeltagy.breathe.R;
 import com.ybeltagy.breathe.data.WeatherData;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-
 import java.io.IOException;
+import java.io.StringReader;
 import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.TreeMap;
 
-import okhttp3.OkHttpClient;
+import okhttp3.HttpUrl;
 import okhttp3.Request;
 import okhttp3.Response;
 
 /**
- * A helper class to hold the Tomorrow.io api call code for the weather data
+ * A helper class to hold the api call code for the weather data. Tomorrow.io by default, see
+ * {@link #setProviders(WeatherProvider, WeatherProvider)}.
  */
 public class CollectWeatherData {
 
     protected static String apiKey;
 
-    // API fields
-    private static final String TEMPERATURE = "temperature";
-    private static final String HUMIDITY = "humidity";
-    private static final String EPAINDEX = "epaIndex";
-    private static final String PRECIPITATIONINTENSITY = "precipitationIntensity";
-    private static final String TREEINDEX = "treeIndex";
-    private static final String GRASSINDEX = "grassIndex";
+    /**
+     * Answers the weather requests. Null means tomorrow.io with {@link #apiKey}.
+     */
+    private static WeatherProvider primaryProvider = null;
+
+    /**
+     * Receives a hedge request when the primary is slow or failed. Null disables hedging, which is the
+     * case in the app: only the tests set a fallback.
+     */
+    private static WeatherProvider fallbackProvider = null;
+
+    /**
+     * Replaces the weather providers, e.g. with a stub server in tests.
+     *
+     * @param primary answers the requests. Null restores tomorrow.io.
+     * @param fallback receives a hedge request when the primary is slower than its p95 latency. Null
+     *                 sends a single request.
+     */
+    public static synchronized void setProviders(WeatherProvider primary, WeatherProvider fallback) {
+        primaryProvider = primary;
+        fallbackProvider = fallback;
+    }
+
+    private static synchronized WeatherProvider getPrimaryProvider() {
+        if (primaryProvider != null) return primaryProvider;
+        return new TomorrowIoProvider("tomorrow.io", HttpUrl.get(TomorrowIoProvider.QUERY_URL), apiKey);
+    }
 
-    private static final String QUERY_URL = "https://api.tomorrow.io/v4/timelines";
+    private static synchronized WeatherProvider getFallbackProvider() {
+        return fallbackProvider;
+    }
 
     /**
      * Get weather data for the requested fields for right now from tomorrow.io
@@ -42,48 +65,20 @@ public class CollectWeatherData {
     @SuppressLint("NewApi")
     public static String syncGetWeatherDataJSONString(Instant startTime,
                                                       double latitude, double longitude) {
+        return syncGetWeatherDataRangeJSONString(startTime, startTime.plusSeconds(60), latitude, longitude);
+    }
 
-        Instant endTime = startTime.plusSeconds(60);
-
-        String url =
-                new StringBuilder(QUERY_URL)
-                        .append("?")
-                        .append("fields=")
-                        .append(TEMPERATURE)
-                        .append(",")
-                        .append(HUMIDITY)
-                        .append(",")
-                        .append(EPAINDEX)
-                        .append(",")
-                        .append(PRECIPITATIONINTENSITY)
-                        .append(",")
-                        .append(TREEINDEX)
-                        .append(",")
-                        .append(GRASSINDEX)
-                        .append("&startTime=")
-                        .append(startTime.toString())
-                        .append("&endTime=")
-                        .append(endTime.toString())
-                        .append("&timesteps=1m")
-                        .append("&apikey=")
-                        .append(apiKey)
-                        .append("&location=")
-                        .append(latitude)
-                        .append(",")
-                        .append(longitude)
-                        .toString();
-
-        Log.d("WeatherData", url);
-
-        OkHttpClient client = new OkHttpClient(); // todo: continue: stopped here! ybeltagy continue from here
-
-        Request request = new Request.Builder()
-                .url(url)
-                .build();
-
-        Log.d("WeatherData", request.toString());
+    /**
+     * Get weather data for the requested fields for a time range from tomorrow.io, one interval
+     * per minute. The 1 minute timesteps are limited to the past and next 6 hours.
+     *
+     * @return the JSON response or null if the request failed
+     */
+    @SuppressLint("NewApi")
+    public static String syncGetWeatherDataRangeJSONString(Instant startTime, Instant endTime,
+                                                           double latitude, double longitude) {
 
-        try (Response response = client.newCall(request).execute()) {
+        try (Response response = execute(startTime, endTime, latitude, longitude)) {
 
             if(response.isSuccessful()) return response.body().string();
 
@@ -94,56 +89,128 @@ public class CollectWeatherData {
         return null;
     }
 
+    /**
+     * Like {@link #syncGetWeatherDataRangeJSONString(Instant, Instant, double, double)}, but parses
+     * the response while it streams in instead of holding it as a string.
+     *
+     * @param priority the priority of the request against the {@link WeatherQuota}
+     * @return the weather data keyed by the start of its interval, or null if the request failed, the
+     * response was invalid or the quota was exhausted (see {@link WeatherQuota#getDeferMillis})
+     */
+    public static TreeMap<Instant, WeatherData> syncGetWeatherDataIntervals(WeatherQuota.Priority priority,
+                                                                            Instant startTime, Instant endTime,
+                                                                            double latitude, double longitude) {
+        if (!WeatherQuota.tryAcquire(priority)) return null;
+
+        TreeMap<Instant, WeatherData> intervals = HedgedWeatherRequest.execute(WeatherHttpClient.get(),
+                getPrimaryProvider(), getFallbackProvider(), priority, startTime, endTime, latitude, longitude);
+
+        if (intervals == null) Log.e("WeatherData", "Every weather request failed");
+        return intervals;
+    }
+
+    /**
+     * Gets the hourly past weather of a location from the historical endpoint of the primary provider.
+     * Not hedged: the backfill has no one waiting for it. Counts as a background request against the
+     * {@link WeatherQuota}.
+     *
+     * @return the weather data keyed by the start of its hour, or null if the request failed, the
+     * response was invalid or the quota was exhausted
+     */
+    public static TreeMap<Instant, WeatherData> syncGetHistoricalWeatherData(Instant startTime, Instant endTime,
+                                                                             double latitude, double longitude) {
+        if (!WeatherQuota.tryAcquire(WeatherQuota.Priority.BACKGROUND)) return null;
+
+        WeatherProvider provider = getPrimaryProvider();
+        Request request = provider.buildHistoricalRequest(startTime, endTime, latitude, longitude);
+
+        try (Response response = WeatherHttpClient.get().newCall(request).execute()) {
+
+            if (response.isSuccessful()) return provider.parse(response.body().charStream());
+            Log.e("WeatherData", "Historical request failed : " + response.code());
+
+        } catch (IOException e) {
+            Log.e("WeatherData", "IOException : " + e.getMessage());
+        }
+
+        return null;
+    }
+
+    /**
+     * Requests the weather data for the requested fields for a time range from the primary provider.
+     *
+     * @return the response. The caller must close it.
+     */
+    private static Response execute(Instant startTime, Instant endTime,
+                                     double latitude, double longitude) throws IOException {
+
+        if (!WeatherQuota.tryAcquire(WeatherQuota.Priority.DASHBOARD)) throw new IOException("Weather quota exhausted");
+
+        Request request = getPrimaryProvider().buildRequest(startTime, endTime, latitude, longitude);
+
+        Log.d("WeatherData", request.toString());
+
+        return WeatherHttpClient.get().newCall(request).execute();
+    }
+
+    /**
+     * Reads the api key, sets up the shared HTTP client with its disk cache and loads the quota.
+     * Safe to call repeatedly.
+     *
+     * @param context the calling context
+     */
+    public static void init(Context context) {
+        apiKey = context.getString(R.string.clima_cell_api_key);
+        WeatherHttpClient.init(context);
+        WeatherQuota.init(context);
+    }
+
+    /**
+     * Gets the weather data for a time and location from the {@link WeatherCache}, or from
+     * tomorrow.io on a miss. Must not be called on the main thread.
+     *
+     * @param context used to read the api key and the cache
+     * @param priority the priority of the request against the {@link WeatherQuota}
+     * @return the weather data or null if the request failed, the response was invalid or the quota
+     * was exhausted
+     */
+    @SuppressLint("NewApi")
+    public static WeatherData syncGetWeatherData(Context context, WeatherQuota.Priority priority, Instant startTime,
+                                                 double latitude, double longitude) {
+        WeatherData weatherData = WeatherCache.get(context, startTime, latitude, longitude);
+        if (weatherData != null) return weatherData;
+
+        init(context);
+        TreeMap<Instant, WeatherData> intervals =
+                syncGetWeatherDataIntervals(priority, startTime, startTime.plusSeconds(60), latitude, longitude);
+        weatherData = intervals == null || intervals.isEmpty() ? null : intervals.firstEntry().getValue();
+        if (weatherData != null) WeatherCache.put(context, startTime, latitude, longitude, weatherData);
+        return weatherData;
+    }
+
+    /**
+     * @param response a tomorrow.io response
+     * @return the weather data of its first interval or null if the response was invalid
+     */
     public static WeatherData responseJSONToWeatherData(String response) {
+        WeatherData weatherData = WeatherResponseParser.parseFirst(response);
+        if (weatherData == null) Log.e("WeatherData", "Invalid response");
+        return weatherData;
+    }
+
+    /**
+     * Parses every interval of a (range) response.
+     *
+     * @return the weather data keyed by the start of its interval, or null if the response was invalid
+     */
+    public static TreeMap<Instant, WeatherData> responseJSONToWeatherDataIntervals(String response) {
 
         if (response == null || response.isEmpty()) return null;
 
         try {
-            JSONObject obj = null;
-
-            obj = new JSONObject(response).getJSONObject("data");
-
-            obj = obj.getJSONArray("timelines")
-                    .getJSONObject(0)
-                    .getJSONArray("intervals")
-                    .getJSONObject(0)
-                    .getJSONObject("values");
-
-            WeatherData weatherData = new WeatherData();
-
-            // get NaN if temperature doesn't exist (instead of throwing exception, which happened
-            // to me a couple times)
-            // https://stackoverflow.com/questions/15477304/android-jsonexception-no-value-for
-            weatherData.setWeatherTemperature(
-                    (float) obj.optDouble(TEMPERATURE, DataFinals.DEFAULT_FLOAT));
-            Log.d("WeatherData", "Temperature : " + weatherData.getWeatherTemperature());
-
-            weatherData.setWeatherHumidity(
-                    (float) obj.optDouble(HUMIDITY, DataFinals.DEFAULT_FLOAT));
-            Log.d("WeatherData", "Humidity : " + weatherData.getWeatherHumidity());
-
-            weatherData.setWeatherPrecipitationIntensity(
-                    (float) obj.optDouble(PRECIPITATIONINTENSITY, DataFinals.DEFAULT_FLOAT));
-            Log.d("WeatherData",
-                    "Precipitation Intensity : "
-                            + weatherData.getWeatherPrecipitationIntensity());
-
-            weatherData.setWeatherTreeIndex(
-                    Level.intToLevel(obj.optInt(TREEINDEX, Level.levelToInt(DataFinals.DEFAULT_LEVEL))));
-            Log.d("WeatherData", "Tree Index : " + weatherData.getWeatherTreeIndex()
-                    + " = " + Level.levelToInt(weatherData.getWeatherTreeIndex()));
-
-            weatherData.setWeatherGrassIndex(
-                    Level.intToLevel(obj.optInt(GRASSINDEX, Level.levelToInt(DataFinals.DEFAULT_LEVEL))));
-            Log.d("WeatherData", "Grass Index : " + weatherData.getWeatherGrassIndex()
-                    + " = " + Level.levelToInt(weatherData.getWeatherGrassIndex()));
-
-            weatherData.setWeatherEPAIndex(obj.optInt(EPAINDEX, DataFinals.DEFAULT_INTEGER));
-            Log.d("WeatherData", "EPA Index : " + weatherData.getWeatherEPAIndex());
-
-            return weatherData;
-        } catch (JSONException e) {
-            Log.e("WeatherData", "JSONException : " + e.getMessage());
+            return WeatherResponseParser.parseIntervals(new StringReader(response), Integer.MAX_VALUE);
+        } catch (IOException | IllegalStateException | DateTimeParseException e) {
+            Log.e("WeatherData", "Exception while parsing intervals : " + e.getMessage());
             return null;
         }
     }
@@ -2,27 +2,25 @@ package com.ybeltagy.breathe.weather_data_collection;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.location.Location;
 import android.util.Log;
 
 
 import androidx.annotation.NonNull;
-import androidx.concurrent.futures.CallbackToFutureAdapter;
 import androidx.work.Data;
-import androidx.work.ListenableWorker;
+import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.google.android.gms.location.LocationServices;
-import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.collection.BreatheClock;
 
 import org.jetbrains.annotations.NotNull;
 
+
 /**
- * Worker class that gets the last location known to the OS. This location may be null if the
- * Location permission has been turned off and on and no other client has requested location.
- * If this occurs, the GPSWorker will be garbage collected and WeatherAPIWorker will not run.
+ * Worker class that gets the location of the device from the {@link LocationService}, which reuses
+ * a recent fix and always answers in bounded time. If there is no location at all (e.g. the location
+ * permission is off), the worker fails and the WeatherAPIWorker after it does not run.
  */
-public class GPSWorker extends ListenableWorker {
+public class GPSWorker extends Worker {
 
     // debug
     String GPS_WORKER_LOG_TAG = "GPSWorker";
@@ -36,35 +34,27 @@ public class GPSWorker extends ListenableWorker {
     }
 
     /**
-     * Get GPS last known location and pass the GPS result as Data (this output will be used by
-     * WeatherAPI worker if it is not null)
+     * Get the location and pass the GPS result as Data (this output will be used by
+     * WeatherAPI worker if it is not null).
      * @return Result.success with data or Result.failure with Data.empty
      */
-    @SuppressLint("MissingPermission")
+    @SuppressLint("NewApi")
     @NonNull
     @Override
-    public ListenableFuture<Result> startWork() {
+    public Result doWork() {
         Log.d(GPS_WORKER_LOG_TAG, "Starting work " + getId());
-        return CallbackToFutureAdapter.getFuture( completer ->
-                // Get the fused location provider from Google Play Services
-                LocationServices.getFusedLocationProviderClient(getApplicationContext())
-                .getLastLocation()
-                .addOnSuccessListener(location -> {
-                        if (location != null) {
-                            Log.d(GPS_WORKER_LOG_TAG, "Got location in GPSWorker : "
-                            + location.getLatitude() + " , " + location.getLongitude());
-                            completer.set(Result.success(createGPSOutput(location)));
-                        } else {
-                            Log.d(GPS_WORKER_LOG_TAG, "Location was null");
-                        }
-                })
-                .addOnFailureListener(
-                        exception -> {
-                            Log.e(GPS_WORKER_LOG_TAG, "Exception occurred : "
-                                    + exception.getMessage());
-                            completer.set(Result.failure()); // GPS calls only execute once.
-                        }
-                ));
+
+        LocationService.LocationSnapshot location =
+                LocationService.syncGetLocation(getApplicationContext(), BreatheClock.now());
+
+        if (location == null) {
+            Log.d(GPS_WORKER_LOG_TAG, "Location was null");
+            return Result.failure(); // GPS calls only execute once.
+        }
+
+        Log.d(GPS_WORKER_LOG_TAG, "Got location in GPSWorker : "
+                + location.latitude + " , " + location.longitude + " ±" + location.accuracyMeters + "m");
+        return Result.success(createGPSOutput(location));
     }
 
     /**
@@ -72,11 +62,10 @@ public class GPSWorker extends ListenableWorker {
      * @param location
      * @return
      */
-    private static Data createGPSOutput(Location location) {
-        double[] latLong = {location.getLatitude(), location.getLongitude()};
+    private static Data createGPSOutput(LocationService.LocationSnapshot location) {
+        double[] latLong = {location.latitude, location.longitude};
         return new Data.Builder()
                 .putDoubleArray(TaskDataFinals.KEY_GPS_RESULT, latLong)
                 .build();
     }
 }
-
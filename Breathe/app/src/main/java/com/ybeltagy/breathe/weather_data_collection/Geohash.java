@@ -0,0 +1,57 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+/**
+ * Encodes locations as <a href=https://en.wikipedia.org/wiki/Geohash>geohashes</a>.
+ * Locations in the same cell share a geohash, and shorter prefixes are larger cells.
+ */
+public class Geohash {
+
+    private static final char[] BASE32 = "0123456789bcdefghjkmnpqrstuvwxyz".toCharArray();
+
+    /**
+     * @param latitude in degrees
+     * @param longitude in degrees
+     * @param precision the number of characters. 6 characters are a cell of about 1.2km x 0.6km.
+     * @return the geohash of the cell holding the location
+     */
+    public static String encode(double latitude, double longitude, int precision) {
+        double minLat = -90, maxLat = 90;
+        double minLon = -180, maxLon = 180;
+
+        StringBuilder hash = new StringBuilder(precision);
+        boolean evenBit = true; // bits alternate between longitude and latitude, starting with longitude.
+        int bit = 0;
+        int ch = 0;
+
+        while (hash.length() < precision) {
+            if (evenBit) {
+                double mid = (minLon + maxLon) / 2;
+                if (longitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLon = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLon = mid;
+                }
+            } else {
+                double mid = (minLat + maxLat) / 2;
+                if (latitude >= mid) {
+                    ch = (ch << 1) | 1;
+                    minLat = mid;
+                } else {
+                    ch = ch << 1;
+                    maxLat = mid;
+                }
+            }
+            evenBit = !evenBit;
+
+            if (++bit == 5) {
+                hash.append(BASE32[ch]);
+                bit = 0;
+                ch = 0;
+            }
+        }
+
+        return hash.toString();
+    }
+}
@@ -0,0 +1,191 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.ybeltagy.breathe.ble.LatencyStats;
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Sends a weather request to the primary provider and, if it has not answered within its p95 latency,
+ * a second request to the fallback provider. The first valid answer wins and the other call is
+ * cancelled. A primary that fails before the hedge delay starts the fallback right away.
+ *
+ * This trims the tail latency at the cost of about 5% extra requests. Each request sent takes its own
+ * {@link WeatherQuota} token: the hedge is skipped when the quota refuses it.
+ *
+ * Note: the app only has the tomorrow.io provider, so it sends single requests. Hedging runs when a
+ * fallback is set with {@link CollectWeatherData#setProviders(WeatherProvider, WeatherProvider)},
+ * which only the tests do so far.
+ */
+class HedgedWeatherRequest {
+
+    private static final String tag = HedgedWeatherRequest.class.getName();
+
+    private final OkHttpClient client;
+    private final Instant startTime;
+    private final Instant endTime;
+    private final double latitude;
+    private final double longitude;
+
+    // guarded by this
+    private final List<Call> calls = new ArrayList<>();
+    private int running = 0;
+    private TreeMap<Instant, WeatherData> result = null;
+    private String winner = null;
+
+    private HedgedWeatherRequest(OkHttpClient client, Instant startTime, Instant endTime,
+                                 double latitude, double longitude) {
+        this.client = client;
+        this.startTime = startTime;
+        this.endTime = endTime;
+        this.latitude = latitude;
+        this.longitude = longitude;
+    }
+
+    /**
+     * The caller must already hold the quota token of the primary request.
+     * @param fallback the provider of the hedge request or null to send a single request
+     * @param priority the priority the hedge request takes its quota token with
+     * @return the weather data keyed by the start of its interval or null if every request failed.
+     */
+    static TreeMap<Instant, WeatherData> execute(OkHttpClient client, WeatherProvider primary, WeatherProvider fallback,
+                                                 WeatherQuota.Priority priority, Instant startTime, Instant endTime,
+                                                 double latitude, double longitude) {
+        HedgedWeatherRequest request = new HedgedWeatherRequest(client, startTime, endTime, latitude, longitude);
+        long timeoutMillis = TimeUnit.SECONDS.toMillis(WeatherFinals.HTTP_CALL_TIMEOUT_SECONDS);
+
+        try {
+            request.start(primary);
+
+            if (fallback != null) {
+                long hedgeDelay = getHedgeDelayMillis(primary);
+                boolean settled = request.awaitSettled(hedgeDelay);
+                if (!settled || !request.succeeded()) {
+                    if (!WeatherQuota.tryAcquire(priority)) {
+                        Log.d(tag, "No quota left to hedge " + primary.getName());
+                        request.awaitSettled(timeoutMillis);
+                        return request.finish();
+                    }
+                    Log.d(tag, primary.getName() + (settled ? " failed" : " is slower than " + hedgeDelay + "ms")
+                            + ", hedging with " + fallback.getName());
+                    request.start(fallback);
+                    request.awaitSettled(timeoutMillis);
+                    HttpMetrics.recordHedge(fallback.getName().equals(request.getWinner()));
+                    return request.finish();
+                }
+            }
+
+            request.awaitSettled(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return request.finish();
+    }
+
+    /**
+     * @return the p95 latency of the provider, or a default until it has enough samples.
+     */
+    static long getHedgeDelayMillis(WeatherProvider provider) {
+        LatencyStats stats = HttpMetrics.getProviderLatency(provider.getName());
+        if (stats.getCount() < WeatherFinals.WEATHER_HEDGE_MIN_SAMPLES) return WeatherFinals.WEATHER_HEDGE_DEFAULT_DELAY_MILLIS;
+        return stats.getPercentile(95);
+    }
+
+    private void start(WeatherProvider provider) {
+        Call call = client.newCall(provider.buildRequest(startTime, endTime, latitude, longitude));
+        long sentAt = System.nanoTime();
+
+        synchronized (this) {
+            calls.add(call);
+            running++;
+        }
+
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(@NonNull Call call, @NonNull IOException e) {
+                if (!call.isCanceled()) {
+                    Log.d(tag, provider.getName() + " failed: " + e.getMessage());
+                    HttpMetrics.recordProviderFailure(provider.getName());
+                }
+                onFinished(provider, null);
+            }
+
+            @Override
+            public void onResponse(@NonNull Call call, @NonNull Response response) {
+                TreeMap<Instant, WeatherData> intervals = null;
+                try (ResponseBody body = response.body()) {
+                    if (response.isSuccessful() && body != null) intervals = provider.parse(body.charStream());
+                    else Log.d(tag, provider.getName() + " answered " + response.code());
+                } catch (IOException | RuntimeException e) {
+                    // Nothing may escape to the OkHttp dispatcher thread: the provider only fails.
+                    Log.d(tag, provider.getName() + " sent an invalid response: " + e.getMessage());
+                }
+
+                if (intervals == null || intervals.isEmpty()) {
+                    HttpMetrics.recordProviderFailure(provider.getName());
+                    intervals = null;
+                } else {
+                    HttpMetrics.getProviderLatency(provider.getName())
+                            .record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt));
+                }
+                onFinished(provider, intervals);
+            }
+        });
+    }
+
+    private synchronized void onFinished(WeatherProvider provider, TreeMap<Instant, WeatherData> intervals) {
+        running--;
+        if (intervals != null && result == null) {
+            result = intervals;
+            winner = provider.getName();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits until a request succeeded or all of them failed.
+     * @return false if that did not happen in time.
+     */
+    private synchronized boolean awaitSettled(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (result == null && running > 0) {
+            long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) return false;
+            wait(remaining);
+        }
+        return true;
+    }
+
+    private synchronized boolean succeeded() {
+        return result != null;
+    }
+
+    private synchronized String getWinner() {
+        return winner;
+    }
+
+    /**
+     * Cancels the calls still running.
+     * @return the result
+     */
+    private synchronized TreeMap<Instant, WeatherData> finish() {
+        for (Call call : calls) call.cancel();
+        return result;
+    }
+}
@@ -0,0 +1,115 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import com.ybeltagy.breathe.ble.LatencyStats;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Aggregates the timings the {@link HttpTimingListener} measures for the weather requests.
+ */
+public class HttpMetrics {
+
+    private static final LatencyStats dnsLatency = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+    private static final LatencyStats connectLatency = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+    private static final LatencyStats tlsLatency = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * From the start of the call to the first byte of the response headers.
+     */
+    private static final LatencyStats timeToFirstByte = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+
+    /**
+     * From the start to the end of the call.
+     */
+    private static final LatencyStats callLatency = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+
+    private static long calls = 0;
+    private static long failedCalls = 0;
+
+    /**
+     * Calls which got a pooled connection and skipped DNS, connect and TLS.
+     */
+    private static long reusedConnections = 0;
+
+    private static long cacheHits = 0;
+
+    /**
+     * The latency of the successful requests of each provider. Used to pick the hedge delay.
+     */
+    private static final Map<String, LatencyStats> providerLatency = new HashMap<>();
+    private static final Map<String, Long> providerFailures = new HashMap<>();
+
+    /**
+     * Requests which sent a hedge request and how many of those the hedge answered first.
+     */
+    private static long hedges = 0;
+    private static long hedgesWon = 0;
+
+    static LatencyStats getDnsLatency() {
+        return dnsLatency;
+    }
+
+    static LatencyStats getConnectLatency() {
+        return connectLatency;
+    }
+
+    static LatencyStats getTlsLatency() {
+        return tlsLatency;
+    }
+
+    static LatencyStats getTimeToFirstByte() {
+        return timeToFirstByte;
+    }
+
+    static synchronized void recordCall(long millis, boolean failed, boolean reusedConnection, boolean cacheHit) {
+        callLatency.record(millis);
+        calls++;
+        if (failed) failedCalls++;
+        if (reusedConnection) reusedConnections++;
+        if (cacheHit) cacheHits++;
+    }
+
+    static synchronized LatencyStats getProviderLatency(String provider) {
+        LatencyStats stats = providerLatency.get(provider);
+        if (stats == null) {
+            stats = new LatencyStats(WeatherFinals.HTTP_LATENCY_SAMPLE_CAPACITY);
+            providerLatency.put(provider, stats);
+        }
+        return stats;
+    }
+
+    static synchronized void recordProviderFailure(String provider) {
+        Long failures = providerFailures.get(provider);
+        providerFailures.put(provider, failures == null ? 1 : failures + 1);
+    }
+
+    /**
+     * @param won true if the hedge request answered first.
+     */
+    static synchronized void recordHedge(boolean won) {
+        hedges++;
+        if (won) hedgesWon++;
+    }
+
+    /**
+     * @return a human readable summary of the HTTP timings.
+     */
+    public static synchronized String getSummary() {
+        StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH,
+                "Weather HTTP\n  calls: %d (%d failed, %d reused a connection, %d cache hits)\n" +
+                        "  call: %s\n  dns: %s\n  connect: %s\n  tls: %s\n  ttfb: %s\n" +
+                        "  hedges: %d (%d won)\n",
+                calls, failedCalls, reusedConnections, cacheHits,
+                callLatency, dnsLatency, connectLatency, tlsLatency, timeToFirstByte,
+                hedges, hedgesWon));
+
+        for (Map.Entry<String, LatencyStats> entry : providerLatency.entrySet()) {
+            Long failures = providerFailures.get(entry.getKey());
+            sb.append(String.format(Locale.ENGLISH, "  %s: %s (%d failed)\n",
+                    entry.getKey(), entry.getValue(), failures == null ? 0 : failures));
+        }
+        return sb.toString();
+    }
+}
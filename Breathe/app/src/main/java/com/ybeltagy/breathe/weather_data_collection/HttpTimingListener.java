@@ -0,0 +1,122 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.List;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.Handshake;
+import okhttp3.Protocol;
+import okhttp3.Response;
+
+/**
+ * Times the phases of a single HTTP call (DNS, connect, TLS, time to first byte) and records them in
+ * the {@link HttpMetrics}. A new listener is created for every call, so it needs no synchronization.
+ */
+class HttpTimingListener extends EventListener {
+
+    private static final String tag = HttpTimingListener.class.getName();
+
+    static final EventListener.Factory FACTORY = call -> new HttpTimingListener();
+
+    private long callStart;
+    private long dnsStart;
+    private long connectStart;
+    private long secureConnectStart;
+
+    private long dnsMillis = -1;
+    private long connectMillis = -1;
+    private long tlsMillis = -1;
+    private long ttfbMillis = -1;
+
+    private boolean connected = false;
+    private boolean connectionAcquired = false;
+    private boolean cacheHit = false;
+
+    private static long millisSince(long start) {
+        return (System.nanoTime() - start) / 1_000_000;
+    }
+
+    @Override
+    public void callStart(Call call) {
+        callStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsStart(Call call, String domainName) {
+        dnsStart = System.nanoTime();
+    }
+
+    @Override
+    public void dnsEnd(Call call, String domainName, List<InetAddress> inetAddressList) {
+        dnsMillis = millisSince(dnsStart);
+        HttpMetrics.getDnsLatency().record(dnsMillis);
+    }
+
+    @Override
+    public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+        connectStart = System.nanoTime();
+        connected = true;
+    }
+
+    @Override
+    public void secureConnectStart(Call call) {
+        secureConnectStart = System.nanoTime();
+    }
+
+    @Override
+    public void secureConnectEnd(Call call, Handshake handshake) {
+        tlsMillis = millisSince(secureConnectStart);
+        HttpMetrics.getTlsLatency().record(tlsMillis);
+    }
+
+    @Override
+    public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+        connectMillis = millisSince(connectStart); // includes the TLS handshake.
+        HttpMetrics.getConnectLatency().record(connectMillis);
+    }
+
+    @Override
+    public void connectionAcquired(Call call, Connection connection) {
+        connectionAcquired = true;
+    }
+
+    @Override
+    public void responseHeadersStart(Call call) {
+        ttfbMillis = millisSince(callStart);
+        HttpMetrics.getTimeToFirstByte().record(ttfbMillis);
+    }
+
+    @Override
+    public void cacheHit(Call call, Response response) {
+        cacheHit = true;
+    }
+
+    @Override
+    public void callEnd(Call call) {
+        onCallFinished(call, false);
+    }
+
+    @Override
+    public void callFailed(Call call, IOException ioe) {
+        onCallFinished(call, true);
+    }
+
+    private void onCallFinished(Call call, boolean failed) {
+        long callMillis = millisSince(callStart);
+        // A call that got a connection without opening one used a pooled connection.
+        boolean reused = connectionAcquired && !connected;
+        HttpMetrics.recordCall(callMillis, failed, reused, cacheHit);
+
+        Log.d(tag, call.request().url().host() + (failed ? " failed" : "") +
+                ": dns=" + dnsMillis + "ms connect=" + connectMillis + "ms tls=" + tlsMillis +
+                "ms ttfb=" + ttfbMillis + "ms total=" + callMillis + "ms" +
+                (reused ? " (reused connection)" : "") + (cacheHit ? " (cache hit)" : ""));
+    }
+}
@@ -0,0 +1,223 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.util.Log;
+
+import com.google.android.gms.location.FusedLocationProviderClient;
+import com.google.android.gms.location.LocationRequest;
+import com.google.android.gms.location.LocationServices;
+import com.google.android.gms.tasks.CancellationTokenSource;
+import com.google.android.gms.tasks.Tasks;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the most recent location fix with its accuracy and age, so the IUEs of a session share one fix
+ * instead of asking the location provider each time.
+ *
+ * {@link #syncGetLocation(Context, Instant)} always returns, within two
+ * {@link WeatherFinals#LOCATION_FIX_TIMEOUT_SECONDS} at worst: a recent snapshot, the last known location,
+ * a fresh fix, or an older snapshot if the provider can't answer. The snapshot is kept in the shared
+ * preferences, so it survives the app's process being killed between two workers.
+ */
+public class LocationService {
+
+    private static final String tag = LocationService.class.getName();
+
+    private static final String LATITUDE = "latitude";
+    private static final String LONGITUDE = "longitude";
+    private static final String ACCURACY = "accuracy";
+    private static final String FIXED_AT = "fixedAt";
+
+    /**
+     * A location, how accurate it is and when it was fixed.
+     */
+    public static class LocationSnapshot {
+        public final double latitude;
+        public final double longitude;
+        /**
+         * The radius of 68% confidence in meters.
+         */
+        public final float accuracyMeters;
+        public final Instant fixedAt;
+
+        LocationSnapshot(double latitude, double longitude, float accuracyMeters, Instant fixedAt) {
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.accuracyMeters = accuracyMeters;
+            this.fixedAt = fixedAt;
+        }
+
+        /**
+         * @return the age of the fix at now in milliseconds.
+         */
+        @SuppressLint("NewApi")
+        public long getAgeMillis(Instant now) {
+            return Duration.between(fixedAt, now).toMillis();
+        }
+    }
+
+    /**
+     * In memory copy of the shared preferences. Null until it is loaded.
+     */
+    private static volatile LocationSnapshot snapshot = null;
+
+    /**
+     * Replaces the location of the device when set. Used by tests.
+     */
+    private static volatile LocationSnapshot fixedLocation = null;
+
+    /**
+     * Used by tests: makes {@link #syncGetLocation(Context, Instant)} return the given location, fixed
+     * at the time asked for, without asking the device.
+     */
+    @SuppressLint("NewApi")
+    public static void setFixedLocation(double latitude, double longitude) {
+        fixedLocation = new LocationSnapshot(latitude, longitude, 0, Instant.EPOCH);
+    }
+
+    /**
+     * Used by tests: asks the device for the location again.
+     */
+    public static void clearFixedLocation() {
+        fixedLocation = null;
+    }
+
+    /**
+     * Does not ask the device, so it is cheap enough for the ingest path.
+     *
+     * @param context the calling context
+     * @param now the current time
+     * @return the last location if it is recent enough to stand for the current location, or null.
+     */
+    @SuppressLint("NewApi")
+    public static LocationSnapshot getRecentLocation(Context context, Instant now) {
+        LocationSnapshot fixed = fixedLocation;
+        if (fixed != null) return new LocationSnapshot(fixed.latitude, fixed.longitude, fixed.accuracyMeters, now);
+
+        LocationSnapshot cached = getSnapshot(context);
+        return cached != null && cached.getAgeMillis(now) <= WeatherFinals.LOCATION_MAX_AGE_MILLIS ? cached : null;
+    }
+
+    /**
+     * Gets the location of the device. Must not be called on the main thread.
+     *
+     * @param context the calling context
+     * @param now the current time
+     * @return the location or null if the device has never had a fix recent enough.
+     */
+    @SuppressLint({"MissingPermission", "NewApi"})
+    public static LocationSnapshot syncGetLocation(Context context, Instant now) {
+        LocationSnapshot fixed = fixedLocation;
+        if (fixed != null) return new LocationSnapshot(fixed.latitude, fixed.longitude, fixed.accuracyMeters, now);
+
+        LocationSnapshot cached = getSnapshot(context);
+        if (cached != null && cached.getAgeMillis(now) <= WeatherFinals.LOCATION_MAX_AGE_MILLIS) {
+            Log.d(tag, "Reusing the location fixed " + cached.getAgeMillis(now) + "ms ago");
+            return cached;
+        }
+
+        FusedLocationProviderClient client = LocationServices.getFusedLocationProviderClient(context);
+
+        // The last known location is free. Only ask for a fix if it is too old or too coarse.
+        try {
+            Location last = Tasks.await(client.getLastLocation(),
+                    WeatherFinals.LOCATION_FIX_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (last != null && isUsable(last, now)) return update(context, last);
+        } catch (Exception e) {
+            Log.d(tag, "Getting the last location failed: " + e.toString());
+        }
+
+        CancellationTokenSource cancellation = new CancellationTokenSource();
+        try {
+            Location current = Tasks.await(
+                    client.getCurrentLocation(LocationRequest.PRIORITY_BALANCED_POWER_ACCURACY, cancellation.getToken()),
+                    WeatherFinals.LOCATION_FIX_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (current != null) return update(context, current);
+            Log.d(tag, "No location fix");
+        } catch (Exception e) {
+            cancellation.cancel();
+            Log.d(tag, "Getting a location fix failed: " + e.toString());
+        }
+
+        // The weather changes slowly over distance. An older fix beats no weather data.
+        if (cached != null && cached.getAgeMillis(now) <= WeatherFinals.LOCATION_STALE_MAX_AGE_MILLIS) {
+            Log.d(tag, "Falling back to the location fixed " + cached.getAgeMillis(now) + "ms ago");
+            return cached;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the location is recent and accurate enough to stand for the current location.
+     */
+    @SuppressLint("NewApi")
+    private static boolean isUsable(Location location, Instant now) {
+        long ageMillis = Duration.between(Instant.ofEpochMilli(location.getTime()), now).toMillis();
+        return ageMillis <= WeatherFinals.LOCATION_MAX_AGE_MILLIS
+                && (!location.hasAccuracy() || location.getAccuracy() <= WeatherFinals.LOCATION_MAX_ACCURACY_METERS);
+    }
+
+    /**
+     * Saves a new fix. A fix within {@link WeatherFinals#LOCATION_REUSE_DISTANCE_METERS} of the snapshot
+     * only refreshes its age, so the weather cache keeps getting hits for the same cell.
+     *
+     * @return the new snapshot.
+     */
+    @SuppressLint("NewApi")
+    static synchronized LocationSnapshot update(Context context, Location location) {
+        Instant fixedAt = Instant.ofEpochMilli(location.getTime());
+        float accuracy = location.hasAccuracy() ? location.getAccuracy() : WeatherFinals.LOCATION_MAX_ACCURACY_METERS;
+
+        LocationSnapshot cached = getSnapshot(context);
+        LocationSnapshot next;
+        if (cached != null && accuracy >= cached.accuracyMeters
+                && distanceMeters(cached.latitude, cached.longitude, location.getLatitude(), location.getLongitude())
+                <= WeatherFinals.LOCATION_REUSE_DISTANCE_METERS) {
+            next = new LocationSnapshot(cached.latitude, cached.longitude, cached.accuracyMeters, fixedAt);
+        } else {
+            next = new LocationSnapshot(location.getLatitude(), location.getLongitude(), accuracy, fixedAt);
+        }
+
+        snapshot = next;
+        context.getSharedPreferences(WeatherFinals.LOCATION_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE).edit()
+                .putLong(LATITUDE, Double.doubleToRawLongBits(next.latitude))
+                .putLong(LONGITUDE, Double.doubleToRawLongBits(next.longitude))
+                .putFloat(ACCURACY, next.accuracyMeters)
+                .putLong(FIXED_AT, next.fixedAt.toEpochMilli())
+                .apply();
+        return next;
+    }
+
+    /**
+     * @return the saved snapshot or null if there is none.
+     */
+    @SuppressLint("NewApi")
+    private static LocationSnapshot getSnapshot(Context context) {
+        LocationSnapshot current = snapshot;
+        if (current != null) return current;
+
+        SharedPreferences sharedPreferences =
+                context.getSharedPreferences(WeatherFinals.LOCATION_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+        if (!sharedPreferences.contains(FIXED_AT)) return null;
+
+        current = new LocationSnapshot(
+                Double.longBitsToDouble(sharedPreferences.getLong(LATITUDE, 0)),
+                Double.longBitsToDouble(sharedPreferences.getLong(LONGITUDE, 0)),
+                sharedPreferences.getFloat(ACCURACY, WeatherFinals.LOCATION_MAX_ACCURACY_METERS),
+                Instant.ofEpochMilli(sharedPreferences.getLong(FIXED_AT, 0)));
+        snapshot = current;
+        return current;
+    }
+
+    private static float distanceMeters(double latitude1, double longitude1, double latitude2, double longitude2) {
+        float[] results = new float[1];
+        Location.distanceBetween(latitude1, longitude1, latitude2, longitude2, results);
+        return results[0];
+    }
+}
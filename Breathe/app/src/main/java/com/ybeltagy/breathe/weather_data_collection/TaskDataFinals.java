@@ -18,8 +18,10 @@ public class TaskDataFinals {
     public static final String KEY_GPS_RESULT = "gPSResult";
 
     /**
-     * Result key for WeatherData
+     * Result keys for WeatherData. Together they are the key of the WeatherObservation holding it.
      */
-    public static final String KEY_WEATHER_DATA_RESULT = "weatherDataResult";
+    public static final String KEY_WEATHER_GEOHASH_RESULT = "weatherGeohashResult";
+    public static final String KEY_WEATHER_BUCKET_MINUTES_RESULT = "weatherBucketMinutesResult";
+    public static final String KEY_WEATHER_BUCKET_START_RESULT = "weatherBucketStartResult";
 
 }
@@ -0,0 +1,135 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.TreeMap;
+
+import okhttp3.HttpUrl;
+import okhttp3.MediaType;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+/**
+ * The tomorrow.io v4 timelines API, or anything that speaks it (like a stub server in tests).
+ */
+public class TomorrowIoProvider implements WeatherProvider {
+
+    public static final String QUERY_URL = "https://api.tomorrow.io/v4/timelines";
+
+    /**
+     * Resolved against the timelines url.
+     */
+    private static final String HISTORICAL_PATH = "historical";
+
+    private static final MediaType JSON = MediaType.get("application/json; charset=utf-8");
+
+    // API fields
+    private static final String TEMPERATURE = "temperature";
+    private static final String HUMIDITY = "humidity";
+    private static final String EPAINDEX = "epaIndex";
+    private static final String PRECIPITATIONINTENSITY = "precipitationIntensity";
+    private static final String TREEINDEX = "treeIndex";
+    private static final String GRASSINDEX = "grassIndex";
+
+    private final String name;
+    private final HttpUrl url;
+    private final String apiKey;
+
+    /**
+     * @param name the name of the provider
+     * @param url the timelines endpoint
+     * @param apiKey the api key
+     */
+    public TomorrowIoProvider(String name, HttpUrl url, String apiKey) {
+        this.name = name;
+        this.url = url;
+        this.apiKey = apiKey;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    @SuppressLint("NewApi")
+    public Request buildRequest(Instant startTime, Instant endTime, double latitude, double longitude) {
+        String requestUrl =
+                new StringBuilder(url.toString())
+                        .append("?")
+                        .append("fields=")
+                        .append(TEMPERATURE)
+                        .append(",")
+                        .append(HUMIDITY)
+                        .append(",")
+                        .append(EPAINDEX)
+                        .append(",")
+                        .append(PRECIPITATIONINTENSITY)
+                        .append(",")
+                        .append(TREEINDEX)
+                        .append(",")
+                        .append(GRASSINDEX)
+                        .append("&startTime=")
+                        .append(startTime.toString())
+                        .append("&endTime=")
+                        .append(endTime.toString())
+                        .append("&timesteps=1m")
+                        .append("&apikey=")
+                        .append(apiKey)
+                        .append("&location=")
+                        .append(latitude)
+                        .append(",")
+                        .append(longitude)
+                        .toString();
+
+        return new Request.Builder()
+                .url(requestUrl)
+                .build();
+    }
+
+    /**
+     * The historical endpoint sits next to the timelines endpoint and answers in the same shape.
+     */
+    @Override
+    @SuppressLint("NewApi")
+    public Request buildHistoricalRequest(Instant startTime, Instant endTime, double latitude, double longitude) {
+        String body =
+                new StringBuilder("{\"location\":\"")
+                        .append(latitude)
+                        .append(",")
+                        .append(longitude)
+                        .append("\",\"fields\":[\"")
+                        .append(TEMPERATURE).append("\",\"")
+                        .append(HUMIDITY).append("\",\"")
+                        .append(EPAINDEX).append("\",\"")
+                        .append(PRECIPITATIONINTENSITY).append("\",\"")
+                        .append(TREEINDEX).append("\",\"")
+                        .append(GRASSINDEX)
+                        .append("\"],\"timesteps\":[\"1h\"],\"startTime\":\"")
+                        .append(startTime.toString())
+                        .append("\",\"endTime\":\"")
+                        .append(endTime.toString())
+                        .append("\"}")
+                        .toString();
+
+        return new Request.Builder()
+                .url(url.resolve(HISTORICAL_PATH).newBuilder().addQueryParameter("apikey", apiKey).build())
+                .post(RequestBody.create(body, JSON))
+                .build();
+    }
+
+    @Override
+    public TreeMap<Instant, WeatherData> parse(Reader body) throws IOException {
+        try {
+            return WeatherResponseParser.parseIntervals(body, Integer.MAX_VALUE);
+        } catch (IllegalStateException | DateTimeParseException | NumberFormatException e) {
+            throw new IOException("Malformed response: " + e.getMessage(), e);
+        }
+    }
+}
@@ -9,18 +9,23 @@ import androidx.work.Data;
 import androidx.work.Worker;
 import androidx.work.WorkerParameters;
 
-import com.ybeltagy.breathe.R;
 import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
 import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.data.WeatherObservation;
 
 import java.time.Instant;
+import java.util.TreeMap;
 
 import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_SAVE_WEATHER;
-import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_DATA_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_BUCKET_MINUTES_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_BUCKET_START_RESULT;
+import static com.ybeltagy.breathe.weather_data_collection.TaskDataFinals.KEY_WEATHER_GEOHASH_RESULT;
 
 /**
  * Worker class that takes a double array of latitude, longitude and requests weather data from
  * tomorrow.io's v4 API
+ * - the weather data is persisted in the WeatherCache and the output only holds the key of the
+ *   cached WeatherObservation (see TaskDataFinals), so WorkManager doesn't store the response
  */
 public class WeatherAPIWorker extends Worker {
     /**
@@ -70,45 +75,55 @@ public class WeatherAPIWorker extends Worker {
                 "Received location in WeatherAPIWorker: "
                         + latLongArray[0] + " , " + latLongArray[1]);
 
-        // make the API request
-        CollectWeatherData.apiKey = context.getString(R.string.clima_cell_api_key);
-        String apiResponse =
-                CollectWeatherData.syncGetWeatherDataJSONString(timestamp,
-                        latLongArray[0], latLongArray[1]);
+        // should we save to the database? or is this request for the UI?
+        boolean saveToDB = getInputData().getBoolean(KEY_SAVE_WEATHER, false);
+        WeatherQuota.Priority priority = saveToDB ? WeatherQuota.Priority.IUE : WeatherQuota.Priority.DASHBOARD;
 
-        if (apiResponse == null) {
+        WeatherObservation observation =
+                WeatherCache.getObservation(context, timestamp, latLongArray[0], latLongArray[1]);
 
-            // we didn't get an API response; we should retry
-            Log.d(tag,
-                    "Weather data API response was null for timestamp " + timestamp.toString());
-            return Result.retry();
+        if (observation == null) {
 
-        }
+            // make the API request
+            CollectWeatherData.init(context);
+            TreeMap<Instant, WeatherData> intervals =
+                    CollectWeatherData.syncGetWeatherDataIntervals(priority, timestamp, timestamp.plusSeconds(60),
+                            latLongArray[0], latLongArray[1]);
 
-        WeatherData weatherData = CollectWeatherData.responseJSONToWeatherData(apiResponse);
+            if ((intervals == null || intervals.isEmpty()) && WeatherQuota.getDeferMillis(priority) > 0) {
 
-        if(weatherData == null){
-            Log.d(tag, "weather data wasn't parsed/was invalid.  Retrying for timestamp " +
-                    timestamp.toString());
-            return Result.retry();
-        }
+                // retrying would only spin on the empty bucket. The next refresh will try again.
+                Log.d(tag, "weather quota exhausted for " + timestamp.toString());
+                return Result.failure();
 
+            }
 
-        // should we save to the database? or is this request for the UI?
-        boolean saveToDB = getInputData().getBoolean(KEY_SAVE_WEATHER, false);
+            if (intervals == null || intervals.isEmpty()) {
 
-        if (saveToDB) {
+                // we didn't get valid weather data; we should retry
+                Log.d(tag, "weather data wasn't received/was invalid.  Retrying for timestamp " +
+                        timestamp.toString());
+                return Result.retry();
 
-            saveToDB(timestamp, weatherData);
+            }
 
+            // persist the parsed weather data once; the output only holds its key
+            observation = WeatherCache.put(context, timestamp, latLongArray[0], latLongArray[1],
+                    intervals.firstEntry().getValue());
         }
 
-        // this is for the UI, send back a JSON string
-        Log.d(tag, "JSON weather data response -> " + apiResponse);
 
-        // set output
+        if (saveToDB) {
+
+            saveToDB(timestamp, observation.getWeatherData());
+
+        }
+
+        // set output: the key of the cached observation
         Data weatherDataOutput = new Data.Builder()
-                .putString(KEY_WEATHER_DATA_RESULT, apiResponse)
+                .putString(KEY_WEATHER_GEOHASH_RESULT, observation.getGeohash())
+                .putInt(KEY_WEATHER_BUCKET_MINUTES_RESULT, observation.getBucketMinutes())
+                .putString(KEY_WEATHER_BUCKET_START_RESULT, observation.getBucketStart().toString())
                 .build();
         return Result.success(weatherDataOutput);
 
@@ -0,0 +1,229 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.BackoffPolicy;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.EnrichmentState;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
+import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker class that gets the weather of the IUEs older than the live window
+ * ({@link WeatherFinals#WEATHER_HISTORY_HOURS}), e.g. the ones drained late from the inhaler's memory.
+ *
+ * The IUEs whose weather is PENDING and due are read in pages through the partial index over the
+ * incomplete IUEs and grouped by UTC day; a day is not split across pages. Each day costs one
+ * historical request for the current location (IUEs carry no location of their own) and is committed
+ * in its own transaction. An IUE the provider
+ * has no data for (no interval for its hour) is FAILED, and a failed request counts as an attempt for the IUEs of its day, so a
+ * backfill which is stopped (the phone was unplugged or left the Wi-Fi) resumes with what is left.
+ *
+ * Runs periodically, only while the phone is charging on an unmetered network.
+ */
+public class WeatherBackfillWorker extends Worker {
+
+    private static final String tag = WeatherBackfillWorker.class.getName();
+
+    public WeatherBackfillWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedules the periodic backfill unless it is already scheduled. The IUEs are drained in bursts
+     * in the background, so the backfill polls for them instead of being triggered per IUE.
+     * @param context the calling context
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.UNMETERED)
+                .setRequiresCharging(true)
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(WeatherFinals.WEATHER_BACKFILL_WORK_NAME,
+                ExistingPeriodicWorkPolicy.KEEP,
+                new PeriodicWorkRequest.Builder(WeatherBackfillWorker.class,
+                        WeatherFinals.WEATHER_BACKFILL_PERIOD_HOURS, TimeUnit.HOURS)
+                        .setConstraints(constraints)
+                        .setBackoffCriteria(BackoffPolicy.EXPONENTIAL,
+                                WeatherFinals.WEATHER_BACKFILL_BACKOFF_MINUTES, TimeUnit.MINUTES)
+                        .build());
+    }
+
+    @NonNull
+    @Override
+    @SuppressLint("NewApi")
+    public Result doWork() {
+        Context context = getApplicationContext();
+        CollectWeatherData.init(context);
+
+        LocationService.LocationSnapshot location = LocationService.syncGetLocation(context, BreatheClock.now());
+        if (location == null) {
+            Log.d(tag, "No location to backfill the weather of");
+            return Result.retry();
+        }
+
+        BreatheRoomDatabase database = BreatheRoomDatabase.getDatabase(context);
+        BreatheDao dao = database.breatheDao();
+
+        // The live enrichment covers the IUEs after this.
+        Instant now = BreatheClock.now();
+        Instant before = now.minus(WeatherFinals.WEATHER_HISTORY_HOURS, ChronoUnit.HOURS);
+        Instant after = Instant.EPOCH;
+        int filled = 0;
+        int requests = 0;
+
+        while (!isStopped()) {
+            List<InhalerUsageEvent> page = dao.getIncompleteIUEsBetween(after, before,
+                    WeatherFinals.WEATHER_BACKFILL_PAGE_SIZE);
+            if (page.isEmpty()) break;
+            page = dropPartialDay(page);
+            after = page.get(page.size() - 1).getInhalerUsageEventTimeStamp();
+
+            // The page is sorted, so the IUEs of a day are next to each other.
+            TreeMap<Instant, List<InhalerUsageEvent>> days = new TreeMap<>();
+            List<InhalerUsageEvent> expired = new ArrayList<>();
+            for (InhalerUsageEvent iue : page) {
+                // The live enrichment is done with these. Their wearable data can't be had anymore.
+                if (iue.getWearableEnrichment().isPending()) expired.add(iue);
+                if (!iue.getWeatherEnrichment().isDue(now)) continue;
+                Instant day = iue.getInhalerUsageEventTimeStamp().truncatedTo(ChronoUnit.DAYS);
+                List<InhalerUsageEvent> iues = days.get(day);
+                if (iues == null) days.put(day, iues = new ArrayList<>());
+                iues.add(iue);
+            }
+            if (!expired.isEmpty()) {
+                database.runInTransaction(() -> {
+                    for (InhalerUsageEvent iue : expired) {
+                        EnrichmentState wearable = iue.getWearableEnrichment();
+                        dao.updateWearableEnrichment(iue.getInhalerUsageEventTimeStamp(),
+                                EnrichmentStatus.FAILED, wearable.getAttempts(), wearable.getRetryAt());
+                    }
+                });
+            }
+
+            for (Map.Entry<Instant, List<InhalerUsageEvent>> day : days.entrySet()) {
+                if (isStopped()) break;
+
+                if (WeatherQuota.getDeferMillis(WeatherQuota.Priority.BACKGROUND) > 0) {
+                    Log.d(tag, "Weather quota exhausted. Backfilled " + filled + " IUEs so far");
+                    return Result.retry();
+                }
+
+                Instant start = day.getKey();
+                Instant end = start.plus(1, ChronoUnit.DAYS);
+                requests++;
+                TreeMap<Instant, WeatherData> hours = CollectWeatherData.syncGetHistoricalWeatherData(
+                        start, end.isAfter(before) ? before : end, location.latitude, location.longitude);
+
+                if (hours == null) {
+                    Log.d(tag, "Backfilling " + start + " failed");
+                    recordFailure(database, dao, day.getValue(), now);
+                    return Result.retry();
+                }
+
+                filled += save(database, dao, day.getValue(), hours);
+            }
+        }
+
+        Log.d(tag, "Backfilled the weather of " + filled + " IUEs with " + requests + " requests");
+        return Result.success();
+    }
+
+    /**
+     * A full page may end in the middle of a day. The rest of that day is in the next page, so the
+     * day is left to the next page whole instead of costing a request in each.
+     * @param page a page of IUEs, sorted
+     * @return the page without its last day, unless the page is that one day.
+     */
+    @SuppressLint("NewApi")
+    private static List<InhalerUsageEvent> dropPartialDay(List<InhalerUsageEvent> page) {
+        if (page.size() < WeatherFinals.WEATHER_BACKFILL_PAGE_SIZE) return page;
+
+        Instant lastDay = page.get(page.size() - 1).getInhalerUsageEventTimeStamp().truncatedTo(ChronoUnit.DAYS);
+        int end = page.size();
+        while (end > 0 && !page.get(end - 1).getInhalerUsageEventTimeStamp().isBefore(lastDay)) end--;
+        return end == 0 ? page : page.subList(0, end);
+    }
+
+    /**
+     * Saves the weather of each IUE of a day from the hour it falls in, in one transaction.
+     * The IUEs the provider has no data for are FAILED.
+     * @return the number of IUEs which got weather data.
+     */
+    private static int save(BreatheRoomDatabase database, BreatheDao dao, List<InhalerUsageEvent> iues,
+                            TreeMap<Instant, WeatherData> hours) {
+        int[] saved = {0};
+        database.runInTransaction(() -> {
+            for (InhalerUsageEvent iue : iues) {
+                Instant timestamp = iue.getInhalerUsageEventTimeStamp();
+                WeatherData weatherData = getHourOf(hours, timestamp);
+                if (weatherData == null) {
+                    EnrichmentState weather = iue.getWeatherEnrichment();
+                    dao.updateWeatherEnrichment(timestamp, EnrichmentStatus.FAILED,
+                            weather.getAttempts(), weather.getRetryAt());
+                    continue;
+                }
+                dao.updateWeatherData(timestamp,
+                        weatherData.getWeatherTemperature(),
+                        weatherData.getWeatherHumidity(),
+                        weatherData.getWeatherPrecipitationIntensity(),
+                        weatherData.getWeatherTreeIndex(),
+                        weatherData.getWeatherGrassIndex(),
+                        weatherData.getWeatherEPAIndex());
+                saved[0]++;
+            }
+        });
+        return saved[0];
+    }
+
+    /**
+     * @param hours the hourly weather keyed by the start of its hour
+     * @param timestamp the time the weather is wanted for
+     * @return the weather of the hour the timestamp falls in or null if the provider left that hour out.
+     * An earlier hour is not used in its place.
+     */
+    @SuppressLint("NewApi")
+    static WeatherData getHourOf(TreeMap<Instant, WeatherData> hours, Instant timestamp) {
+        Map.Entry<Instant, WeatherData> hour = hours.floorEntry(timestamp);
+        if (hour == null || !timestamp.isBefore(hour.getKey().plus(1, ChronoUnit.HOURS))) return null;
+        return hour.getValue();
+    }
+
+    /**
+     * Records a failed attempt for the weather of each IUE of a day, in one transaction.
+     */
+    private static void recordFailure(BreatheRoomDatabase database, BreatheDao dao,
+                                      List<InhalerUsageEvent> iues, Instant now) {
+        database.runInTransaction(() -> {
+            for (InhalerUsageEvent iue : iues) {
+                EnrichmentState weather = iue.getWeatherEnrichment();
+                weather.recordFailure(now, WeatherFinals.WEATHER_ENRICHMENT_MAX_ATTEMPTS);
+                dao.updateWeatherEnrichment(iue.getInhalerUsageEventTimeStamp(), weather.getStatus(),
+                        weather.getAttempts(), weather.getRetryAt());
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Gets the weather of a batch of IUEs at one location.
+ *
+ * IUEs carry no location of their own, so all the IUEs of a batch are one location cluster: the
+ * current location. Their time range is covered by one tomorrow.io request (split only if it spans
+ * more than {@link WeatherFinals#WEATHER_BATCH_MAX_SPAN_MINUTES}), and the intervals are fanned out
+ * to the IUEs in a single transaction. IUEs the {@link WeatherCache} already covers need no request.
+ */
+public class WeatherBatch {
+
+    private static final String tag = WeatherBatch.class.getName();
+
+    /**
+     * Gets and saves the weather of the IUEs. Must not be called on the main thread.
+     *
+     * @param context the calling context
+     * @param timestamps the timestamps of the IUEs, oldest first. They must be within the last
+     *                   {@link WeatherFinals#WEATHER_HISTORY_HOURS}.
+     * @return the timestamps of the IUEs which got weather data. The others failed or were deferred
+     * by the {@link WeatherQuota}.
+     */
+    @SuppressLint("NewApi")
+    public static List<Instant> saveWeatherData(Context context, double latitude, double longitude,
+                                                List<Instant> timestamps) {
+        BreatheRoomDatabase database = BreatheRoomDatabase.getDatabase(context);
+        BreatheDao dao = database.breatheDao();
+
+        Map<Instant, WeatherData> results = new HashMap<>();
+        List<Instant> misses = new ArrayList<>();
+        for (Instant timestamp : timestamps) {
+            WeatherData cached = WeatherCache.get(context, timestamp, latitude, longitude);
+            if (cached != null) results.put(timestamp, cached);
+            else misses.add(timestamp);
+        }
+
+        // The timestamps are sorted, so the misses are too. Cut them into spans of at most the max span.
+        int requests = 0;
+        int first = 0;
+        while (first < misses.size()) {
+            Instant start = misses.get(first).truncatedTo(ChronoUnit.MINUTES);
+            int last = first;
+            while (last + 1 < misses.size() && Duration.between(start, misses.get(last + 1)).toMinutes()
+                    < WeatherFinals.WEATHER_BATCH_MAX_SPAN_MINUTES) {
+                last++;
+            }
+
+            CollectWeatherData.init(context);
+            TreeMap<Instant, WeatherData> intervals = CollectWeatherData.syncGetWeatherDataIntervals(
+                    WeatherQuota.Priority.IUE, start,
+                    misses.get(last).truncatedTo(ChronoUnit.MINUTES).plus(1, ChronoUnit.MINUTES),
+                    latitude, longitude);
+
+            if ((intervals == null || intervals.isEmpty())
+                    && WeatherQuota.getDeferMillis(WeatherQuota.Priority.IUE) > 0) {
+                // Save what we have. The caller comes back when the bucket has a token again.
+                Log.d(tag, "Weather quota exhausted");
+                break;
+            }
+
+            requests++;
+            if (intervals == null || intervals.isEmpty()) {
+                Log.d(tag, "Getting the weather from " + start + " failed");
+            } else {
+                WeatherCache.putAll(context, intervals, latitude, longitude);
+                for (int i = first; i <= last; i++) {
+                    Map.Entry<Instant, WeatherData> interval = intervals.floorEntry(misses.get(i));
+                    if (interval != null) results.put(misses.get(i), interval.getValue());
+                }
+            }
+
+            first = last + 1;
+        }
+
+        database.runInTransaction(() -> {
+            for (Map.Entry<Instant, WeatherData> result : results.entrySet()) {
+                WeatherData weatherData = result.getValue();
+                dao.updateWeatherData(result.getKey(),
+                        weatherData.getWeatherTemperature(),
+                        weatherData.getWeatherHumidity(),
+                        weatherData.getWeatherPrecipitationIntensity(),
+                        weatherData.getWeatherTreeIndex(),
+                        weatherData.getWeatherGrassIndex(),
+                        weatherData.getWeatherEPAIndex());
+            }
+        });
+
+        Log.d(tag, "Saved the weather of " + results.size() + " of " + timestamps.size()
+                + " IUEs with " + requests + " requests");
+
+        return new ArrayList<>(results.keySet());
+    }
+}
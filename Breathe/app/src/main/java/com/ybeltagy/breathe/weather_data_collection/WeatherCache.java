@@ -0,0 +1,151 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.util.Log;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.data.WeatherObservation;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches weather observations in the database by area (geohash cell) and time bucket, so IUEs close
+ * in time and place share one tomorrow.io request.
+ *
+ * A lookup tries the 1 minute bucket of the timestamp, then its 15 minute bucket. A fetched
+ * observation is stored under both. Observations are evicted {@link WeatherFinals#WEATHER_CACHE_TTL_HOURS}
+ * after they were fetched.
+ *
+ * Uses the database, so it must not be called on the main thread.
+ */
+public class WeatherCache {
+
+    private static final String tag = WeatherCache.class.getName();
+
+    private static final AtomicLong hits = new AtomicLong(0);
+    private static final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param context the calling context
+     * @param timestamp the time the weather is wanted for
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     * @return the cached weather or null on a miss
+     */
+    @SuppressLint("NewApi")
+    public static WeatherData get(Context context, Instant timestamp, double latitude, double longitude) {
+        WeatherObservation observation = getObservation(context, timestamp, latitude, longitude);
+        return observation == null ? null : observation.getWeatherData();
+    }
+
+    /**
+     * Like {@link #get(Context, Instant, double, double)}, but returns the observation, which also
+     * holds the key it is cached under.
+     */
+    @SuppressLint("NewApi")
+    public static WeatherObservation getObservation(Context context, Instant timestamp,
+                                                    double latitude, double longitude) {
+        BreatheDao dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+        String geohash = Geohash.encode(latitude, longitude, WeatherFinals.WEATHER_CACHE_GEOHASH_PRECISION);
+        Instant notBefore = getEvictionCutoff();
+
+        for (int bucketMinutes : new int[]{WeatherFinals.WEATHER_CACHE_FINE_BUCKET_MINUTES,
+                WeatherFinals.WEATHER_CACHE_COARSE_BUCKET_MINUTES}) {
+            WeatherObservation observation = dao.getWeatherObservation(geohash, bucketMinutes,
+                    getBucketStart(timestamp, bucketMinutes), notBefore);
+            if (observation != null) {
+                hits.incrementAndGet();
+                Log.d(tag, "Hit " + geohash + "/" + bucketMinutes + "m. " + getSummary());
+                return observation;
+            }
+        }
+
+        misses.incrementAndGet();
+        Log.d(tag, "Miss " + geohash + ". " + getSummary());
+        return null;
+    }
+
+    /**
+     * Caches an observation and evicts the expired ones.
+     * @param context the calling context
+     * @param timestamp the time the weather was observed at
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     * @param weatherData the observed weather
+     * @return the observation cached under the 1 minute bucket of the timestamp.
+     */
+    @SuppressLint("NewApi")
+    public static WeatherObservation put(Context context, Instant timestamp, double latitude, double longitude,
+                                         WeatherData weatherData) {
+        putAll(context, Collections.singletonMap(timestamp, weatherData), latitude, longitude);
+        return new WeatherObservation(
+                Geohash.encode(latitude, longitude, WeatherFinals.WEATHER_CACHE_GEOHASH_PRECISION),
+                WeatherFinals.WEATHER_CACHE_FINE_BUCKET_MINUTES,
+                getBucketStart(timestamp, WeatherFinals.WEATHER_CACHE_FINE_BUCKET_MINUTES),
+                BreatheClock.now().truncatedTo(ChronoUnit.SECONDS), weatherData);
+    }
+
+    /**
+     * Caches the observations of one location in a single transaction and evicts the expired ones.
+     * @param context the calling context
+     * @param weatherData the observed weather keyed by the time it was observed at
+     * @param latitude the latitude of the location
+     * @param longitude the longitude of the location
+     */
+    @SuppressLint("NewApi")
+    public static void putAll(Context context, Map<Instant, WeatherData> weatherData,
+                              double latitude, double longitude) {
+        BreatheDao dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+        String geohash = Geohash.encode(latitude, longitude, WeatherFinals.WEATHER_CACHE_GEOHASH_PRECISION);
+        Instant fetchedAt = BreatheClock.now().truncatedTo(ChronoUnit.SECONDS); // fixed length timestamp strings.
+
+        List<WeatherObservation> observations = new ArrayList<>();
+        for (Map.Entry<Instant, WeatherData> entry : weatherData.entrySet()) {
+            for (int bucketMinutes : new int[]{WeatherFinals.WEATHER_CACHE_FINE_BUCKET_MINUTES,
+                    WeatherFinals.WEATHER_CACHE_COARSE_BUCKET_MINUTES}) {
+                observations.add(new WeatherObservation(geohash, bucketMinutes,
+                        getBucketStart(entry.getKey(), bucketMinutes), fetchedAt, entry.getValue()));
+            }
+        }
+        dao.insertWeatherObservations(observations);
+
+        int evicted = dao.deleteWeatherObservationsFetchedBefore(getEvictionCutoff());
+        if (evicted > 0) Log.d(tag, "Evicted " + evicted + " observations");
+    }
+
+    /**
+     * @return the hit and miss counts and ratios since the app started.
+     */
+    public static String getSummary() {
+        long h = hits.get();
+        long m = misses.get();
+        long total = h + m;
+        return String.format(Locale.ENGLISH, "Weather cache: %d hits, %d misses, hit ratio %.2f, miss ratio %.2f",
+                h, m, total == 0 ? 0.0 : (double) h / total, total == 0 ? 0.0 : (double) m / total);
+    }
+
+    /**
+     * @return the start of the bucket holding the timestamp. Truncated to seconds, so the strings have a fixed length.
+     */
+    @SuppressLint("NewApi")
+    static Instant getBucketStart(Instant timestamp, int bucketMinutes) {
+        long bucketMillis = bucketMinutes * 60_000L;
+        return Instant.ofEpochMilli(Math.floorDiv(timestamp.toEpochMilli(), bucketMillis) * bucketMillis);
+    }
+
+    @SuppressLint("NewApi")
+    private static Instant getEvictionCutoff() {
+        return BreatheClock.now().truncatedTo(ChronoUnit.SECONDS).minus(WeatherFinals.WEATHER_CACHE_TTL_HOURS, ChronoUnit.HOURS);
+    }
+}
@@ -0,0 +1,185 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+/**
+ * A centralized location to store the constants of the weather data collection.
+ */
+public class WeatherFinals {
+
+    /**
+     * The directory inside the app's cache directory which holds the HTTP response cache.
+     */
+    protected static final String HTTP_CACHE_DIR_NAME = "weather_http_cache";
+
+    /**
+     * The maximum size of the HTTP response cache. The least recently used responses are evicted.
+     */
+    protected static final long HTTP_CACHE_MAX_BYTES = 5 * 1024 * 1024;
+
+    /**
+     * The number of idle connections kept in the pool and how long they are kept.
+     */
+    protected static final int HTTP_MAX_IDLE_CONNECTIONS = 5;
+    protected static final long HTTP_KEEP_ALIVE_MINUTES = 5;
+
+    /**
+     * The calls which run at once. The network pool of the BreatheExecutors has as many threads.
+     */
+    protected static final int HTTP_MAX_CONCURRENT_CALLS = 4;
+
+    /**
+     * Timeouts of the weather requests. The call timeout bounds the whole call, retries and redirects included.
+     */
+    protected static final long HTTP_CONNECT_TIMEOUT_SECONDS = 10;
+    protected static final long HTTP_READ_TIMEOUT_SECONDS = 15;
+    protected static final long HTTP_CALL_TIMEOUT_SECONDS = 30;
+
+    /**
+     * The number of recent samples the HTTP timing percentiles are computed over.
+     */
+    protected static final int HTTP_LATENCY_SAMPLE_CAPACITY = 100;
+
+    /**
+     * The geohash length of the weather cache cells (about 1.2km x 0.6km).
+     */
+    protected static final int WEATHER_CACHE_GEOHASH_PRECISION = 6;
+
+    /**
+     * The weather cache buckets. A lookup tries the fine bucket before the coarse one.
+     */
+    protected static final int WEATHER_CACHE_FINE_BUCKET_MINUTES = 1;
+    protected static final int WEATHER_CACHE_COARSE_BUCKET_MINUTES = 15;
+
+    /**
+     * Cached observations fetched longer ago than this are evicted.
+     */
+    protected static final long WEATHER_CACHE_TTL_HOURS = 24;
+
+    /**
+     * How far back tomorrow.io serves 1 minute timesteps. Older IUEs can't get weather data.
+     */
+    public static final long WEATHER_HISTORY_HOURS = 6;
+
+    /**
+     * The longest time range requested at once.
+     */
+    protected static final long WEATHER_BATCH_MAX_SPAN_MINUTES = 6 * 60;
+
+    /**
+     * A hedged weather request waits for the p95 latency of the primary provider before asking the
+     * fallback. Until the primary has this many samples, it waits the default delay instead.
+     */
+    protected static final int WEATHER_HEDGE_MIN_SAMPLES = 20;
+    protected static final long WEATHER_HEDGE_DEFAULT_DELAY_MILLIS = 2000;
+
+    /**
+     * The shared preferences file which keeps the last location fix.
+     */
+    protected static final String LOCATION_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.location_snapshot";
+
+    /**
+     * A fix younger than this stands for the current location.
+     */
+    public static final long LOCATION_MAX_AGE_MILLIS = 5 * 60 * 1000;
+
+    /**
+     * When no fix arrives, a fix younger than this is used instead of giving up on the weather.
+     */
+    protected static final long LOCATION_STALE_MAX_AGE_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * A last known location less accurate than this is replaced by a fresh fix.
+     */
+    protected static final float LOCATION_MAX_ACCURACY_METERS = 1000;
+
+    /**
+     * A new fix this close to the saved one keeps the saved coordinates.
+     */
+    protected static final float LOCATION_REUSE_DISTANCE_METERS = 250;
+
+    /**
+     * How long each request to the location provider may take.
+     */
+    protected static final long LOCATION_FIX_TIMEOUT_SECONDS = 10;
+
+    /**
+     * The name of the unique periodic work which records the current weather in the background.
+     */
+    protected static final String WEATHER_PREFETCH_WORK_NAME = "com.ybeltagy.breathe.weather_data_collection.weather_prefetch";
+
+    /**
+     * The shared preferences file which keeps the state of the adaptive weather prefetch.
+     */
+    protected static final String WEATHER_PREFETCH_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.weather_prefetch";
+
+    /**
+     * How often WorkManager runs the weather prefetch (its minimum), and the shortest adaptive interval.
+     */
+    protected static final long WEATHER_PREFETCH_PERIOD_MINUTES = 15;
+
+    /**
+     * The adaptive interval of the weather prefetch before it is scaled, and its upper bound.
+     */
+    protected static final long WEATHER_PREFETCH_BASE_INTERVAL_MINUTES = 60;
+    protected static final long WEATHER_PREFETCH_MAX_INTERVAL_MINUTES = 6 * 60;
+
+    /**
+     * Below this battery level (and not charging) the weather prefetch runs four times less often.
+     */
+    protected static final int WEATHER_PREFETCH_LOW_BATTERY_PERCENT = 30;
+
+    /**
+     * Weather changing faster than this (per hour) halves the prefetch interval.
+     */
+    protected static final float WEATHER_PREFETCH_FAST_TEMPERATURE_CHANGE = 2;
+    protected static final float WEATHER_PREFETCH_FAST_EPA_CHANGE = 20;
+
+    /**
+     * The shared preferences file which keeps the state of the weather quota.
+     */
+    protected static final String WEATHER_QUOTA_SHARED_PREF_FILE_NAME = "com.ybeltagy.breathe.weather_quota";
+
+    /**
+     * The tomorrow.io quota of the free plan.
+     */
+    protected static final int WEATHER_QUOTA_HOURLY_LIMIT = 25;
+    protected static final int WEATHER_QUOTA_DAILY_LIMIT = 500;
+
+    /**
+     * The size of the token bucket. A full bucket allows a burst of this many requests.
+     */
+    protected static final int WEATHER_QUOTA_BUCKET_CAPACITY = WEATHER_QUOTA_HOURLY_LIMIT;
+
+    /**
+     * The tokens the IUE and background requests leave in the bucket for the higher priorities.
+     */
+    protected static final int WEATHER_QUOTA_IUE_RESERVE = 2;
+    protected static final int WEATHER_QUOTA_BACKGROUND_RESERVE = WEATHER_QUOTA_BUCKET_CAPACITY / 2;
+
+    /**
+     * The share of the daily limit the IUE and background requests may use.
+     */
+    protected static final double WEATHER_QUOTA_IUE_DAILY_SHARE = 0.9;
+    protected static final double WEATHER_QUOTA_BACKGROUND_DAILY_SHARE = 0.6;
+
+    /**
+     * The name of the unique periodic work which backfills the weather of the IUEs older than the
+     * live window, and how often it runs.
+     */
+    protected static final String WEATHER_BACKFILL_WORK_NAME = "com.ybeltagy.breathe.weather_data_collection.weather_backfill";
+    protected static final long WEATHER_BACKFILL_PERIOD_HOURS = 6;
+
+    /**
+     * The number of IUEs the backfill reads from the database at once.
+     */
+    protected static final int WEATHER_BACKFILL_PAGE_SIZE = 500;
+
+    /**
+     * The initial delay before a backfill which failed or ran out of quota tries again.
+     */
+    protected static final long WEATHER_BACKFILL_BACKOFF_MINUTES = 30;
+
+    /**
+     * The failed attempts, live and backfill together, after which the weather of an IUE is FAILED.
+     */
+    public static final int WEATHER_ENRICHMENT_MAX_ATTEMPTS = 20;
+}
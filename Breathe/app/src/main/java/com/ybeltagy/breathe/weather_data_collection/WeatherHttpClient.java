@@ -0,0 +1,66 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.content.Context;
+
+import com.ybeltagy.breathe.collection.BreatheExecutors;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.Cache;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+/**
+ * Holds the single OkHttpClient the app makes its weather requests with.
+ *
+ * Sharing the client shares its connection pool (kept alive TLS connections, multiplexed over HTTP/2
+ * when the server supports it) and its disk cache. OkHttp asks for gzip and decompresses the
+ * responses transparently, as long as no request sets its own Accept-Encoding. The calls run on the
+ * network pool of the {@link BreatheExecutors}.
+ */
+public class WeatherHttpClient {
+
+    private static OkHttpClient client = null;
+
+    /**
+     * Creates the shared client with a disk cache in the app's cache directory.
+     * Does nothing if the client already exists.
+     * @param context the calling context
+     */
+    static synchronized void init(Context context) {
+        if (client != null) return;
+        client = newBuilder()
+                .cache(new Cache(new File(context.getCacheDir(), WeatherFinals.HTTP_CACHE_DIR_NAME),
+                        WeatherFinals.HTTP_CACHE_MAX_BYTES))
+                .build();
+    }
+
+    /**
+     * @return the shared client. Without a prior {@link #init(Context)} (e.g. in JVM tests) it has no disk cache.
+     */
+    public static synchronized OkHttpClient get() {
+        if (client == null) client = newBuilder().build();
+        return client;
+    }
+
+    private static OkHttpClient.Builder newBuilder() {
+        // OkHttp queues the calls beyond the threads of the pool itself.
+        Dispatcher dispatcher = new Dispatcher(BreatheExecutors.network());
+        dispatcher.setMaxRequests(WeatherFinals.HTTP_MAX_CONCURRENT_CALLS);
+        dispatcher.setMaxRequestsPerHost(WeatherFinals.HTTP_MAX_CONCURRENT_CALLS);
+
+        return new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .connectionPool(new ConnectionPool(WeatherFinals.HTTP_MAX_IDLE_CONNECTIONS,
+                        WeatherFinals.HTTP_KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .connectTimeout(WeatherFinals.HTTP_CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .readTimeout(WeatherFinals.HTTP_READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .callTimeout(WeatherFinals.HTTP_CALL_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .eventListenerFactory(HttpTimingListener.FACTORY);
+    }
+}
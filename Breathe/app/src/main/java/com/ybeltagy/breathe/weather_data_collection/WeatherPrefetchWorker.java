@@ -0,0 +1,160 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.location.Location;
+import android.os.BatteryManager;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+import androidx.work.Constraints;
+import androidx.work.ExistingPeriodicWorkPolicy;
+import androidx.work.NetworkType;
+import androidx.work.PeriodicWorkRequest;
+import androidx.work.WorkManager;
+import androidx.work.Worker;
+import androidx.work.WorkerParameters;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the current weather at the user's location into the weather cache in the background, so
+ * the weather of an IUE and of the dashboard is usually a local lookup.
+ *
+ * WorkManager runs the worker every {@link WeatherFinals#WEATHER_PREFETCH_PERIOD_MINUTES}. Each run
+ * only fetches once the adaptive interval chosen by the previous fetch has passed. The interval is
+ * longer on a low battery and while the user stays put, and shorter while charging, moving or while
+ * the weather changes quickly.
+ */
+public class WeatherPrefetchWorker extends Worker {
+
+    private static final String tag = WeatherPrefetchWorker.class.getName();
+
+    private static final String NEXT_FETCH_AT = "nextFetchAt";
+    private static final String LAST_FETCH_AT = "lastFetchAt";
+    private static final String LAST_LATITUDE = "lastLatitude";
+    private static final String LAST_LONGITUDE = "lastLongitude";
+    private static final String LAST_TEMPERATURE = "lastTemperature";
+    private static final String LAST_EPA_INDEX = "lastEpaIndex";
+
+    public WeatherPrefetchWorker(@NonNull Context context, @NonNull WorkerParameters workerParams) {
+        super(context, workerParams);
+    }
+
+    /**
+     * Schedules the periodic prefetch unless it is already scheduled.
+     * @param context the calling context
+     */
+    public static void schedule(Context context) {
+        Constraints constraints = new Constraints.Builder()
+                .setRequiredNetworkType(NetworkType.CONNECTED)
+                .build();
+
+        WorkManager.getInstance(context).enqueueUniquePeriodicWork(WeatherFinals.WEATHER_PREFETCH_WORK_NAME,
+                ExistingPeriodicWorkPolicy.KEEP,
+                new PeriodicWorkRequest.Builder(WeatherPrefetchWorker.class,
+                        WeatherFinals.WEATHER_PREFETCH_PERIOD_MINUTES, TimeUnit.MINUTES)
+                        .setConstraints(constraints)
+                        .build());
+    }
+
+    @NonNull
+    @Override
+    @SuppressLint("NewApi")
+    public Result doWork() {
+        Context context = getApplicationContext();
+        SharedPreferences sharedPreferences =
+                context.getSharedPreferences(WeatherFinals.WEATHER_PREFETCH_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+
+        Instant now = BreatheClock.now();
+        if (now.toEpochMilli() < sharedPreferences.getLong(NEXT_FETCH_AT, 0)) return Result.success();
+
+        LocationService.LocationSnapshot location = LocationService.syncGetLocation(context, now);
+        if (location == null) {
+            Log.d(tag, "No location to prefetch the weather of");
+            return Result.success();
+        }
+
+        WeatherData weatherData = CollectWeatherData.syncGetWeatherData(context, WeatherQuota.Priority.BACKGROUND,
+                now, location.latitude, location.longitude);
+        if (weatherData == null) return Result.success(); // the next period tries again.
+
+        // How much the user moved and the weather changed since the last fetch.
+        long lastFetchAt = sharedPreferences.getLong(LAST_FETCH_AT, -1);
+        float movedMeters = 0;
+        float temperatureChangePerHour = 0;
+        float epaChangePerHour = 0;
+        if (lastFetchAt >= 0) {
+            float[] distance = new float[1];
+            Location.distanceBetween(
+                    Double.longBitsToDouble(sharedPreferences.getLong(LAST_LATITUDE, 0)),
+                    Double.longBitsToDouble(sharedPreferences.getLong(LAST_LONGITUDE, 0)),
+                    location.latitude, location.longitude, distance);
+            movedMeters = distance[0];
+
+            float hours = Math.max(now.toEpochMilli() - lastFetchAt, 60 * 1000) / (60f * 60 * 1000);
+            if (weatherData.isWeatherTemperatureValid() && sharedPreferences.contains(LAST_TEMPERATURE)) {
+                temperatureChangePerHour =
+                        Math.abs(weatherData.getWeatherTemperature() - sharedPreferences.getFloat(LAST_TEMPERATURE, 0)) / hours;
+            }
+            if (weatherData.isWeatherEPAIndexValid() && sharedPreferences.contains(LAST_EPA_INDEX)) {
+                epaChangePerHour =
+                        Math.abs(weatherData.getWeatherEPAIndex() - sharedPreferences.getInt(LAST_EPA_INDEX, 0)) / hours;
+            }
+        }
+
+        long intervalMinutes = getIntervalMinutes(context, movedMeters, temperatureChangePerHour, epaChangePerHour);
+        Log.d(tag, "Prefetched the weather. Next fetch in " + intervalMinutes + " minutes");
+
+        SharedPreferences.Editor editor = sharedPreferences.edit()
+                .putLong(NEXT_FETCH_AT, now.toEpochMilli() + TimeUnit.MINUTES.toMillis(intervalMinutes))
+                .putLong(LAST_FETCH_AT, now.toEpochMilli())
+                .putLong(LAST_LATITUDE, Double.doubleToRawLongBits(location.latitude))
+                .putLong(LAST_LONGITUDE, Double.doubleToRawLongBits(location.longitude));
+        if (weatherData.isWeatherTemperatureValid()) editor.putFloat(LAST_TEMPERATURE, weatherData.getWeatherTemperature());
+        if (weatherData.isWeatherEPAIndexValid()) editor.putInt(LAST_EPA_INDEX, weatherData.getWeatherEPAIndex());
+        editor.apply();
+
+        return Result.success();
+    }
+
+    /**
+     * Scales the base interval by the battery state, the movement of the user and the rate the
+     * weather changes at.
+     * @return the minutes until the next fetch.
+     */
+    private static long getIntervalMinutes(Context context, float movedMeters,
+                                           float temperatureChangePerHour, float epaChangePerHour) {
+        double interval = WeatherFinals.WEATHER_PREFETCH_BASE_INTERVAL_MINUTES;
+
+        Intent battery = context.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+        if (battery != null) {
+            boolean charging = battery.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+            int level = battery.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+            int scale = battery.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+
+            if (charging) interval /= 2;
+            else if (level >= 0 && scale > 0 && level * 100 / scale < WeatherFinals.WEATHER_PREFETCH_LOW_BATTERY_PERCENT) {
+                interval *= 4;
+            }
+        }
+
+        if (movedMeters > WeatherFinals.LOCATION_REUSE_DISTANCE_METERS) interval /= 2;
+        else interval *= 2;
+
+        if (temperatureChangePerHour > WeatherFinals.WEATHER_PREFETCH_FAST_TEMPERATURE_CHANGE
+                || epaChangePerHour > WeatherFinals.WEATHER_PREFETCH_FAST_EPA_CHANGE) {
+            interval /= 2;
+        }
+
+        return Math.max(WeatherFinals.WEATHER_PREFETCH_PERIOD_MINUTES,
+                Math.min(WeatherFinals.WEATHER_PREFETCH_MAX_INTERVAL_MINUTES, Math.round(interval)));
+    }
+}
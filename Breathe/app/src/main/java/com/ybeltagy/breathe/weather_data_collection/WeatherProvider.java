@@ -0,0 +1,40 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.time.Instant;
+import java.util.TreeMap;
+
+import okhttp3.Request;
+
+/**
+ * A source of weather data reachable over HTTP. CollectWeatherData sends the requests (through the
+ * shared client, optionally hedged) and the provider only builds them and parses the responses.
+ */
+public interface WeatherProvider {
+
+    /**
+     * @return a short name used for logging and metrics.
+     */
+    String getName();
+
+    /**
+     * @return the request for the weather of a location, one interval per minute from startTime to endTime.
+     */
+    Request buildRequest(Instant startTime, Instant endTime, double latitude, double longitude);
+
+    /**
+     * @return the request for the past weather of a location, one interval per hour from startTime
+     * to endTime. Used for the days the live requests can't reach anymore.
+     */
+    Request buildHistoricalRequest(Instant startTime, Instant endTime, double latitude, double longitude);
+
+    /**
+     * @param body the body of a successful response
+     * @return the weather data keyed by the start of its interval.
+     * @throws IOException if the body is malformed or could not be read
+     */
+    TreeMap<Instant, WeatherData> parse(Reader body) throws IOException;
+}
@@ -0,0 +1,168 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket shared by every weather request, so the app stays inside the tomorrow.io quota.
+ *
+ * The bucket holds {@link WeatherFinals#WEATHER_QUOTA_BUCKET_CAPACITY} tokens and refills at the
+ * hourly limit. A daily counter enforces the daily limit. Lower priorities must leave a reserve in
+ * both, so a backlog can't starve the dashboard or new IUEs. The state is kept in the shared
+ * preferences, so the spent tokens survive the app's process being killed.
+ *
+ * Until {@link #init(Context)} is called (e.g. in JVM tests) every request is allowed.
+ */
+public class WeatherQuota {
+
+    private static final String tag = WeatherQuota.class.getName();
+
+    private static final String TOKENS = "tokens";
+    private static final String REFILLED_AT = "refilledAt";
+    private static final String DAY = "day";
+    private static final String DAY_COUNT = "dayCount";
+
+    public enum Priority {
+        /**
+         * The user is looking at the weather.
+         */
+        DASHBOARD(0, 1),
+        /**
+         * The weather of new IUEs.
+         */
+        IUE(WeatherFinals.WEATHER_QUOTA_IUE_RESERVE, WeatherFinals.WEATHER_QUOTA_IUE_DAILY_SHARE),
+        /**
+         * Prefetches and the historical backfill. Deferred first.
+         */
+        BACKGROUND(WeatherFinals.WEATHER_QUOTA_BACKGROUND_RESERVE, WeatherFinals.WEATHER_QUOTA_BACKGROUND_DAILY_SHARE);
+
+        /**
+         * The tokens this priority must leave in the bucket.
+         */
+        private final int reserve;
+
+        /**
+         * The share of the daily limit this priority may use.
+         */
+        private final double dailyShare;
+
+        Priority(int reserve, double dailyShare) {
+            this.reserve = reserve;
+            this.dailyShare = dailyShare;
+        }
+    }
+
+    private static SharedPreferences sharedPreferences = null;
+
+    private static double tokens;
+    private static long refilledAt;
+    private static long day;
+    private static int dayCount;
+
+    private static final long[] granted = new long[Priority.values().length];
+    private static final long[] denied = new long[Priority.values().length];
+
+    /**
+     * Loads the state of the bucket. Safe to call repeatedly.
+     * @param context the calling context
+     */
+    static synchronized void init(Context context) {
+        if (sharedPreferences != null) return;
+        sharedPreferences = context.getApplicationContext()
+                .getSharedPreferences(WeatherFinals.WEATHER_QUOTA_SHARED_PREF_FILE_NAME, Context.MODE_PRIVATE);
+
+        long now = BreatheClock.currentTimeMillis();
+        tokens = sharedPreferences.getFloat(TOKENS, WeatherFinals.WEATHER_QUOTA_BUCKET_CAPACITY);
+        refilledAt = sharedPreferences.getLong(REFILLED_AT, now);
+        day = sharedPreferences.getLong(DAY, TimeUnit.MILLISECONDS.toDays(now));
+        dayCount = sharedPreferences.getInt(DAY_COUNT, 0);
+    }
+
+    /**
+     * Takes a token for a request.
+     * @param priority the priority of the request
+     * @return true if the request may be sent.
+     */
+    static synchronized boolean tryAcquire(Priority priority) {
+        if (sharedPreferences == null) return true;
+
+        refill(BreatheClock.currentTimeMillis());
+        if (getDeferMillisLocked(priority) > 0) {
+            denied[priority.ordinal()]++;
+            Log.d(tag, "Quota exhausted for " + priority + ": " + (int) tokens + " tokens, " + dayCount + " today");
+            return false;
+        }
+
+        tokens--;
+        dayCount++;
+        granted[priority.ordinal()]++;
+        sharedPreferences.edit()
+                .putFloat(TOKENS, (float) tokens)
+                .putLong(REFILLED_AT, refilledAt)
+                .putLong(DAY, day)
+                .putInt(DAY_COUNT, dayCount)
+                .apply();
+        return true;
+    }
+
+    /**
+     * @param priority the priority of a request
+     * @return how long the request must wait for a token in milliseconds, 0 if it can be sent now.
+     */
+    public static synchronized long getDeferMillis(Priority priority) {
+        if (sharedPreferences == null) return 0;
+        refill(BreatheClock.currentTimeMillis());
+        return getDeferMillisLocked(priority);
+    }
+
+    private static long getDeferMillisLocked(Priority priority) {
+        if (dayCount >= WeatherFinals.WEATHER_QUOTA_DAILY_LIMIT * priority.dailyShare) {
+            long now = BreatheClock.currentTimeMillis();
+            return TimeUnit.DAYS.toMillis(TimeUnit.MILLISECONDS.toDays(now) + 1) - now;
+        }
+
+        double missing = 1 + priority.reserve - tokens;
+        if (missing <= 0) return 0;
+        return (long) Math.ceil(missing * TimeUnit.HOURS.toMillis(1) / WeatherFinals.WEATHER_QUOTA_HOURLY_LIMIT);
+    }
+
+    /**
+     * Adds the tokens earned since the last refill and starts a new day (UTC) when it is due.
+     */
+    private static void refill(long now) {
+        if (now > refilledAt) {
+            tokens = Math.min(WeatherFinals.WEATHER_QUOTA_BUCKET_CAPACITY,
+                    tokens + (now - refilledAt) * WeatherFinals.WEATHER_QUOTA_HOURLY_LIMIT / (double) TimeUnit.HOURS.toMillis(1));
+        }
+        refilledAt = now;
+
+        long today = TimeUnit.MILLISECONDS.toDays(now);
+        if (today != day) {
+            day = today;
+            dayCount = 0;
+        }
+    }
+
+    /**
+     * @return a human readable summary of the quota usage.
+     */
+    public static synchronized String getSummary() {
+        if (sharedPreferences == null) return "Weather quota\n  not initialized\n";
+        refill(BreatheClock.currentTimeMillis());
+
+        StringBuilder sb = new StringBuilder(String.format(Locale.ENGLISH,
+                "Weather quota\n  tokens: %.1f/%d\n  today: %d/%d\n",
+                tokens, WeatherFinals.WEATHER_QUOTA_BUCKET_CAPACITY, dayCount, WeatherFinals.WEATHER_QUOTA_DAILY_LIMIT));
+        for (Priority priority : Priority.values()) {
+            sb.append(String.format(Locale.ENGLISH, "  %s: %d granted, %d deferred\n",
+                    priority, granted[priority.ordinal()], denied[priority.ordinal()]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import android.annotation.SuppressLint;
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import com.ybeltagy.breathe.data.Level;
+import com.ybeltagy.breathe.data.WeatherData;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.TreeMap;
+
+/**
+ * Parses tomorrow.io timelines responses with a pull parser. Only the start time and the six fields
+ * of each interval are read; everything else is skipped without being materialized, so no tree of
+ * the response is ever built.
+ *
+ * The expected shape is {"data":{"timelines":[{"intervals":[{"startTime":..., "values":{...}}, ...]}]}}.
+ * Only the first timeline is read.
+ */
+public class WeatherResponseParser {
+
+    private static final String TEMPERATURE = "temperature";
+    private static final String HUMIDITY = "humidity";
+    private static final String EPAINDEX = "epaIndex";
+    private static final String PRECIPITATIONINTENSITY = "precipitationIntensity";
+    private static final String TREEINDEX = "treeIndex";
+    private static final String GRASSINDEX = "grassIndex";
+
+    /**
+     * Unlike {@link #parseIntervals(Reader, int)}, accepts an interval without a start time.
+     *
+     * @param response the JSON response
+     * @return the weather data of the first interval or null if the response has no interval.
+     */
+    @SuppressLint("NewApi")
+    public static WeatherData parseFirst(String response) {
+        if (response == null || response.isEmpty()) return null;
+
+        try {
+            TreeMap<Instant, WeatherData> intervals = readIntervals(new StringReader(response), 1, Instant.MIN);
+            return intervals.isEmpty() ? null : intervals.firstEntry().getValue();
+        } catch (IOException | IllegalStateException | DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param response the JSON response
+     * @param maxIntervals stop after this many intervals
+     * @return the weather data keyed by the start of its interval.
+     * @throws IOException if the response is malformed or could not be read
+     * @throws IllegalStateException if a value has an unexpected type
+     * @throws DateTimeParseException if a start time is invalid
+     */
+    public static TreeMap<Instant, WeatherData> parseIntervals(Reader response, int maxIntervals) throws IOException {
+        return readIntervals(response, maxIntervals, null);
+    }
+
+    /**
+     * @param untimedStart the key of an interval without a start time, or null to skip such an interval
+     */
+    @SuppressLint("NewApi")
+    private static TreeMap<Instant, WeatherData> readIntervals(Reader response, int maxIntervals,
+                                                               Instant untimedStart) throws IOException {
+        TreeMap<Instant, WeatherData> intervals = new TreeMap<>();
+
+        try (JsonReader reader = new JsonReader(response)) {
+            if (!enterObjectField(reader, "data")) return intervals;
+            if (!enterArrayField(reader, "timelines") || !reader.hasNext()) return intervals;
+
+            reader.beginObject(); // the first timeline
+            if (!enterArrayField(reader, "intervals")) return intervals;
+
+            while (reader.hasNext() && intervals.size() < maxIntervals) {
+                Instant startTime = untimedStart;
+                WeatherData weatherData = null;
+
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (name.equals("startTime")) startTime = Instant.parse(reader.nextString());
+                    else if (name.equals("values")) weatherData = readValues(reader);
+                    else reader.skipValue();
+                }
+                reader.endObject();
+
+                if (startTime != null && weatherData != null) intervals.put(startTime, weatherData);
+            }
+        }
+
+        return intervals;
+    }
+
+    /**
+     * Reads a "values" object. Missing and null fields keep their default values.
+     */
+    private static WeatherData readValues(JsonReader reader) throws IOException {
+        WeatherData weatherData = new WeatherData();
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+                continue;
+            }
+
+            switch (name) {
+                case TEMPERATURE:
+                    weatherData.setWeatherTemperature((float) reader.nextDouble());
+                    break;
+                case HUMIDITY:
+                    weatherData.setWeatherHumidity((float) reader.nextDouble());
+                    break;
+                case PRECIPITATIONINTENSITY:
+                    weatherData.setWeatherPrecipitationIntensity((float) reader.nextDouble());
+                    break;
+                case TREEINDEX:
+                    weatherData.setWeatherTreeIndex(Level.intToLevel(reader.nextInt()));
+                    break;
+                case GRASSINDEX:
+                    weatherData.setWeatherGrassIndex(Level.intToLevel(reader.nextInt()));
+                    break;
+                case EPAINDEX:
+                    weatherData.setWeatherEPAIndex(reader.nextInt());
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return weatherData;
+    }
+
+    /**
+     * Enters the current object and skips to the object held by the given field.
+     * @return true if the reader is now inside that object.
+     */
+    private static boolean enterObjectField(JsonReader reader, String field) throws IOException {
+        if (!skipToField(reader, field)) return false;
+        reader.beginObject();
+        return true;
+    }
+
+    /**
+     * Skips to the array held by the given field of the current object.
+     * @return true if the reader is now inside that array.
+     */
+    private static boolean enterArrayField(JsonReader reader, String field) throws IOException {
+        if (!skipToField(reader, field)) return false;
+        reader.beginArray();
+        return true;
+    }
+
+    /**
+     * Enters the current object if the reader is in front of one, then skips the fields before the
+     * given field.
+     * @return true if the next value is the given field's.
+     */
+    private static boolean skipToField(JsonReader reader, String field) throws IOException {
+        if (reader.peek() == JsonToken.BEGIN_OBJECT) reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals(field)) return true;
+            reader.skipValue();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,253 @@
+package com.ybeltagy.breathe;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+import androidx.work.Configuration;
+import androidx.work.WorkInfo;
+import androidx.work.WorkManager;
+import androidx.work.testing.SynchronousExecutor;
+import androidx.work.testing.WorkManagerTestInitHelper;
+
+import com.ybeltagy.breathe.collection.BreatheClock;
+import com.ybeltagy.breathe.collection.BreatheRepository;
+import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
+import com.ybeltagy.breathe.collection.CollectionFinals;
+import com.ybeltagy.breathe.data.BreatheDao;
+import com.ybeltagy.breathe.data.EnrichmentState;
+import com.ybeltagy.breathe.data.EnrichmentStatus;
+import com.ybeltagy.breathe.data.InhalerUsageEvent;
+import com.ybeltagy.breathe.weather_data_collection.CollectWeatherData;
+import com.ybeltagy.breathe.weather_data_collection.LocationService;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Replays three months of IUEs through the collection pipeline in virtual time.
+ * <p>
+ * The clock, the database writes and WorkManager are synchronous and driven by the test, the
+ * wearable is a fake one which is only worn on some days and the weather comes from a
+ * {@link WeatherStubServer} which fails some of its requests. Most IUEs are delivered right away,
+ * some after the wearable window and some after the live weather window. The retries the pipeline
+ * schedules are run when their virtual time comes, so hours of backoff take no wall time.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class EnrichmentReplayTest {
+
+    private static final int DAYS = 90;
+
+    /**
+     * A bound on the retry runs between two deliveries. A correct pipeline needs a handful.
+     */
+    private static final int MAX_RETRY_RUNS = 100;
+
+    private static final Instant START = Instant.parse("2022-03-01T00:00:00Z");
+    private static final Duration PROMPT = Duration.ofSeconds(5);
+    private static final Duration WEARABLE_WINDOW = Duration.ofMillis(CollectionFinals.ENRICHMENT_WEARABLE_MAX_AGE_MILLIS);
+    private static final Duration WEATHER_WINDOW = Duration.ofHours(6);
+
+    private Context context;
+    private BreatheDao dao;
+    private VirtualClock clock;
+    private FakeWearableSource wearable;
+    private WeatherStubServer stub;
+
+    /**
+     * An IUE and when the phone gets it.
+     */
+    private static class Delivery {
+        final Instant timestamp;
+        final Instant deliveredAt;
+
+        Delivery(Instant timestamp, Instant deliveredAt) {
+            this.timestamp = timestamp;
+            this.deliveredAt = deliveredAt;
+        }
+
+        Duration getDelay() {
+            return Duration.between(timestamp, deliveredAt);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        context = ApplicationProvider.getApplicationContext();
+        WorkManagerTestInitHelper.initializeTestWorkManager(context,
+                new Configuration.Builder().setExecutor(new SynchronousExecutor()).build());
+        BreatheRoomDatabase.setWriteExecutor(Runnable::run);
+
+        clock = new VirtualClock(START);
+        BreatheClock.setClock(clock);
+        LocationService.setFixedLocation(47.6062, -122.3321);
+
+        stub = new WeatherStubServer("timelines_1m_single.json");
+        stub.setFailures(0.1, WeatherStubServer.Failure.SERVER_ERROR);
+        CollectWeatherData.setProviders(stub.provider("replay"), null);
+
+        dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+        dao.deleteAllIues();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        BreatheClock.setClock(null);
+        BreatheRoomDatabase.setWriteExecutor(null);
+        BreatheRepository.setWearableSource(null);
+        CollectWeatherData.setProviders(null, null);
+        LocationService.clearFixedLocation();
+        stub.shutdown();
+    }
+
+    @Test
+    public void replayedMonthsAreEnriched() throws Exception {
+        Random random = new Random(47);
+
+        Set<Instant> wornDays = new HashSet<>();
+        List<Delivery> deliveries = new ArrayList<>();
+        for (int day = 0; day < DAYS; day++) {
+            Instant dayStart = START.plus(day, ChronoUnit.DAYS);
+            if (random.nextDouble() < 0.7) wornDays.add(dayStart);
+
+            int iues = 2 + random.nextInt(5);
+            for (int i = 0; i < iues; i++) {
+                Instant timestamp = dayStart.plus(7, ChronoUnit.HOURS)
+                        .plusSeconds(random.nextInt(15 * 60 * 60));
+
+                double kind = random.nextDouble();
+                long delaySeconds;
+                if (kind < 0.85) delaySeconds = random.nextInt(6); // prompt
+                else if (kind < 0.95) delaySeconds = 10 * 60 + 1 + random.nextInt(5 * 60 * 60); // out of range
+                else delaySeconds = 7 * 60 * 60 + random.nextInt(41 * 60 * 60); // synced the next day
+                deliveries.add(new Delivery(timestamp, timestamp.plusSeconds(delaySeconds)));
+            }
+        }
+        Collections.sort(deliveries, (a, b) -> a.deliveredAt.compareTo(b.deliveredAt));
+
+        wearable = new FakeWearableSource(wornDays);
+        BreatheRepository.setWearableSource(wearable);
+
+        Map<Instant, Delivery> byTimestamp = new HashMap<>();
+        Set<Instant> unfinished = new HashSet<>();
+        Map<Instant, Duration> latencies = new HashMap<>();
+
+        for (Delivery delivery : deliveries) {
+            runRetriesUntil(delivery.deliveredAt, unfinished, latencies);
+
+            clock.advanceTo(delivery.deliveredAt);
+            BreatheRepository.startDataCollection(delivery.timestamp, context);
+            byTimestamp.put(delivery.timestamp, delivery);
+            if (delivery.getDelay().compareTo(PROMPT) <= 0) unfinished.add(delivery.timestamp);
+            recordFinished(unfinished, latencies);
+        }
+        runRetriesUntil(clock.instant().plus(1, ChronoUnit.DAYS), unfinished, latencies);
+
+        List<InhalerUsageEvent> iues = dao.getAllIUEsTest();
+        assertEquals(byTimestamp.size(), iues.size());
+
+        for (InhalerUsageEvent iue : iues) {
+            Delivery delivery = byTimestamp.get(iue.getInhalerUsageEventTimeStamp());
+            assertNotNull(delivery);
+            EnrichmentState wearableState = iue.getWearableEnrichment();
+            EnrichmentState weatherState = iue.getWeatherEnrichment();
+            String name = "IUE at " + delivery.timestamp + " delivered after " + delivery.getDelay();
+
+            // Nothing is left waiting for the live enrichment.
+            assertNotEquals(name, EnrichmentStatus.PENDING, wearableState.getStatus());
+
+            if (delivery.getDelay().compareTo(WEATHER_WINDOW) < 0) {
+                assertEquals(name, EnrichmentStatus.DONE, weatherState.getStatus());
+                assertTrue(name, iue.getWeatherData().isWeatherTemperatureValid());
+            } else {
+                assertEquals(name, EnrichmentStatus.PENDING, weatherState.getStatus()); // the backfill's
+            }
+
+            if (delivery.getDelay().compareTo(PROMPT) <= 0) {
+                boolean worn = wornDays.contains(delivery.timestamp.truncatedTo(ChronoUnit.DAYS));
+                assertEquals(name, worn ? EnrichmentStatus.DONE : EnrichmentStatus.FAILED, wearableState.getStatus());
+            } else if (delivery.getDelay().compareTo(WEARABLE_WINDOW) > 0
+                    && wearableState.getStatus() != EnrichmentStatus.DONE) {
+                // Only a reading already near the IUE can be used. The wearable is not read for it.
+                assertEquals(name, EnrichmentStatus.NOT_APPLICABLE, wearableState.getStatus());
+            }
+        }
+
+        assertTrue(unfinished.isEmpty());
+        List<Duration> sorted = new ArrayList<>(latencies.values());
+        Collections.sort(sorted);
+        Duration p95 = sorted.get((int) Math.ceil(sorted.size() * 0.95) - 1);
+
+        assertTrue("p95 press to enriched was " + p95, p95.compareTo(WEARABLE_WINDOW) <= 0);
+        assertTrue(wearable.getReads() > 0);
+        assertTrue(stub.getRequestCount() > 0);
+    }
+
+    /**
+     * Runs the scheduled retries which are due before the given time, each at its virtual time.
+     */
+    private void runRetriesUntil(Instant until, Set<Instant> unfinished, Map<Instant, Duration> latencies)
+            throws Exception {
+        for (int run = 0; run < MAX_RETRY_RUNS; run++) {
+            Instant nextRetry = null;
+            for (InhalerUsageEvent iue : dao.getIncompleteIUEsBetween(clock.instant().minus(WEATHER_WINDOW),
+                    until.plus(1, ChronoUnit.DAYS), Integer.MAX_VALUE)) {
+                for (EnrichmentState state : new EnrichmentState[]{iue.getWearableEnrichment(), iue.getWeatherEnrichment()}) {
+                    if (state.isPending() && (nextRetry == null || state.getRetryAt().isBefore(nextRetry))) {
+                        nextRetry = state.getRetryAt();
+                    }
+                }
+            }
+            if (nextRetry == null || nextRetry.isAfter(until)) return;
+
+            List<WorkInfo> scheduled = new ArrayList<>();
+            for (WorkInfo info : WorkManager.getInstance(context)
+                    .getWorkInfosForUniqueWork(CollectionFinals.ENRICHMENT_RETRY_WORK_NAME).get()) {
+                if (info.getState() == WorkInfo.State.ENQUEUED) scheduled.add(info);
+            }
+            if (scheduled.isEmpty()) return; // the rest is out of the live window
+
+            clock.advanceTo(nextRetry);
+            for (WorkInfo info : scheduled) {
+                WorkManagerTestInitHelper.getTestDriver(context).setInitialDelayMet(info.getId());
+            }
+            recordFinished(unfinished, latencies);
+        }
+        fail("The retries did not settle before " + until);
+    }
+
+    /**
+     * Records the virtual time the unfinished IUEs were enriched at.
+     */
+    private void recordFinished(Set<Instant> unfinished, Map<Instant, Duration> latencies) {
+        if (unfinished.isEmpty()) return;
+        Set<Instant> incomplete = new HashSet<>();
+        for (InhalerUsageEvent iue : dao.getIncompleteIUEsBetween(Instant.EPOCH,
+                clock.instant().plus(1, ChronoUnit.DAYS), Integer.MAX_VALUE)) {
+            incomplete.add(iue.getInhalerUsageEventTimeStamp());
+        }
+        for (Instant timestamp : new ArrayList<>(unfinished)) {
+            if (incomplete.contains(timestamp)) continue;
+            unfinished.remove(timestamp);
+            latencies.put(timestamp, Duration.between(timestamp, clock.instant()));
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.ybeltagy.breathe;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.ybeltagy.breathe.collection.WearableSource;
+import com.ybeltagy.breathe.data.WearableData;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A wearable which is only worn on some days. A read on a day it is worn delivers a reading at the
+ * time of the read, like a connected wearable. The readings are kept, so the recent wearable data of
+ * a time is the reading closest to it.
+ */
+public class FakeWearableSource implements WearableSource {
+
+    private final Set<Instant> wornDays;
+    private final TreeMap<Instant, WearableData> readings = new TreeMap<>();
+    private int reads = 0;
+
+    /**
+     * @param wornDays the starts of the UTC days the wearable is worn
+     */
+    public FakeWearableSource(Set<Instant> wornDays) {
+        this.wornDays = wornDays;
+    }
+
+    @Override
+    public synchronized ListenableFuture<WearableData> readWearableData(Instant timestamp) {
+        reads++;
+        WearableData reading = null;
+        if (wornDays.contains(timestamp.truncatedTo(ChronoUnit.DAYS))) {
+            reading = new WearableData(timestamp, 21.5f, 40f, 12, 20, 150, 600);
+            readings.put(timestamp, reading);
+        }
+        final WearableData result = reading;
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            completer.set(result);
+            return "Fake wearable read";
+        });
+    }
+
+    @Override
+    public synchronized WearableData getRecentWearableData(Instant timestamp, long windowMillis) {
+        WearableData closest = null;
+        long closestMillis = Long.MAX_VALUE;
+        Map.Entry<Instant, WearableData> before = readings.floorEntry(timestamp);
+        Map.Entry<Instant, WearableData> after = readings.ceilingEntry(timestamp);
+        for (Map.Entry<Instant, WearableData> entry : Arrays.asList(before, after)) {
+            if (entry == null) continue;
+            long millis = Math.abs(Duration.between(timestamp, entry.getKey()).toMillis());
+            if (millis <= windowMillis && millis < closestMillis) {
+                closest = entry.getValue();
+                closestMillis = millis;
+            }
+        }
+        return closest;
+    }
+
+    /**
+     * @return the number of reads the pipeline made.
+     */
+    public synchronized int getReads() {
+        return reads;
+    }
+}
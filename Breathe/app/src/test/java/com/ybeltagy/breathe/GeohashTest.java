@@ -0,0 +1,22 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.weather_data_collection.Geohash;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GeohashTest {
+
+    @Test
+    public void encodesKnownLocations() {
+        assertEquals("u4pruydqqvj", Geohash.encode(57.64911, 10.40744, 11));
+        assertEquals("c23nb6", Geohash.encode(47.6062, -122.3321, 6)); // Seattle
+    }
+
+    @Test
+    public void shorterHashIsPrefix() {
+        String hash = Geohash.encode(25.761681, -80.191788, 9);
+        assertEquals(hash.substring(0, 6), Geohash.encode(25.761681, -80.191788, 6));
+    }
+}
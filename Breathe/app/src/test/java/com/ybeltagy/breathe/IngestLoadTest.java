@@ -0,0 +1,66 @@
+package com.ybeltagy.breathe;
+
+import android.content.Context;
+
+import androidx.test.core.app.ApplicationProvider;
+
+import com.ybeltagy.breathe.ble.InhalerIngest;
+import com.ybeltagy.breathe.ble.SimulatedInhaler;
+import com.ybeltagy.breathe.collection.BreatheRepository;
+import com.ybeltagy.breathe.collection.BreatheRoomDatabase;
+import com.ybeltagy.breathe.data.BreatheDao;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drives a burst of simulated IUEs through the ingest pipeline and checks every delivered IUE reaches Room.
+ * <p>
+ * The IUEs are older than the weather window, so the pipeline only saves them and does not
+ * schedule any wearable or weather work.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class IngestLoadTest {
+
+    private static final int IUE_COUNT = 2000;
+    private static final long TIMEOUT_MILLIS = 60 * 1000;
+
+    @Test
+    public void simulatedBurstReachesRoom() throws InterruptedException {
+        Context context = ApplicationProvider.getApplicationContext();
+        BreatheDao dao = BreatheRoomDatabase.getDatabase(context).breatheDao();
+        dao.deleteAllIues();
+
+        SimulatedInhaler inhaler = new SimulatedInhaler(42);
+        inhaler.setPacketLossRate(0.01);
+        inhaler.setDisconnects(0.002, 20);
+        inhaler.setFrameListener(new InhalerIngest(
+                iueTimestamp -> BreatheRepository.startDataCollection(iueTimestamp, context)));
+
+        Instant start = Instant.now().minus(7, ChronoUnit.DAYS);
+        List<Instant> delivered = inhaler.emitBurst(start, IUE_COUNT, 1000);
+
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        int saved = 0;
+        while (System.currentTimeMillis() < deadline) {
+            saved = dao.getAllIUEsTest().size();
+            if (saved >= delivered.size()) break;
+            Thread.sleep(10);
+        }
+
+        assertTrue("The lossy link lost no frame", inhaler.getLostFrames() > 0);
+        assertTrue("The lossy link never went down", inhaler.getDisconnects() > 0);
+        assertEquals(IUE_COUNT, delivered.size() + inhaler.getLostFrames() + inhaler.getDroppedFrames());
+        assertEquals(delivered.size(), saved);
+        assertEquals(delivered.size(), inhaler.getSentFrames());
+    }
+}
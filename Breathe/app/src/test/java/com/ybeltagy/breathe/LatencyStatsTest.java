@@ -0,0 +1,40 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.ble.LatencyStats;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyStatsTest {
+
+    @Test
+    public void emptyStatsHaveNoPercentile() {
+        LatencyStats stats = new LatencyStats(10);
+        assertEquals(-1, stats.getPercentile(50));
+        assertEquals(0, stats.getCount());
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        LatencyStats stats = new LatencyStats(100);
+        for (int i = 100; i >= 1; i--) stats.record(i); // insertion order should not matter
+
+        assertEquals(50, stats.getPercentile(50));
+        assertEquals(90, stats.getPercentile(90));
+        assertEquals(99, stats.getPercentile(99));
+        assertEquals(100, stats.getPercentile(100));
+    }
+
+    @Test
+    public void oldSamplesAreOverwritten() {
+        LatencyStats stats = new LatencyStats(3);
+        stats.record(1000);
+        stats.record(1);
+        stats.record(2);
+        stats.record(3); // overwrites 1000
+
+        assertEquals(3, stats.getCount());
+        assertEquals(3, stats.getPercentile(100));
+    }
+}
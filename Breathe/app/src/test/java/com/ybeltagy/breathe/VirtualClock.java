@@ -0,0 +1,54 @@
+package com.ybeltagy.breathe;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A clock which only moves when the test moves it. Installed with BreatheClock.setClock.
+ */
+public class VirtualClock extends Clock {
+
+    /**
+     * Shared with the clocks of other zones made from this one, so they all move together.
+     */
+    private final AtomicReference<Instant> now;
+    private final ZoneId zone;
+
+    public VirtualClock(Instant start) {
+        this(new AtomicReference<>(start), ZoneOffset.UTC);
+    }
+
+    private VirtualClock(AtomicReference<Instant> now, ZoneId zone) {
+        this.now = now;
+        this.zone = zone;
+    }
+
+    /**
+     * Moves the clock. It never goes back, so a step to the past leaves it where it is.
+     * @param instant the new time
+     */
+    public void advanceTo(Instant instant) {
+        now.accumulateAndGet(instant, (current, next) -> next.isAfter(current) ? next : current);
+    }
+
+    @Override
+    public Instant instant() {
+        return now.get();
+    }
+
+    @Override
+    public ZoneId getZone() {
+        return zone;
+    }
+
+    /**
+     * @return this clock in the given zone. It moves with this one.
+     */
+    @Override
+    public Clock withZone(ZoneId zone) {
+        return zone.equals(this.zone) ? this : new VirtualClock(now, zone);
+    }
+}
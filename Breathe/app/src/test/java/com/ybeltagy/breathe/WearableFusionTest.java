@@ -0,0 +1,69 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.ble.WearableFusion;
+import com.ybeltagy.breathe.data.DataFinals;
+import com.ybeltagy.breathe.data.WearableData;
+
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WearableFusionTest {
+
+    private static final long WINDOW = 10 * 60 * 1000;
+    private static final long AVERAGE = 60 * 1000;
+
+    private final Instant iue = Instant.parse("2021-06-01T12:00:00Z");
+
+    private WearableData reading(long offsetSeconds, float temperature, int co2) {
+        return new WearableData(iue.plusSeconds(offsetSeconds), temperature, 50, 1, 2, 3, co2);
+    }
+
+    @Test
+    public void noReadingsGiveNull() {
+        assertNull(WearableFusion.fuse(iue, Collections.emptyList(), WINDOW, AVERAGE));
+        assertNull(WearableFusion.fuse(iue, Collections.singletonList(
+                Collections.singletonList(reading(3600, 20, 400))), WINDOW, AVERAGE));
+    }
+
+    @Test
+    public void picksTheNearestReadingOfADevice() {
+        List<WearableData> pin = Arrays.asList(reading(-300, 18, 400), reading(-20, 21, 500), reading(200, 25, 600));
+
+        WearableData fused = WearableFusion.fuse(iue, Collections.singletonList(pin), WINDOW, AVERAGE);
+
+        assertEquals(iue, fused.getWearableDataTimeStamp());
+        assertEquals(21, fused.getTemperature(), 0.001);
+        assertEquals(500, fused.getCo2_data());
+    }
+
+    @Test
+    public void averagesDevicesNearTheIUEAndIgnoresFarOnes() {
+        List<WearableData> pin = Collections.singletonList(reading(-10, 20, 400));
+        List<WearableData> car = Collections.singletonList(reading(30, 22, 600));
+        List<WearableData> home = Collections.singletonList(reading(-500, 30, 1000));
+
+        WearableData fused = WearableFusion.fuse(iue, Arrays.asList(pin, car, home), WINDOW, AVERAGE);
+
+        assertEquals(21, fused.getTemperature(), 0.001);
+        assertEquals(500, fused.getCo2_data());
+    }
+
+    @Test
+    public void fusesEveryMetricOnItsOwn() {
+        WearableData brokenCo2 = reading(0, 20, 400);
+        brokenCo2.setCo2_data(DataFinals.DEFAULT_INTEGER);
+        List<WearableData> pin = Collections.singletonList(brokenCo2);
+        List<WearableData> home = Collections.singletonList(reading(-300, 30, 700));
+
+        WearableData fused = WearableFusion.fuse(iue, Arrays.asList(pin, home), WINDOW, AVERAGE);
+
+        assertEquals(20, fused.getTemperature(), 0.001); // the pin is nearer
+        assertEquals(700, fused.getCo2_data()); // only home has a valid co2 reading
+    }
+}
@@ -0,0 +1,74 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.ble.WearableLogChunk;
+import com.ybeltagy.breathe.data.WearableData;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WearableLogChunkTest {
+
+    private final Instant start = Instant.parse("2021-06-01T12:00:00Z");
+
+    private WearableData reading(int index) {
+        return new WearableData(start.plusSeconds(60L * index), 20 + index, 50, index, 2 * index, 3, 400 + index);
+    }
+
+    @Test
+    public void framesFillTheChunk() throws IOException {
+        WearableLogChunk chunk = new WearableLogChunk(10, 3);
+
+        assertFalse(chunk.add(WearableLogChunk.encodeFrame(10, Arrays.asList(reading(0), reading(1)))));
+        assertEquals(12, chunk.getNextOffset());
+        assertTrue(chunk.add(WearableLogChunk.encodeFrame(12, Collections.singletonList(reading(2)))));
+
+        List<WearableData> readings = chunk.getReadings();
+        assertEquals(3, readings.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(reading(i).getWearableDataTimeStamp(), readings.get(i).getWearableDataTimeStamp());
+            assertEquals(20 + i, readings.get(i).getTemperature(), 0.001);
+            assertEquals(400 + i, readings.get(i).getCo2_data());
+        }
+        assertFalse(chunk.isEndOfLog());
+        assertEquals(13, chunk.getNextOffset());
+    }
+
+    @Test
+    public void emptyFrameEndsTheLog() throws IOException {
+        WearableLogChunk chunk = new WearableLogChunk(0, 5);
+
+        assertFalse(chunk.add(WearableLogChunk.encodeFrame(0, Collections.singletonList(reading(0)))));
+        assertTrue(chunk.add(WearableLogChunk.encodeFrame(1, Collections.emptyList())));
+
+        assertTrue(chunk.isEndOfLog());
+        assertEquals(1, chunk.getReadings().size());
+    }
+
+    @Test
+    public void lostFrameIsAGap() throws IOException {
+        WearableLogChunk chunk = new WearableLogChunk(0, 5);
+        chunk.add(WearableLogChunk.encodeFrame(0, Arrays.asList(reading(0), reading(1))));
+
+        try {
+            chunk.add(WearableLogChunk.encodeFrame(3, Collections.singletonList(reading(3))));
+            fail("A frame after a gap was accepted");
+        } catch (IOException e) {
+            // The readings before the gap are kept, so the next request resumes after them.
+            assertEquals(2, chunk.getNextOffset());
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFrameIsRejected() throws IOException {
+        byte[] frame = WearableLogChunk.encodeFrame(0, Arrays.asList(reading(0), reading(1)));
+
+        new WearableLogChunk(0, 5).add(Arrays.copyOf(frame, frame.length - 1));
+    }
+}
@@ -1,34 +1,56 @@
 package com.ybeltagy.breathe;
+import com.ybeltagy.breathe.data.WeatherData;
 import com.ybeltagy.breathe.weather_data_collection.CollectWeatherData;
 
 import java.time.Instant;
 import java.util.Random;
 
+import org.junit.After;
+import org.junit.Before;
 import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
 
 
 import static org.junit.Assert.*;
 
+/**
+ * Requests the weather of a few places from a {@link WeatherStubServer} instead of tomorrow.io, so the
+ * tests neither need an API key nor spend the quota.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
 public class WeatherDataTest {
     //todo: test future and past requests.
 
-    // TODO: For some reason, these tests do not run/work for me although I see the API calls
-    //       working in the Log files when I run the app. Possibly to do with the API key being
-    //       initialized in the main activity
+    private WeatherStubServer stub;
+
+    @Before
+    public void setUp() throws Exception {
+        stub = new WeatherStubServer("timelines_1m_single.json");
+        CollectWeatherData.setProviders(stub.provider("stub-weather-data"), null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        CollectWeatherData.setProviders(null, null);
+        stub.shutdown();
+    }
 
     @Test
     public void syncGetCurrentWeatherDataForSeattle() {
-        assertNotNull(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),47.6062, -122.3321));
+        assertWeather(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),47.6062, -122.3321));
     }
 
     @Test
     public void syncGetCurrentWeatherDataForSpokane() {
-        assertNotNull(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),47.6588, -117.4260));
+        assertWeather(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),47.6588, -117.4260));
     }
 
     @Test
     public void syncGetCurrentWeatherDataForMiami() {
-        assertNotNull(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),25.761681, -80.191788));
+        assertWeather(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),25.761681, -80.191788));
     }
 
     @Test
@@ -41,9 +63,20 @@ public class WeatherDataTest {
 
         // Get a random position in the US assuming the US is a rectangle.
         // Not a uniform distribution though.
-        assertNotNull(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),
+        assertWeather(CollectWeatherData.syncGetWeatherDataJSONString(Instant.now(),
                 USLatCenter + (r.nextDouble()-0.5) * USLatRange,
                 USLngCenter + (r.nextDouble()-0.5) * USLngRange));
     }
 
-}
\ No newline at end of file
+    /**
+     * Checks the response is the recorded one and came from the stub.
+     */
+    private void assertWeather(String response) {
+        assertNotNull(response);
+        WeatherData weatherData = CollectWeatherData.responseJSONToWeatherData(response);
+        assertNotNull(weatherData);
+        assertEquals(14.18, weatherData.getWeatherTemperature(), 0.001);
+        assertEquals(1, stub.getRequestCount());
+    }
+
+}
@@ -0,0 +1,158 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.data.DataFinals;
+import com.ybeltagy.breathe.data.Level;
+import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.weather_data_collection.WeatherResponseParser;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the streaming weather parser with the org.json tree walk it replaced, on recorded
+ * tomorrow.io responses: one interval (an IUE) and six hours of 1 minute intervals (a batch).
+ * <p>
+ * The results are always compared. The timing only runs with -Dbreathe.benchmark=true, so it does
+ * not slow down the unit tests.
+ * <p>
+ * Runs under Robolectric because android.util.JsonReader and org.json are part of the framework.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class WeatherParserBenchmark {
+
+    private static final String BENCHMARK_PROPERTY = "breathe.benchmark";
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    @Test
+    public void singleInterval() throws Exception {
+        compare("timelines_1m_single.json", 1);
+    }
+
+    @Test
+    public void sixHoursOfIntervals() throws Exception {
+        compare("timelines_1m_6h.json", 360);
+    }
+
+    @Test
+    public void untimedIntervalParsesFirst() {
+        WeatherData weatherData = WeatherResponseParser.parseFirst(
+                "{\"data\":{\"timelines\":[{\"intervals\":[{\"values\":{\"temperature\":14.5}}]}]}}");
+
+        assertNotNull(weatherData);
+        assertEquals(14.5, weatherData.getWeatherTemperature(), 0.001);
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        Assume.assumeTrue(Boolean.getBoolean(BENCHMARK_PROPERTY));
+
+        for (String resource : new String[]{"timelines_1m_single.json", "timelines_1m_6h.json"}) {
+            String response = readResource("/weather/" + resource);
+            long treeNanos = time(() -> walkTree(response));
+            long streamNanos = time(() -> stream(response));
+
+            System.out.printf("%s (%d bytes): org.json %.1fus, JsonReader %.1fus per response (%.1fx)%n",
+                    resource, response.length(), treeNanos / 1000.0, streamNanos / 1000.0,
+                    (double) treeNanos / streamNanos);
+        }
+    }
+
+    private void compare(String resource, int intervals) throws Exception {
+        String response = readResource("/weather/" + resource);
+
+        TreeMap<Instant, WeatherData> streamed = stream(response);
+        TreeMap<Instant, WeatherData> walked = walkTree(response);
+        assertEquals(intervals, streamed.size());
+        assertEquals(walked.keySet(), streamed.keySet());
+        for (Map.Entry<Instant, WeatherData> entry : walked.entrySet()) {
+            assertSameWeather(entry.getValue(), streamed.get(entry.getKey()));
+        }
+    }
+
+    private interface Parse {
+        Object run() throws Exception;
+    }
+
+    /**
+     * @return the mean time of a parse in nanoseconds.
+     */
+    private static long time(Parse parse) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) assertNotNull(parse.run());
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) assertNotNull(parse.run());
+        return (System.nanoTime() - start) / ITERATIONS;
+    }
+
+    private static TreeMap<Instant, WeatherData> stream(String response) throws Exception {
+        return WeatherResponseParser.parseIntervals(new StringReader(response), Integer.MAX_VALUE);
+    }
+
+    /**
+     * The previous parser: builds the whole tree and reads the values of every interval from it.
+     */
+    private static TreeMap<Instant, WeatherData> walkTree(String response) throws Exception {
+        JSONArray intervals = new JSONObject(response).getJSONObject("data")
+                .getJSONArray("timelines")
+                .getJSONObject(0)
+                .getJSONArray("intervals");
+
+        TreeMap<Instant, WeatherData> result = new TreeMap<>();
+        for (int i = 0; i < intervals.length(); i++) {
+            JSONObject interval = intervals.getJSONObject(i);
+            JSONObject obj = interval.getJSONObject("values");
+
+            WeatherData weatherData = new WeatherData();
+            weatherData.setWeatherTemperature((float) obj.optDouble("temperature", DataFinals.DEFAULT_FLOAT));
+            weatherData.setWeatherHumidity((float) obj.optDouble("humidity", DataFinals.DEFAULT_FLOAT));
+            weatherData.setWeatherPrecipitationIntensity(
+                    (float) obj.optDouble("precipitationIntensity", DataFinals.DEFAULT_FLOAT));
+            weatherData.setWeatherTreeIndex(
+                    Level.intToLevel(obj.optInt("treeIndex", Level.levelToInt(DataFinals.DEFAULT_LEVEL))));
+            weatherData.setWeatherGrassIndex(
+                    Level.intToLevel(obj.optInt("grassIndex", Level.levelToInt(DataFinals.DEFAULT_LEVEL))));
+            weatherData.setWeatherEPAIndex(obj.optInt("epaIndex", DataFinals.DEFAULT_INTEGER));
+
+            result.put(Instant.parse(interval.getString("startTime")), weatherData);
+        }
+        return result;
+    }
+
+    private static void assertSameWeather(WeatherData expected, WeatherData actual) {
+        assertEquals(expected.getWeatherTemperature(), actual.getWeatherTemperature(), 0);
+        assertEquals(expected.getWeatherHumidity(), actual.getWeatherHumidity(), 0);
+        assertEquals(expected.getWeatherPrecipitationIntensity(), actual.getWeatherPrecipitationIntensity(), 0);
+        assertEquals(expected.getWeatherTreeIndex(), actual.getWeatherTreeIndex());
+        assertEquals(expected.getWeatherGrassIndex(), actual.getWeatherGrassIndex());
+        assertEquals(expected.getWeatherEPAIndex(), actual.getWeatherEPAIndex());
+    }
+
+    private String readResource(String name) throws Exception {
+        try (InputStream in = getClass().getResourceAsStream(name)) {
+            assertNotNull(name, in);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
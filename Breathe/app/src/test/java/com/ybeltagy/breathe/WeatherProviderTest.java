@@ -0,0 +1,162 @@
+package com.ybeltagy.breathe;
+
+import com.ybeltagy.breathe.data.WeatherData;
+import com.ybeltagy.breathe.weather_data_collection.CollectWeatherData;
+import com.ybeltagy.breathe.weather_data_collection.WeatherQuota;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Fetches the weather from local stub providers, with and without hedging.
+ * <p>
+ * The primary stubs answer one interval and the fallback stubs six hours of intervals, so the size of
+ * the answer tells which provider served it.
+ * <p>
+ * Runs under Robolectric because the parser uses android.util.JsonReader.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class WeatherProviderTest {
+
+    private static final Instant START = Instant.parse("2021-07-01T12:00:00Z");
+    private static final double LATITUDE = 47.6062;
+    private static final double LONGITUDE = -122.3321;
+
+    private static final String PRIMARY_FIXTURE = "timelines_1m_single.json";
+    private static final int PRIMARY_INTERVALS = 1;
+    private static final String FALLBACK_FIXTURE = "timelines_1m_6h.json";
+    private static final int FALLBACK_INTERVALS = 360;
+
+    private WeatherStubServer primary;
+    private WeatherStubServer fallback;
+
+    @After
+    public void tearDown() throws Exception {
+        CollectWeatherData.setProviders(null, null);
+        if (primary != null) primary.shutdown();
+        if (fallback != null) fallback.shutdown();
+    }
+
+    @Test
+    public void fetchesFromTheStub() throws Exception {
+        primary = new WeatherStubServer(PRIMARY_FIXTURE);
+        CollectWeatherData.setProviders(primary.provider("stub-basic"), null);
+
+        TreeMap<Instant, WeatherData> intervals = fetch();
+
+        assertNotNull(intervals);
+        assertEquals(PRIMARY_INTERVALS, intervals.size());
+        assertEquals(1, primary.getRequestCount());
+    }
+
+    @Test
+    public void primaryAnswersWithoutAHedgeWhenItIsFast() throws Exception {
+        primary = new WeatherStubServer(PRIMARY_FIXTURE);
+        fallback = new WeatherStubServer(FALLBACK_FIXTURE);
+        CollectWeatherData.setProviders(primary.provider("stub-fast"), fallback.provider("stub-unused"));
+
+        TreeMap<Instant, WeatherData> intervals = fetch();
+
+        assertNotNull(intervals);
+        assertEquals(PRIMARY_INTERVALS, intervals.size());
+        assertEquals(1, primary.getRequestCount());
+        assertEquals(0, fallback.getRequestCount());
+    }
+
+    @Test
+    public void hedgeAnswersWhenThePrimaryIsSlow() throws Exception {
+        // The hedge fires after the default delay (2s) instead of waiting out the slow primary.
+        primary = new WeatherStubServer(PRIMARY_FIXTURE).setLatency(4_000);
+        fallback = new WeatherStubServer(FALLBACK_FIXTURE);
+        CollectWeatherData.setProviders(primary.provider("stub-slow"), fallback.provider("stub-hedge"));
+
+        TreeMap<Instant, WeatherData> intervals = fetch();
+
+        assertNotNull(intervals);
+        assertEquals(FALLBACK_INTERVALS, intervals.size());
+        assertEquals(1, primary.getRequestCount());
+        assertEquals(1, fallback.getRequestCount());
+    }
+
+    @Test
+    public void failsOverWhenThePrimaryFails() throws Exception {
+        primary = new WeatherStubServer(PRIMARY_FIXTURE)
+                .setFailures(1, WeatherStubServer.Failure.DISCONNECT);
+        fallback = new WeatherStubServer(FALLBACK_FIXTURE);
+        CollectWeatherData.setProviders(primary.provider("stub-broken"), fallback.provider("stub-failover"));
+
+        TreeMap<Instant, WeatherData> intervals = fetch();
+
+        assertNotNull(intervals);
+        assertEquals(FALLBACK_INTERVALS, intervals.size());
+        assertTrue(primary.getRequestCount() >= 1);
+        assertEquals(1, fallback.getRequestCount());
+    }
+
+    @Test
+    public void failsOverWhenThePrimaryAnswersANonNumericValue() throws Exception {
+        primary = new WeatherStubServer("timelines_1m_not_numeric.json");
+        fallback = new WeatherStubServer(FALLBACK_FIXTURE);
+        CollectWeatherData.setProviders(primary.provider("stub-not-numeric"), fallback.provider("stub-numeric"));
+
+        TreeMap<Instant, WeatherData> intervals = fetch();
+
+        assertNotNull(intervals);
+        assertEquals(FALLBACK_INTERVALS, intervals.size());
+        assertEquals(1, primary.getRequestCount());
+        assertEquals(1, fallback.getRequestCount());
+    }
+
+    @Test
+    public void returnsNullWhenEveryProviderFails() throws Exception {
+        primary = new WeatherStubServer(PRIMARY_FIXTURE)
+                .setFailures(1, WeatherStubServer.Failure.SERVER_ERROR);
+        CollectWeatherData.setProviders(primary.provider("stub-down"), null);
+
+        assertNull(fetch());
+    }
+
+    /**
+     * A primary with occasional slow answers: hedging cuts the p99 latency below the slow answers.
+     */
+    @Test
+    public void hedgingCutsTheTailLatency() throws Exception {
+        primary = new WeatherStubServer(PRIMARY_FIXTURE);
+        fallback = new WeatherStubServer(PRIMARY_FIXTURE).setLatency(20);
+
+        long single = measureP99(primary, null, "stub-tail");
+        long hedged = measureP99(primary, fallback, "stub-tail-hedged");
+
+        assertTrue("hedged p99 " + hedged + "ms, single p99 " + single + "ms", hedged < single);
+    }
+
+    private long measureP99(WeatherStubServer primary, WeatherStubServer fallback, String name) {
+        CollectWeatherData.setProviders(primary.provider(name), fallback == null ? null : fallback.provider(name + "-fallback"));
+
+        long[] samples = new long[100];
+        for (int i = 0; i < samples.length; i++) {
+            // One request in fifty is slow. The first 20 requests teach the hedge the p95 latency.
+            primary.setLatency(i % 50 == 49 ? 3_000 : 20);
+            long startedAt = System.nanoTime();
+            assertNotNull(fetch());
+            samples[i] = (System.nanoTime() - startedAt) / 1_000_000;
+        }
+        Arrays.sort(samples);
+        return samples[98];
+    }
+
+    private static TreeMap<Instant, WeatherData> fetch() {
+        return CollectWeatherData.syncGetWeatherDataIntervals(WeatherQuota.Priority.DASHBOARD,
+                START, START.plusSeconds(60), LATITUDE, LONGITUDE);
+    }
+}
@@ -0,0 +1,124 @@
+package com.ybeltagy.breathe;
+
+import androidx.annotation.NonNull;
+
+import com.ybeltagy.breathe.weather_data_collection.TomorrowIoProvider;
+import com.ybeltagy.breathe.weather_data_collection.WeatherProvider;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+
+/**
+ * A local weather provider which answers every request with a recorded tomorrow.io response from
+ * src/test/resources/weather, after a configurable latency and with a configurable share of failures.
+ */
+public class WeatherStubServer {
+
+    /**
+     * How a failed request fails.
+     */
+    public enum Failure {
+        /**
+         * Answers 500.
+         */
+        SERVER_ERROR,
+        /**
+         * Closes the connection without answering.
+         */
+        DISCONNECT
+    }
+
+    private final MockWebServer server = new MockWebServer();
+    private final String response;
+
+    private volatile long latencyMillis = 0;
+    private volatile double failureRate = 0;
+    private volatile Failure failure = Failure.SERVER_ERROR;
+
+    private final AtomicInteger requests = new AtomicInteger(0);
+
+    /**
+     * @param fixture the name of the recorded response, e.g. "timelines_1m_single.json"
+     */
+    public WeatherStubServer(String fixture) throws IOException {
+        response = readResource("/weather/" + fixture);
+        server.setDispatcher(new Dispatcher() {
+            @NonNull
+            @Override
+            public MockResponse dispatch(@NonNull RecordedRequest request) {
+                requests.incrementAndGet();
+
+                MockResponse mockResponse;
+                if (ThreadLocalRandom.current().nextDouble() < failureRate) {
+                    mockResponse = failure == Failure.DISCONNECT ?
+                            new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START) :
+                            new MockResponse().setResponseCode(500);
+                } else {
+                    mockResponse = new MockResponse()
+                            .setHeader("Content-Type", "application/json")
+                            .setBody(response);
+                }
+                return mockResponse.setHeadersDelay(latencyMillis, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * @param latencyMillis how long the server waits before answering
+     */
+    public WeatherStubServer setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param failureRate the share of the requests which fail, in [0, 1]
+     * @param failure how they fail
+     */
+    public WeatherStubServer setFailures(double failureRate, Failure failure) {
+        this.failureRate = failureRate;
+        this.failure = failure;
+        return this;
+    }
+
+    /**
+     * @return the number of requests the server received.
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @param name the name the provider is reported under
+     * @return a provider which sends its requests to this server.
+     */
+    public WeatherProvider provider(String name) {
+        return new TomorrowIoProvider(name, server.url("/v4/timelines"), "stub");
+    }
+
+    public void shutdown() throws IOException {
+        server.shutdown();
+    }
+
+    private static String readResource(String path) throws IOException {
+        try (InputStream in = WeatherStubServer.class.getResourceAsStream(path)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
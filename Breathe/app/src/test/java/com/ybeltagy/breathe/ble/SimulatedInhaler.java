@@ -0,0 +1,68 @@
+package com.ybeltagy.breathe.ble;
+
+import android.annotation.SuppressLint;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A simulated inhaler. Indicates IUE frames in the format of the real inhaler.
+ */
+public class SimulatedInhaler extends SimulatedPeripheral implements PeripheralTransport.Indicating {
+
+    private FrameListener frameListener = null;
+
+    private int sentFrames = 0;
+
+    /**
+     * @param seed the seed of the random which drives the link.
+     */
+    public SimulatedInhaler(long seed) {
+        super(seed);
+    }
+
+    @Override
+    public void setFrameListener(FrameListener frameListener) {
+        this.frameListener = frameListener;
+    }
+
+    /**
+     * Indicates a burst of IUEs, like the backlog the inhaler sends when it reconnects.
+     * @param start the timestamp of the first IUE
+     * @param count the number of IUEs
+     * @param spacingMillis the time between consecutive IUEs
+     * @return the timestamps of the IUEs the listener received.
+     */
+    @SuppressLint("NewApi")
+    public List<Instant> emitBurst(Instant start, int count, long spacingMillis) {
+        List<Instant> delivered = new ArrayList<>();
+
+        for (int i = 0; i < count; i++) {
+            Instant iueTimestamp = start.plusMillis(i * spacingMillis);
+            if (send(InhalerIngest.encodeIUE(iueTimestamp))) delivered.add(iueTimestamp);
+        }
+
+        return delivered;
+    }
+
+    /**
+     * Sends a frame over the simulated link.
+     * @param frame the value of the characteristic
+     * @return true if the listener received the frame.
+     */
+    private boolean send(byte[] frame) {
+        if (!passesLink()) return false;
+
+        sentFrames++;
+        if (frameListener != null) frameListener.onFrame(frame);
+        return true;
+    }
+
+    /**
+     * @return the number of frames the listener received.
+     */
+    public int getSentFrames() {
+        return sentFrames;
+    }
+}
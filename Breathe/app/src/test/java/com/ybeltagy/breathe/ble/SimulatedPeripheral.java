@@ -0,0 +1,103 @@
+package com.ybeltagy.breathe.ble;
+
+import java.util.Random;
+
+/**
+ * An in-process peripheral used to load test the ingest logic without hardware.
+ *
+ * Frames and reads go through a lossy link: each frame may trigger a link loss which drops the
+ * following frames for a while (as if the phone were out of range), and a frame that makes it through
+ * the link may still be lost. Both are drawn from a seeded random, so a run can be replayed.
+ *
+ * This class is not thread safe. Drive a simulated peripheral from one thread.
+ */
+public abstract class SimulatedPeripheral implements PeripheralTransport {
+
+    protected final Random random;
+
+    private double packetLossRate = 0;
+    private double disconnectRate = 0;
+    private int outageFrames = 0;
+
+    /**
+     * The number of frames left before the link comes back. 0 while connected.
+     */
+    private int outageLeft = 0;
+
+    private int lostFrames = 0;
+    private int droppedFrames = 0;
+    private int disconnects = 0;
+
+    /**
+     * @param seed the seed of the random which drives the link and the generated data.
+     */
+    protected SimulatedPeripheral(long seed) {
+        random = new Random(seed);
+    }
+
+    /**
+     * @param packetLossRate the probability in [0, 1] that a frame sent over a connected link is lost.
+     */
+    public void setPacketLossRate(double packetLossRate) {
+        this.packetLossRate = packetLossRate;
+    }
+
+    /**
+     * @param disconnectRate the probability in [0, 1] that the link is lost before a frame is sent.
+     * @param outageFrames the number of frames dropped before the link comes back.
+     */
+    public void setDisconnects(double disconnectRate, int outageFrames) {
+        this.disconnectRate = disconnectRate;
+        this.outageFrames = outageFrames;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return outageLeft == 0;
+    }
+
+    /**
+     * Decides the fate of one frame (or one read) and updates the counters.
+     * @return true if the frame makes it through the link.
+     */
+    protected boolean passesLink() {
+        if (outageLeft == 0 && random.nextDouble() < disconnectRate) {
+            outageLeft = outageFrames;
+            disconnects++;
+        }
+
+        if (outageLeft > 0) {
+            outageLeft--;
+            droppedFrames++;
+            return false;
+        }
+
+        if (random.nextDouble() < packetLossRate) {
+            lostFrames++;
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of frames lost over a connected link.
+     */
+    public int getLostFrames() {
+        return lostFrames;
+    }
+
+    /**
+     * @return the number of frames dropped because the link was down.
+     */
+    public int getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return the number of times the link was lost.
+     */
+    public int getDisconnects() {
+        return disconnects;
+    }
+}
@@ -0,0 +1,60 @@
+package com.ybeltagy.breathe.ble;
+
+import androidx.concurrent.futures.CallbackToFutureAdapter;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import java.io.IOException;
+
+/**
+ * A simulated wearable. Serves readings in the format of the real wearable.
+ * The readings follow a random walk so consecutive reads look like a real environment.
+ */
+public class SimulatedWearable extends SimulatedPeripheral implements PeripheralTransport.Readable {
+
+    private float temperature = 22;
+    private float humidity = 45;
+    private int pm_count_2_5 = 10;
+    private int pm_count_10 = 20;
+    private int voc_data = 100;
+    private int co2_data = 400;
+
+    /**
+     * @param seed the seed of the random which drives the link and the readings.
+     */
+    public SimulatedWearable(long seed) {
+        super(seed);
+    }
+
+    /**
+     * Reads the next reading over the simulated link.
+     * @return a future holding the value of the wearable data characteristic. Fails like the real
+     * wearable when the link is down or the read is lost.
+     */
+    @Override
+    public ListenableFuture<byte[]> read() {
+        final boolean passed = passesLink();
+        final byte[] value = nextReading(); // the environment changes whether or not it was read.
+
+        return CallbackToFutureAdapter.getFuture(completer -> {
+            if (passed) completer.set(value);
+            else completer.setException(new IOException("Simulated read lost"));
+            return "Simulated wearable read";
+        });
+    }
+
+    /**
+     * Advances the random walk.
+     * @return the value of the wearable data characteristic.
+     */
+    private byte[] nextReading() {
+        temperature += (float) random.nextGaussian() * 0.1f;
+        humidity = Math.max(0, Math.min(100, humidity + (float) random.nextGaussian() * 0.5f));
+        pm_count_2_5 = Math.max(0, pm_count_2_5 + random.nextInt(3) - 1);
+        pm_count_10 = Math.max(0, pm_count_10 + random.nextInt(5) - 2);
+        voc_data = Math.max(0, voc_data + random.nextInt(11) - 5);
+        co2_data = Math.max(0, co2_data + random.nextInt(21) - 10);
+
+        return WearableDataParser.encode(temperature, humidity, pm_count_2_5, pm_count_10, voc_data, co2_data);
+    }
+}
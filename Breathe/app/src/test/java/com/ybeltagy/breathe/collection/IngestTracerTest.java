@@ -0,0 +1,57 @@
+package com.ybeltagy.breathe.collection;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class IngestTracerTest {
+
+    @Test
+    public void bucketsSplitEachDoublingInTwo() {
+        assertEquals(0, IngestTracer.getBucket(0));
+        assertEquals(2, IngestTracer.getBucket(1));
+        assertEquals(19, IngestTracer.getBucket(1000));
+        assertEquals(20, IngestTracer.getBucket(1100));
+        assertEquals(17, IngestTracer.getBucket(400));
+    }
+
+    @Test
+    public void negativeLatenciesGoIntoTheFirstBucket() {
+        assertEquals(0, IngestTracer.getBucket(-5000));
+    }
+
+    @Test
+    public void longLatenciesGoIntoTheLastBucket() {
+        assertEquals(CollectionFinals.INGEST_LATENCY_BUCKETS - 1, IngestTracer.getBucket(100L * 24 * 60 * 60 * 1000));
+    }
+
+    @Test
+    public void percentileIsTheUpperBoundOfItsBucket() {
+        for (long millis : new long[]{1, 7, 250, 1000, 60 * 1000, 6 * 60 * 60 * 1000}) {
+            long[] histogram = new long[CollectionFinals.INGEST_LATENCY_BUCKETS];
+            histogram[IngestTracer.getBucket(millis)]++;
+
+            long percentile = IngestTracer.getPercentile(histogram, 50);
+            assertTrue(millis + " ms reported as " + percentile, percentile >= millis);
+            assertTrue(millis + " ms reported as " + percentile, percentile <= Math.sqrt(2) * (millis + 1));
+        }
+    }
+
+    @Test
+    public void percentilesUseNearestRank() {
+        long[] histogram = new long[CollectionFinals.INGEST_LATENCY_BUCKETS];
+        histogram[IngestTracer.getBucket(100)] = 95;
+        histogram[IngestTracer.getBucket(10 * 1000)] = 5;
+
+        long fast = IngestTracer.getPercentile(histogram, 50);
+        assertEquals(fast, IngestTracer.getPercentile(histogram, 95));
+        assertTrue(fast >= 100 && fast < 10 * 1000);
+        assertTrue(IngestTracer.getPercentile(histogram, 96) >= 10 * 1000);
+        assertEquals(fast, IngestTracer.getPercentile(histogram, 0)); // the first sample
+    }
+
+    @Test
+    public void emptyHistogramHasNoPercentile() {
+        assertEquals(-1, IngestTracer.getPercentile(new long[CollectionFinals.INGEST_LATENCY_BUCKETS], 95));
+    }
+}
@@ -0,0 +1,66 @@
+package com.ybeltagy.breathe.weather_data_collection;
+
+import com.ybeltagy.breathe.data.WeatherData;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.TreeMap;
+
+import static org.junit.Assert.*;
+
+/**
+ * Matches the IUEs of a day with an hourly historical response which has gaps: the provider answered
+ * 07:00 to 09:59 and 12:00 to 12:59 only.
+ * <p>
+ * Runs under Robolectric because the parser uses android.util.JsonReader.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(sdk = 28)
+public class WeatherBackfillTest {
+
+    private TreeMap<Instant, WeatherData> hours;
+
+    @Before
+    public void setUp() throws Exception {
+        try (InputStream in = getClass().getResourceAsStream("/weather/timelines_1h_gap.json");
+             Reader reader = new InputStreamReader(in, StandardCharsets.UTF_8)) {
+            hours = WeatherResponseParser.parseIntervals(reader, Integer.MAX_VALUE);
+        }
+        assertEquals(4, hours.size());
+    }
+
+    @Test
+    public void iueGetsTheWeatherOfItsHour() {
+        assertEquals(6.5f, WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T08:00:00Z"))
+                .getWeatherTemperature(), 0);
+        assertEquals(7.5f, WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T09:59:59Z"))
+                .getWeatherTemperature(), 0);
+        assertEquals(10.5f, WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T12:30:00Z"))
+                .getWeatherTemperature(), 0);
+    }
+
+    @Test
+    public void iueInAGapGetsNoWeather() {
+        assertNull(WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T10:00:00Z")));
+        assertNull(WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T11:45:00Z")));
+    }
+
+    @Test
+    public void iueAfterTheLastHourGetsNoWeather() {
+        assertNull(WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T23:00:00Z")));
+    }
+
+    @Test
+    public void iueBeforeTheFirstHourGetsNoWeather() {
+        assertNull(WeatherBackfillWorker.getHourOf(hours, Instant.parse("2022-03-01T06:59:59Z")));
+    }
+}